@@ -4,9 +4,12 @@ package com.facebook.fbu.photosphere.sphere;
 
 import android.app.Activity;
 import android.app.AlertDialog;
+import android.app.PendingIntent;
 import android.content.DialogInterface;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.os.Bundle;
+import android.preference.PreferenceManager;
 import android.view.View;
 import android.widget.Button;
 import android.widget.FrameLayout;
@@ -14,7 +17,11 @@ import android.widget.ImageButton;
 import android.widget.TextView;
 import android.widget.ViewSwitcher;
 
+import com.facebook.fbu.photosphere.spherelib.CameraController;
 import com.facebook.fbu.photosphere.spherelib.CameraView;
+import com.facebook.fbu.photosphere.spherelib.SphereQualityPlanner;
+
+import java.io.File;
 
 /**
  * Camera activity hosts spherical camera as well as potential to upload existing photo.
@@ -22,7 +29,13 @@ import com.facebook.fbu.photosphere.spherelib.CameraView;
 public class CameraActivity extends Activity {
 
     public static final String TAG = CameraActivity.class.getSimpleName();
+    // the path of the capture directory whose construction the upload activity follows
+    public static final String CAPTURE_DIRECTORY = "capture_directory";
+    private static final String PREF_SPHERE_QUALITY_KEY = "sphere_quality_preference";
+    private static final String PREF_INSTANT_CAPTURE_KEY = "instant_capture_preference";
+    private static final String CAPTURES_DIRECTORY = "captures";
     private CameraView mCameraView;
+    private Intent mUploadPhotoIntent;
     private FrameLayout mFrameLayout;
 
 
@@ -32,6 +45,31 @@ public class CameraActivity extends Activity {
         setContentView(R.layout.camera_activity);
         // create new instance of the camera view
         mCameraView = new CameraView(CameraActivity.this);
+        // the sphere is constructed in its own process, from the pictures written in a capture
+        // directory of this session, and its notification leads back to the upload activity
+        long captureTime = System.currentTimeMillis();
+        File captureDirectory = new File(
+                new File(getCacheDir(), CAPTURES_DIRECTORY),
+                Long.toString(captureTime));
+        mUploadPhotoIntent = new Intent(CameraActivity.this, UploadPhotoActivity.class);
+        mUploadPhotoIntent.putExtra(CAPTURE_DIRECTORY, captureDirectory.getPath());
+        mCameraView.setCaptureDirectory(captureDirectory, PendingIntent.getActivity(
+                CameraActivity.this,
+                (int) captureTime,
+                mUploadPhotoIntent,
+                PendingIntent.FLAG_UPDATE_CURRENT));
+        // pictures go in the sphere of the service as they are taken, so a retake only redraws
+        // its own region
+        mCameraView.setConstructWhileCapturing(true);
+        // the quality chosen in the settings sets the size of both the pictures and the sphere
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+        mCameraView.setQuality(SphereQualityPlanner.Quality.valueOf(prefs.getString(
+                PREF_SPHERE_QUALITY_KEY,
+                SphereQualityPlanner.Quality.STANDARD.name())));
+        // instant capture takes preview frames, which come right away but are smaller
+        if (prefs.getBoolean(PREF_INSTANT_CAPTURE_KEY, false)) {
+            mCameraView.setCaptureMode(CameraController.CaptureMode.PREVIEW_FRAME);
+        }
         mFrameLayout = (FrameLayout) findViewById(R.id.camera_frame_layout);
         //Camera Directions
         final FrameLayout directions = (FrameLayout) findViewById(R.id.directions);
@@ -76,6 +114,7 @@ public class CameraActivity extends Activity {
                                 android.R.string.yes,
                                 new DialogInterface.OnClickListener() {
                                     public void onClick(DialogInterface dialog, int which) {
+                                        mCameraView.cancelConstruction();
                                         mFrameLayout.removeView(mCameraView);
                                         finish();
                                     }
@@ -104,11 +143,7 @@ public class CameraActivity extends Activity {
             @Override
             public void onClick(View v) {
                 mCameraView.startConstruction();
-                Intent uploadPhotoIntent = new Intent(
-                        CameraActivity.this,
-                        UploadPhotoActivity.class);
-                uploadPhotoIntent.putExtra(TAG, true);
-                startActivity(uploadPhotoIntent);
+                startActivity(mUploadPhotoIntent);
                 finish();
             }
         });
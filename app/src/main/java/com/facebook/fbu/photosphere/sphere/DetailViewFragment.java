@@ -23,6 +23,7 @@ import android.widget.Toast;
 import com.facebook.fbu.photosphere.sphere.api.SphereAPI;
 import com.facebook.fbu.photosphere.sphere.api.SphereAPI.SpheresLoadedCallback;
 import com.facebook.fbu.photosphere.sphere.api.SphereUser;
+import com.facebook.fbu.photosphere.spherelib.SphereCrop;
 import com.facebook.fbu.photosphere.spherelib.SphereView;
 import com.squareup.picasso.Picasso;
 
@@ -38,6 +39,7 @@ public class DetailViewFragment extends Fragment implements SpheresLoadedCallbac
     private static final String TAG = DetailViewFragment.class.getSimpleName();
     private static final String PHOTO_ID = "PHOTO_ID";
     private static final String IMAGE_URL = "IMAGE_URL";
+    private static final String CROPPED_AREA = "CROPPED_AREA";
     private static final String SPHERE = "SPHERE";
 
     private String mPhotoId;
@@ -153,7 +155,7 @@ public class DetailViewFragment extends Fragment implements SpheresLoadedCallbac
         // create new sphere user
         final SphereUser user = SphereUser.from(sphere.getUser());
         // sphere view
-        setSphereViewImage(sphere.getImage().getUrl());
+        setSphereViewImage(sphere.getImage().getUrl(), sphere.getCrop());
         //Username
         mUsername.setText(user.getFullName());
         //Location
@@ -189,12 +191,13 @@ public class DetailViewFragment extends Fragment implements SpheresLoadedCallbac
      * set up sphere view image and on click listener to launch viewer
      *
      * @param thumbnailUrl - url to load into SphereView
+     * @param crop         - where the image is in the sphere, or null if it is all of it
      */
-    private void setSphereViewImage(final String thumbnailUrl) {
+    private void setSphereViewImage(final String thumbnailUrl, final SphereCrop crop) {
         if (thumbnailUrl == null) {
             return;
         }
-        mPhotosphereThumbnail.setImageUrl(thumbnailUrl);
+        mPhotosphereThumbnail.setImageUrl(thumbnailUrl, crop);
         mPhotosphereThumbnail.setOnTouchListener(new View.OnTouchListener() {
             @Override
             public boolean onTouch(View v, MotionEvent event) {
@@ -202,6 +205,9 @@ public class DetailViewFragment extends Fragment implements SpheresLoadedCallbac
                         getActivity(),
                         ViewerActivity.class);
                 startViewerIntent.putExtra(IMAGE_URL, thumbnailUrl);
+                if (crop != null) {
+                    startViewerIntent.putExtra(CROPPED_AREA, crop.toArray());
+                }
                 //keeps activity from being added to history stack
                 //return to DetailViewFragment onBackPressed()
                 startViewerIntent
@@ -8,6 +8,7 @@ import android.os.Parcelable;
 import android.util.Log;
 
 import com.facebook.fbu.photosphere.sphere.api.SphereUser;
+import com.facebook.fbu.photosphere.spherelib.SphereCrop;
 import com.google.android.gms.maps.model.LatLng;
 import com.parse.ParseClassName;
 import com.parse.ParseException;
@@ -17,6 +18,9 @@ import com.parse.ParseObject;
 import com.parse.ParseQuery;
 import com.parse.ParseUser;
 
+import java.util.ArrayList;
+import java.util.List;
+
 @ParseClassName("Sphere")
 public class Sphere extends ParseObject implements Parcelable {
     public static final String MODEL_NAME = Sphere.class.getSimpleName();
@@ -29,6 +33,7 @@ public class Sphere extends ParseObject implements Parcelable {
     public static final String COORDINATES = "coordinates";
     public static final String USER = "user_id";
     public static final String PHOTO_ID = "objectId";
+    public static final String CROPPED_AREA = "cropped_area";
     private static final String SPHERE_USER = "sphere_user";
 
     public enum SpherePhotoType {
@@ -85,6 +90,31 @@ public class Sphere extends ParseObject implements Parcelable {
         put(IMAGE, image);
     }
 
+    /**
+     * returns where the image is in the whole sphere, for panoramas that don't cover all of it
+     *
+     * @return the crop of the image, or null if it is the whole sphere
+     */
+    public SphereCrop getCrop() {
+        List<Integer> values = getList(CROPPED_AREA);
+        if (values == null) {
+            return null;
+        }
+        int[] array = new int[values.size()];
+        for (int k = 0; k < array.length; k++) {
+            array[k] = values.get(k);
+        }
+        return SphereCrop.fromArray(array);
+    }
+
+    public void setCrop(SphereCrop crop) {
+        List<Integer> values = new ArrayList<Integer>();
+        for (int value : crop.toArray()) {
+            values.add(value);
+        }
+        put(CROPPED_AREA, values);
+    }
+
     public ParseGeoPoint getCoordinates() {
         return getParseGeoPoint(COORDINATES);
     }
@@ -127,6 +157,9 @@ public class Sphere extends ParseObject implements Parcelable {
             Log.e(MODEL_NAME, e.getMessage());
         }
         bundle.putString(CAPTION, getCaption());
+        if (getCrop() != null) {
+            bundle.putIntArray(CROPPED_AREA, getCrop().toArray());
+        }
         bundle.putParcelable(COORDINATES, new LatLng(
                 getCoordinates().getLatitude(),
                 getCoordinates().getLongitude()));
@@ -149,6 +182,9 @@ public class Sphere extends ParseObject implements Parcelable {
             sphere.setThumbnail(new ParseFile(bundle.getByteArray(THUMBNAIL)));
             sphere.setImage(new ParseFile(bundle.getByteArray(IMAGE)));
             sphere.setCaption(bundle.getString(CAPTION));
+            if (bundle.containsKey(CROPPED_AREA)) {
+                sphere.setCrop(SphereCrop.fromArray(bundle.getIntArray(CROPPED_AREA)));
+            }
             LatLng location = bundle.getParcelable(COORDINATES);
             sphere.setCoordinates(new ParseGeoPoint(location.latitude, location.longitude));
             sphere.setUser((SphereUser) bundle.getParcelable(SPHERE_USER));
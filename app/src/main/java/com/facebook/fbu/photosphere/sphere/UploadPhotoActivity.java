@@ -7,10 +7,10 @@ import android.app.ProgressDialog;
 import android.content.Intent;
 import android.content.IntentSender;
 import android.graphics.Bitmap;
+import android.graphics.Rect;
 import android.location.Location;
 import android.net.Uri;
 import android.os.Bundle;
-import android.os.Handler;
 import android.provider.MediaStore;
 import android.support.v4.app.FragmentActivity;
 import android.util.Log;
@@ -23,12 +23,16 @@ import android.widget.Toast;
 
 import com.facebook.fbu.photosphere.sphere.Sphere.SpherePhotoType;
 import com.facebook.fbu.photosphere.spherelib.PhotoSphereConstructor;
+import com.facebook.fbu.photosphere.spherelib.SphereConstructionClient;
+import com.facebook.fbu.photosphere.spherelib.SphereCrop;
+import com.facebook.fbu.photosphere.spherelib.SpherePyramid;
 import com.google.android.gms.common.ConnectionResult;
 import com.google.android.gms.common.api.GoogleApiClient;
 import com.google.android.gms.location.LocationListener;
 import com.google.android.gms.location.LocationRequest;
 import com.google.android.gms.location.LocationServices;
 
+import java.io.File;
 import java.io.IOException;
 
 import static com.facebook.fbu.photosphere.sphere.Sphere.SpherePhotoType.PANORAMA;
@@ -39,6 +43,7 @@ import static com.facebook.fbu.photosphere.sphere.api.SphereAPI.addSphere;
 
 public class UploadPhotoActivity extends FragmentActivity implements
         SphereAddedCallback,
+        PhotoSphereConstructor.ConstructionCallback,
         GoogleApiClient.ConnectionCallbacks,
         GoogleApiClient.OnConnectionFailedListener,
         LocationListener {
@@ -61,25 +66,18 @@ public class UploadPhotoActivity extends FragmentActivity implements
 
     private Location mLocation;
     private Bitmap mBitmap;
+    // where mBitmap is in the sphere, or null if it is all of it
+    private SphereCrop mCrop;
     private GoogleApiClient mGoogleApiClient;
     private LocationRequest mLocationRequest;
 
-    private PhotoSphereConstructor mPhotoSphereConstructor;
-    private final Handler mHandler = new Handler();
-    private final Runnable mCommunicateWithConstructor = new Runnable() {
-        @Override
-        public void run() {
-            if (mPhotoSphereConstructor.isConstructionDone()) {
-                mBitmap = mPhotoSphereConstructor.getBitmap();
-                mPostButton.setBackgroundColor(getResources().getColor(R.color.teal));
-                mPostButton.setEnabled(true);
-            } else {
-                mHandler.postDelayed(mCommunicateWithConstructor, 20);
-            }
-            mUploadIcon.setImageDrawable(null);
-            mPhotoImage.invalidate();
-        }
-    };
+    // follows the construction in the service, which goes on if this activity is left
+    private SphereConstructionClient mConstructionClient;
+    private boolean mIsShowingPreview;
+    // whether a post is being uploaded, or waits for the sphere to be done
+    private boolean mIsPosting;
+    // whether the user posted before the full resolution sphere was done
+    private boolean mIsPostPending;
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
@@ -96,13 +94,12 @@ public class UploadPhotoActivity extends FragmentActivity implements
                 post();
             }
         });
-        if (getIntent().getBooleanExtra(CameraActivity.TAG, false) == true) {
-            // upload activity is being launched from camera activity
-            mPhotoSphereConstructor = PhotoSphereConstructor.getInstance();
-            mPhotoImage.setImageBitmap(mPhotoSphereConstructor.getBitmap());
-            mPostButton.setEnabled(false);
-            mPostButton.setBackgroundColor(getResources().getColor(R.color.light_medium_grey));
-            mHandler.post(mCommunicateWithConstructor);
+        String captureDirectory = getIntent().getStringExtra(CameraActivity.CAPTURE_DIRECTORY);
+        if (captureDirectory != null) {
+            // upload activity is being launched from camera activity or its notification
+            disablePostButton();
+            mConstructionClient = new SphereConstructionClient(this, new File(captureDirectory));
+            mConstructionClient.connect(this);
         } else {
             // unrelated photo upload
             mPhotoImage.setOnClickListener(new View.OnClickListener() {
@@ -178,19 +175,57 @@ public class UploadPhotoActivity extends FragmentActivity implements
      * handles the uploading of the user's entry data to parse
      */
     private void post() {
+        // the button is disabled while posting, but taps may already be queued
+        if (mIsPosting) {
+            return;
+        }
+        // the sphere of a capture can only be checked once it is done
+        if (mConstructionClient == null && !canUpload()) {
+            Toast.makeText(this, R.string.no_photo, Toast.LENGTH_SHORT).show();
+            return;
+        }
+        mIsPosting = true;
+        disablePostButton();
         mProgressDialog = ProgressDialog.show(
                 UploadPhotoActivity.this,
                 getResources().getString(R.string.app_name),
                 getResources().getString(R.string.uploading),
                 true);
+        // the user may post against the preview, the upload then starts once the full
+        // resolution sphere is done
+        if (mConstructionClient != null && !mConstructionClient.isConstructionDone()) {
+            mIsPostPending = true;
+            return;
+        }
+        upload();
+    }
+
+    // whether there is a photo, and it is a sphere or a panorama
+    private boolean canUpload() {
+        return mBitmap != null && (mCrop != null || isPanoOrSphere(mBitmap));
+    }
+
+    private void upload() {
         String caption = UXUtils.getText(mCaptionEditText);
         // if no img selected exit post
-        if (mBitmap == null || !isPanoOrSphere(mBitmap)) {
-            Toast.makeText(this, R.string.no_photo, Toast.LENGTH_SHORT).show();
+        if (!canUpload()) {
+            onPostFailed(R.string.no_photo);
             return;
         }
+        // the thumbnail is scaled from the smallest level of the tiles that is wide enough,
+        // instead of from the full resolution sphere, unless the sphere was cropped
+        Bitmap thumbnailSource = mBitmap;
+        SpherePyramid pyramid = mConstructionClient != null && mCrop == null
+                ? mConstructionClient.getPyramid()
+                : null;
+        if (pyramid != null) {
+            Bitmap level = pyramid.decodeLevel(pyramid.getLevelForWidth(MAX_UPLOAD_WIDTH_PX));
+            if (level != null) {
+                thumbnailSource = level;
+            }
+        }
         Bitmap scaledBitmap = Bitmap.createScaledBitmap(
-                mBitmap,
+                thumbnailSource,
                 MAX_UPLOAD_WIDTH_PX,
                 MAX_UPLOAD_WIDTH_PX * mBitmap.getHeight() / mBitmap.getWidth(),
                 false);
@@ -200,11 +235,95 @@ public class UploadPhotoActivity extends FragmentActivity implements
                 imageByteArray,
                 thumbnailByteArray,
                 mSpherePhotoType,
+                mCrop,
                 caption,
                 mLocation,
                 UploadPhotoActivity.this);
     }
 
+    @Override
+    public void onConstructionProgress(float progress, Rect dirtyRegion) {
+        // the preview looks better than a half drawn sphere, so we keep it until we are done
+        if (!mIsShowingPreview) {
+            mUploadIcon.setImageDrawable(null);
+            mPhotoImage.invalidate();
+        }
+    }
+
+    @Override
+    public void onPreviewReady(Bitmap preview) {
+        mIsShowingPreview = true;
+        mPhotoImage.setImageBitmap(preview);
+        mUploadIcon.setImageDrawable(null);
+        enablePostButton();
+    }
+
+    @Override
+    public void onConstructionDone(Bitmap bitmap) {
+        mBitmap = bitmap;
+        SphereCrop crop = mConstructionClient.getCrop();
+        mCrop = crop.isFull() ? null : crop;
+        mIsShowingPreview = false;
+        mPhotoImage.setImageBitmap(bitmap);
+        mUploadIcon.setImageDrawable(null);
+        // the viewer shows the sphere from its tiles
+        mPhotoImage.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                Intent viewerIntent = new Intent(UploadPhotoActivity.this, ViewerActivity.class);
+                viewerIntent.putExtra(
+                        ViewerActivity.CAPTURE_DIRECTORY,
+                        mConstructionClient.getCaptureDirectory().getPath());
+                startActivity(viewerIntent);
+            }
+        });
+        enablePostButton();
+        if (mIsPostPending) {
+            mIsPostPending = false;
+            upload();
+        }
+    }
+
+    @Override
+    public void onConstructionFailed(Throwable throwable) {
+        Log.e(TAG, "Sphere construction failed", throwable);
+        if (mProgressDialog != null) {
+            mProgressDialog.dismiss();
+        }
+        Toast.makeText(this, R.string.construction_error, Toast.LENGTH_SHORT).show();
+        finish();
+    }
+
+    // the service writes the sphere to the capture directory, no other file is asked for
+    @Override
+    public void onFileSaveFailed(Throwable throwable) {
+    }
+
+    // ends the post, so the user can post again
+    private void onPostFailed(int messageId) {
+        mIsPosting = false;
+        mIsPostPending = false;
+        if (mProgressDialog != null) {
+            mProgressDialog.dismiss();
+        }
+        enablePostButton();
+        Toast.makeText(this, messageId, Toast.LENGTH_SHORT).show();
+    }
+
+    private void enablePostButton() {
+        // the sphere may be done while a post waits for it, which still has to go through
+        if (mIsPosting) {
+            return;
+        }
+        mPostButton.setBackgroundColor(getResources().getColor(R.color.teal));
+        mPostButton.setEnabled(true);
+    }
+
+    private void disablePostButton() {
+        mPostButton.setEnabled(false);
+        mPostButton.setBackgroundColor(getResources().getColor(R.color.light_medium_grey));
+    }
+
     @Override
     public void onSphereAdded() {
         mProgressDialog.dismiss();
@@ -213,8 +332,7 @@ public class UploadPhotoActivity extends FragmentActivity implements
 
     @Override
     public void onSphereAddFailed() {
-        mProgressDialog.dismiss();
-        Toast.makeText(this, R.string.upload_error, Toast.LENGTH_SHORT).show();
+        onPostFailed(R.string.upload_error);
     }
 
     @Override
@@ -281,6 +399,14 @@ public class UploadPhotoActivity extends FragmentActivity implements
         mGoogleApiClient.connect();
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if (mConstructionClient != null) {
+            mConstructionClient.disconnect();
+        }
+    }
+
     @Override
     protected void onPause() {
         super.onPause();
@@ -8,11 +8,19 @@ import android.view.View;
 import android.widget.ImageView;
 import android.widget.Toast;
 
+import com.facebook.fbu.photosphere.spherelib.SphereCapture;
+import com.facebook.fbu.photosphere.spherelib.SphereCrop;
+import com.facebook.fbu.photosphere.spherelib.SpherePyramid;
 import com.facebook.fbu.photosphere.spherelib.SphereView;
 
+import java.io.File;
+
 public class ViewerActivity extends FragmentActivity {
     private static final String TAG = ViewerActivity.class.getSimpleName();
     public static final String IMAGE_URL = "IMAGE_URL";
+    public static final String CROPPED_AREA = "CROPPED_AREA";
+    // the capture directory of a sphere constructed on the device, shown from its tiles
+    public static final String CAPTURE_DIRECTORY = "CAPTURE_DIRECTORY";
     private SphereView mPhotosphereView;
 
     @Override
@@ -30,11 +38,29 @@ public class ViewerActivity extends FragmentActivity {
             finish();
         } else {
             String imageUrl = extras.getString(IMAGE_URL);
+            int[] croppedArea = extras.getIntArray(CROPPED_AREA);
+            String captureDirectory = extras.getString(CAPTURE_DIRECTORY);
             mPhotosphereView.setMode(SphereView.SphereViewMode.COMPASS);
             mPhotosphereView.setIsZoomAllowed(true);
             mPhotosphereView.setIsDoubleClickSwitchAllowed(true);
             mPhotosphereView.setKeepScreenOn(true);
-            mPhotosphereView.setImageUrl(imageUrl);
+            if (captureDirectory != null) {
+                // only the level of the tiles the zoomed out sphere needs is decoded
+                SpherePyramid pyramid = SphereCapture.readPyramid(new File(captureDirectory));
+                if (pyramid == null) {
+                    Toast.makeText(
+                            this,
+                            getString(R.string.photosphere_loading_error),
+                            Toast.LENGTH_SHORT).show();
+                    finish();
+                    return;
+                }
+                mPhotosphereView.setPyramid(pyramid);
+            } else {
+                mPhotosphereView.setImageUrl(
+                        imageUrl,
+                        croppedArea != null ? SphereCrop.fromArray(croppedArea) : null);
+            }
             final ImageView modeButton = (ImageView) findViewById(R.id.modes);
             modeButton.bringToFront();
             modeButton.setOnClickListener(new View.OnClickListener() {
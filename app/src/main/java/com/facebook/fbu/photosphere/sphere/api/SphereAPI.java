@@ -10,6 +10,7 @@ import android.util.Log;
 
 import com.facebook.fbu.photosphere.sphere.DispatchActivity;
 import com.facebook.fbu.photosphere.sphere.Sphere;
+import com.facebook.fbu.photosphere.spherelib.SphereCrop;
 import com.parse.FindCallback;
 import com.parse.LogInCallback;
 import com.parse.ParseACL;
@@ -53,6 +54,7 @@ public class SphereAPI {
      * @param imageByteArray      - the image file
      * @param thumbnailByteArray  - the thumbnail
      * @param spherePhotoType                - is the sphere a photosphere or not
+     * @param crop                - where the image is in the sphere, or null if it is all of it
      * @param caption             - the caption of the photo
      * @param location            - the location the photo was taken in
      * @param sphereAddedCallback - callback to trigger on upload of sphere
@@ -60,6 +62,7 @@ public class SphereAPI {
     public static void addSphere(byte[] imageByteArray,
                                  byte[] thumbnailByteArray,
                                  SpherePhotoType spherePhotoType,
+                                 SphereCrop crop,
                                  String caption,
                                  Location location,
                                  final SphereAddedCallback sphereAddedCallback) {
@@ -68,6 +71,9 @@ public class SphereAPI {
         sphere.setImage(new ParseFile(imageByteArray));
         sphere.setThumbnail(new ParseFile(thumbnailByteArray));
         sphere.setPhotoType(spherePhotoType);
+        if (crop != null) {
+            sphere.setCrop(crop);
+        }
         sphere.setCaption(caption);
         if (location != null) {
             sphere.setCoordinates(new ParseGeoPoint(
@@ -0,0 +1,195 @@
+// Copyright 2004-present Facebook. All Rights Reserved.
+
+package com.facebook.fbu.photosphere.spherecli;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads the JSON the stitcher is given its pictures in. Objects come out as maps, arrays as
+ * lists, numbers as doubles, and strings, booleans and null as themselves.
+ * It is only meant for small, trusted files, which is all the stitcher reads.
+ */
+public class JsonReader {
+
+    private final String mText;
+    private int mPosition;
+
+    private JsonReader(String text) {
+        mText = text;
+    }
+
+    public static Object parse(String text) {
+        JsonReader reader = new JsonReader(text);
+        Object value = reader.readValue();
+        reader.skipWhitespace();
+        if (reader.mPosition != text.length()) {
+            throw reader.error("Unexpected text after the value");
+        }
+        return value;
+    }
+
+    private Object readValue() {
+        skipWhitespace();
+        if (mPosition >= mText.length()) {
+            throw error("Unexpected end of the text");
+        }
+        char c = mText.charAt(mPosition);
+        switch (c) {
+            case '{':
+                return readObject();
+            case '[':
+                return readArray();
+            case '"':
+                return readString();
+            case 't':
+                expect("true");
+                return Boolean.TRUE;
+            case 'f':
+                expect("false");
+                return Boolean.FALSE;
+            case 'n':
+                expect("null");
+                return null;
+            default:
+                return readNumber();
+        }
+    }
+
+    private Map<String, Object> readObject() {
+        Map<String, Object> object = new LinkedHashMap<String, Object>();
+        mPosition++;
+        skipWhitespace();
+        if (peek() == '}') {
+            mPosition++;
+            return object;
+        }
+        while (true) {
+            skipWhitespace();
+            if (peek() != '"') {
+                throw error("Expected a key");
+            }
+            String key = readString();
+            skipWhitespace();
+            expect(":");
+            object.put(key, readValue());
+            skipWhitespace();
+            if (peek() == ',') {
+                mPosition++;
+            } else {
+                expect("}");
+                return object;
+            }
+        }
+    }
+
+    private List<Object> readArray() {
+        List<Object> array = new ArrayList<Object>();
+        mPosition++;
+        skipWhitespace();
+        if (peek() == ']') {
+            mPosition++;
+            return array;
+        }
+        while (true) {
+            array.add(readValue());
+            skipWhitespace();
+            if (peek() == ',') {
+                mPosition++;
+            } else {
+                expect("]");
+                return array;
+            }
+        }
+    }
+
+    private String readString() {
+        StringBuilder builder = new StringBuilder();
+        mPosition++;
+        while (true) {
+            if (mPosition >= mText.length()) {
+                throw error("Unterminated string");
+            }
+            char c = mText.charAt(mPosition++);
+            if (c == '"') {
+                return builder.toString();
+            }
+            if (c != '\\') {
+                builder.append(c);
+                continue;
+            }
+            if (mPosition >= mText.length()) {
+                throw error("Unterminated string");
+            }
+            char escaped = mText.charAt(mPosition++);
+            switch (escaped) {
+                case 'b':
+                    builder.append('\b');
+                    break;
+                case 'f':
+                    builder.append('\f');
+                    break;
+                case 'n':
+                    builder.append('\n');
+                    break;
+                case 'r':
+                    builder.append('\r');
+                    break;
+                case 't':
+                    builder.append('\t');
+                    break;
+                case 'u':
+                    if (mPosition + 4 > mText.length()) {
+                        throw error("Unterminated escape");
+                    }
+                    builder.append(
+                            (char) Integer.parseInt(mText.substring(mPosition, mPosition + 4), 16));
+                    mPosition += 4;
+                    break;
+                default:
+                    // \", \\ and \/ stand for themselves
+                    builder.append(escaped);
+                    break;
+            }
+        }
+    }
+
+    private Double readNumber() {
+        int start = mPosition;
+        while (mPosition < mText.length() && "+-0123456789.eE".indexOf(peek()) >= 0) {
+            mPosition++;
+        }
+        if (start == mPosition) {
+            throw error("Unexpected character");
+        }
+        try {
+            return Double.valueOf(mText.substring(start, mPosition));
+        } catch (NumberFormatException nfe) {
+            mPosition = start;
+            throw error("Malformed number");
+        }
+    }
+
+    private void expect(String token) {
+        if (!mText.startsWith(token, mPosition)) {
+            throw error("Expected " + token);
+        }
+        mPosition += token.length();
+    }
+
+    private char peek() {
+        return mPosition < mText.length() ? mText.charAt(mPosition) : 0;
+    }
+
+    private void skipWhitespace() {
+        while (mPosition < mText.length() && Character.isWhitespace(mText.charAt(mPosition))) {
+            mPosition++;
+        }
+    }
+
+    private IllegalArgumentException error(String message) {
+        return new IllegalArgumentException(message + " at character " + mPosition);
+    }
+}
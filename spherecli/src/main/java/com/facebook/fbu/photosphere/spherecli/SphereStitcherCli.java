@@ -0,0 +1,280 @@
+// Copyright 2004-present Facebook. All Rights Reserved.
+
+package com.facebook.fbu.photosphere.spherecli;
+
+import com.facebook.fbu.photosphere.spherecore.CubemapLayout;
+import com.facebook.fbu.photosphere.spherecore.EquirectangularLayout;
+import com.facebook.fbu.photosphere.spherecore.MatrixUtils;
+import com.facebook.fbu.photosphere.spherecore.PictureLayer;
+import com.facebook.fbu.photosphere.spherecore.PixelPicture;
+import com.facebook.fbu.photosphere.spherecore.SphereLayout;
+import com.facebook.fbu.photosphere.spherecore.SphereStitcher;
+import com.facebook.fbu.photosphere.spherecore.StreamingPngWriter;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Stitches a sphere out of a directory of JPEGs and the rotations they were taken at, with the
+ * same core the app stitches with, so captures can be stitched in batch on a server and the
+ * stitcher can be benchmarked on a desktop.
+ *
+ * The rotations file lists the pictures in the order they are drawn in, each one over the ones
+ * before it:
+ * <pre>
+ * {"pictures": [
+ *     {"file": "picture_0.jpg",
+ *      "rotation": [[1, 0, 0], [0, 1, 0], [0, 0, 1]],
+ *      "horizontalFov": 50, "verticalFov": 65,
+ *      "orientation": 90},
+ *     ...]}
+ * </pre>
+ * The rotation goes from the referential of the picture to the one of the sphere, as in
+ * SourcePicture. The fields of view are in degrees, and can be given instead as the
+ * "abstractWidth" and "abstractHeight" of the picture at distance 1 from the camera.
+ * The orientation is optional, and is how many degrees clockwise the JPEG must be turned to be
+ * upright, as camera JPEGs are often stored sideways. The rotation and the fields of view are
+ * those of the upright picture.
+ */
+public class SphereStitcherCli {
+
+    private static final String USAGE =
+            "usage: spherecli [options] <picture directory> <rotations.json> <output.png>\n"
+                    + "  --height <rows>    height of the sphere, 2048 by default\n"
+                    + "  --cubemap          draw a cubemap, with faces half as high as the sphere\n"
+                    + "  --adaptive         sample fewer columns towards the poles\n"
+                    + "  --bilinear         read the pictures bilinearly\n"
+                    + "  --sample <size>    read one pixel out of size by size of the pictures\n"
+                    + "  --threads <count>  threads to draw with, one per core by default\n";
+
+    // the number of rows drawn at a time by a thread
+    private static final int BAND_HEIGHT = 16;
+
+    private int mHeight = 2048;
+    private boolean mIsCubemap;
+    private boolean mIsLatitudeAdaptive;
+    private boolean mIsBilinear;
+    private int mSampleSize = 1;
+    private int mNumOfThreads = Runtime.getRuntime().availableProcessors();
+
+    public static void main(String[] args) {
+        SphereStitcherCli cli = new SphereStitcherCli();
+        List<String> paths = new ArrayList<String>();
+        try {
+            for (int k = 0; k < args.length; k++) {
+                String arg = args[k];
+                if (arg.equals("--height")) {
+                    cli.mHeight = Integer.parseInt(args[++k]);
+                } else if (arg.equals("--cubemap")) {
+                    cli.mIsCubemap = true;
+                } else if (arg.equals("--adaptive")) {
+                    cli.mIsLatitudeAdaptive = true;
+                } else if (arg.equals("--bilinear")) {
+                    cli.mIsBilinear = true;
+                } else if (arg.equals("--sample")) {
+                    cli.mSampleSize = Integer.parseInt(args[++k]);
+                } else if (arg.equals("--threads")) {
+                    cli.mNumOfThreads = Integer.parseInt(args[++k]);
+                } else if (arg.startsWith("--")) {
+                    throw new IllegalArgumentException("Unknown option " + arg);
+                } else {
+                    paths.add(arg);
+                }
+            }
+            if (paths.size() != 3) {
+                throw new IllegalArgumentException("Expected 3 paths, got " + paths.size());
+            }
+        } catch (RuntimeException re) {
+            // a bad number or a missing option value are usage errors as well
+            System.err.println(re.getMessage());
+            System.err.print(USAGE);
+            System.exit(2);
+        }
+
+        try {
+            cli.stitch(new File(paths.get(0)), new File(paths.get(1)), new File(paths.get(2)));
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    private void stitch(File pictureDirectory, File rotationsFile, File outputFile)
+            throws IOException {
+        long startTime = System.nanoTime();
+        List<PixelPicture> pictures = readPictures(pictureDirectory, rotationsFile);
+        long readTime = System.nanoTime();
+
+        SphereLayout layout = mIsCubemap
+                ? new CubemapLayout(mHeight / 2)
+                : new EquirectangularLayout(mHeight, mIsLatitudeAdaptive);
+        List<PictureLayer> layers = new ArrayList<PictureLayer>();
+        for (PixelPicture picture : pictures) {
+            layers.add(new PictureLayer(picture, mSampleSize, layout, mIsBilinear));
+        }
+        SphereStitcher stitcher = new SphereStitcher(layout, layers);
+
+        OutputStream outputStream =
+                new BufferedOutputStream(new FileOutputStream(outputFile), 64 * 1024);
+        try {
+            draw(stitcher, outputStream);
+        } finally {
+            outputStream.close();
+        }
+        long endTime = System.nanoTime();
+
+        long numOfPixels = (long) layout.getWidth() * layout.getHeight();
+        double stitchSeconds = (endTime - readTime) / 1e9;
+        System.out.println(String.format(
+                "Read %d pictures in %.2f s, stitched a %dx%d sphere in %.2f s "
+                        + "(%.1f megapixels/s on %d threads)",
+                pictures.size(),
+                (readTime - startTime) / 1e9,
+                layout.getWidth(),
+                layout.getHeight(),
+                stitchSeconds,
+                numOfPixels / 1e6 / stitchSeconds,
+                mNumOfThreads));
+    }
+
+    // draws the bands on the threads and writes them in order as they come, so only the bands
+    // in flight are ever in memory
+    private void draw(final SphereStitcher stitcher, OutputStream outputStream)
+            throws IOException {
+        final SphereLayout layout = stitcher.getLayout();
+        final int width = layout.getWidth();
+        final int height = layout.getHeight();
+        StreamingPngWriter pngWriter = new StreamingPngWriter(outputStream, width, height);
+        ExecutorService executorService = Executors.newFixedThreadPool(mNumOfThreads);
+        Deque<Future<int[]>> pendingBands = new ArrayDeque<Future<int[]>>();
+        try {
+            int nextRow = 0;
+            while (nextRow < height || !pendingBands.isEmpty()) {
+                // a few bands ahead per thread keeps them all busy while the writer catches up
+                while (nextRow < height && pendingBands.size() < 2 * mNumOfThreads) {
+                    final int firstRow = nextRow;
+                    final int lastRow = Math.min(height, firstRow + BAND_HEIGHT) - 1;
+                    pendingBands.add(executorService.submit(new Callable<int[]>() {
+                        @Override
+                        public int[] call() {
+                            int[] pixels = new int[width * (lastRow - firstRow + 1)];
+                            stitcher.drawBand(pixels, firstRow, lastRow);
+                            return pixels;
+                        }
+                    }));
+                    nextRow = lastRow + 1;
+                }
+                int[] pixels = pendingBands.removeFirst().get();
+                pngWriter.writeRows(pixels, 0, pixels.length / width);
+            }
+            pngWriter.finish();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while stitching", ie);
+        } catch (ExecutionException ee) {
+            throw new RuntimeException("Failed to draw a band", ee.getCause());
+        } finally {
+            executorService.shutdownNow();
+            pngWriter.close();
+        }
+    }
+
+    private List<PixelPicture> readPictures(File pictureDirectory, File rotationsFile)
+            throws IOException {
+        String json = new String(
+                Files.readAllBytes(rotationsFile.toPath()),
+                Charset.forName("UTF-8"));
+        Map<?, ?> root = (Map<?, ?>) JsonReader.parse(json);
+        List<?> entries = (List<?>) root.get("pictures");
+        if (entries == null) {
+            throw new IllegalArgumentException("No pictures in " + rotationsFile);
+        }
+
+        List<PixelPicture> pictures = new ArrayList<PixelPicture>();
+        for (Object entry : entries) {
+            Map<?, ?> description = (Map<?, ?>) entry;
+            File file = new File(pictureDirectory, (String) description.get("file"));
+            BufferedImage image = ImageIO.read(file);
+            if (image == null) {
+                throw new IOException("Can't decode " + file);
+            }
+            int width = image.getWidth();
+            int height = image.getHeight();
+            int[] pixels = image.getRGB(0, 0, width, height, null, 0, width);
+
+            float abstractWidth;
+            float abstractHeight;
+            if (description.containsKey("abstractWidth")) {
+                abstractWidth = getFloat(description, "abstractWidth");
+                abstractHeight = getFloat(description, "abstractHeight");
+            } else {
+                abstractWidth = PixelPicture.getAbstractSize(getFloat(description, "horizontalFov"));
+                abstractHeight = PixelPicture.getAbstractSize(getFloat(description, "verticalFov"));
+            }
+
+            // the pixels are drawn as they are stored, it is the rotation that is turned
+            int orientation = description.containsKey("orientation")
+                    ? ((Number) description.get("orientation")).intValue()
+                    : 0;
+            if (orientation % 180 != 0) {
+                float swap = abstractWidth;
+                abstractWidth = abstractHeight;
+                abstractHeight = swap;
+            }
+
+            pictures.add(new PixelPicture(
+                    pixels,
+                    width,
+                    height,
+                    MatrixUtils.turnPicture(getMatrix(description, "rotation"), orientation),
+                    abstractWidth,
+                    abstractHeight,
+                    orientation));
+        }
+        return pictures;
+    }
+
+    private static float getFloat(Map<?, ?> description, String key) {
+        Object value = description.get(key);
+        if (!(value instanceof Number)) {
+            throw new IllegalArgumentException("Missing " + key + " in " + description);
+        }
+        return ((Number) value).floatValue();
+    }
+
+    private static float[][] getMatrix(Map<?, ?> description, String key) {
+        List<?> rows = (List<?>) description.get(key);
+        if (rows == null || rows.size() != 3) {
+            throw new IllegalArgumentException("Expected a 3x3 " + key + " in " + description);
+        }
+        float[][] matrix = new float[3][3];
+        for (int r = 0; r < 3; r++) {
+            List<?> row = (List<?>) rows.get(r);
+            if (row.size() != 3) {
+                throw new IllegalArgumentException("Expected a 3x3 " + key + " in " + description);
+            }
+            for (int c = 0; c < 3; c++) {
+                matrix[r][c] = ((Number) row.get(c)).floatValue();
+            }
+        }
+        return matrix;
+    }
+}
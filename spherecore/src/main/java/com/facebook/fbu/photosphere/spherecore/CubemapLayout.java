@@ -0,0 +1,185 @@
+// Copyright 2004-present Facebook. All Rights Reserved.
+
+package com.facebook.fbu.photosphere.spherecore;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The layout of a cubemap, where the sphere is projected from its center on the six faces of a
+ * cube, laid out in 3 columns and 2 rows of faceSize x faceSize squares.
+ * The four faces around the horizon come first, in the same order as the columns of an
+ * equirectangular image: three of them fill the first row, and the fourth one starts the second
+ * row, followed by the faces of the poles, the one at the top of an equirectangular image first.
+ * Every square is a face, so every pixel has a direction.
+ * Each face is a plane, so going from a pixel to its direction, or from a picture to a face, is a
+ * projective transform with no trigonometry.
+ */
+public class CubemapLayout implements SphereLayout {
+
+    public static final int NUM_OF_FACES = 6;
+    public static final int FACES_PER_ROW = 3;
+
+    // for every face, the direction of its center, and the directions in which its columns and
+    // its rows go
+    private static final float[][] CENTERS = new float[][]{
+            {0, 1, 0}, {0, 0, 1}, {0, -1, 0}, {0, 0, -1}, {-1, 0, 0}, {1, 0, 0}
+    };
+    private static final float[][] RIGHTS = new float[][]{
+            {0, 0, 1}, {0, -1, 0}, {0, 0, -1}, {0, 1, 0}, {0, 0, 1}, {0, 0, 1}
+    };
+    private static final float[][] DOWNS = new float[][]{
+            {1, 0, 0}, {1, 0, 0}, {1, 0, 0}, {1, 0, 0}, {0, 1, 0}, {0, -1, 0}
+    };
+
+    // parts of a picture closer than this to the plane of a face, or behind it, can't be on it
+    private static final float CLIPPING_DISTANCE = 0.001f;
+
+    private final int mFaceSize;
+    // the coordinate, from -1 to 1, of the centers of the pixels of a face
+    private final float[] mCoordinates;
+
+    public CubemapLayout(int faceSize) {
+        mFaceSize = faceSize;
+        mCoordinates = new float[faceSize];
+        for (int u = 0; u < faceSize; u++) {
+            mCoordinates[u] = (2 * u + 1.0f) / faceSize - 1;
+        }
+    }
+
+    public int getFaceSize() {
+        return mFaceSize;
+    }
+
+    @Override
+    public int getWidth() {
+        return FACES_PER_ROW * mFaceSize;
+    }
+
+    @Override
+    public int getHeight() {
+        return (NUM_OF_FACES / FACES_PER_ROW) * mFaceSize;
+    }
+
+    public int getFaceLeft(int face) {
+        return (face % FACES_PER_ROW) * mFaceSize;
+    }
+
+    public int getFaceTop(int face) {
+        return (face / FACES_PER_ROW) * mFaceSize;
+    }
+
+    @Override
+    public void getDirection(int i, int j, float[] direction) {
+        int face = (j / mFaceSize) * FACES_PER_ROW + i / mFaceSize;
+        getDirection(face, mCoordinates[i % mFaceSize], mCoordinates[j % mFaceSize], direction);
+    }
+
+    // the pixels of a face are never more than about twice as close as those of another one
+    @Override
+    public int getColumnStride(int j) {
+        return 1;
+    }
+
+    @Override
+    public int getBlockSize() {
+        return mFaceSize;
+    }
+
+    /**
+     * Writes the direction of the point of a face at coordinates (a, b) into direction, where
+     * (-1, -1) is the top left corner of the face and (1, 1) its bottom right one.
+     */
+    public static void getDirection(int face, float a, float b, float[] direction) {
+        for (int k = 0; k < 3; k++) {
+            direction[k] = CENTERS[face][k] + a * RIGHTS[face][k] + b * DOWNS[face][k];
+        }
+    }
+
+    @Override
+    public int[][] getWindows(
+            float[][] rotationMatrix,
+            float abstractWidth,
+            float abstractHeight) {
+        // the corners of the picture frame, in order around the frame
+        float[][] corners = new float[][]{
+                {-abstractWidth / 2, -abstractHeight / 2, 1},
+                {abstractWidth / 2, -abstractHeight / 2, 1},
+                {abstractWidth / 2, abstractHeight / 2, 1},
+                {-abstractWidth / 2, abstractHeight / 2, 1}
+        };
+        for (int k = 0; k < 4; k++) {
+            corners[k] = MatrixUtils.multiply(corners[k], rotationMatrix);
+        }
+
+        List<int[]> windows = new ArrayList<int[]>();
+        for (int face = 0; face < NUM_OF_FACES; face++) {
+            // the sides of the picture are great circle arcs, which the projection on the plane
+            // of a face turns into straight lines, so the picture lands inside the bounding box
+            // of its corners once the part behind the face is clipped
+            List<float[]> polygon = clip(corners, CENTERS[face]);
+            if (polygon.isEmpty()) {
+                continue;
+            }
+
+            float minA = Float.MAX_VALUE;
+            float maxA = -Float.MAX_VALUE;
+            float minB = Float.MAX_VALUE;
+            float maxB = -Float.MAX_VALUE;
+            for (float[] point : polygon) {
+                float depth = MatrixUtils.dot(point, CENTERS[face]);
+                float a = MatrixUtils.dot(point, RIGHTS[face]) / depth;
+                float b = MatrixUtils.dot(point, DOWNS[face]) / depth;
+                minA = Math.min(minA, a);
+                maxA = Math.max(maxA, a);
+                minB = Math.min(minB, b);
+                maxB = Math.max(maxB, b);
+            }
+            if (maxA < -1 || minA > 1 || maxB < -1 || minB > 1) {
+                continue;
+            }
+
+            windows.add(new int[]{
+                    getFaceLeft(face) + toFirstPixel(minA),
+                    getFaceLeft(face) + toLastPixel(maxA),
+                    getFaceTop(face) + toFirstPixel(minB),
+                    getFaceTop(face) + toLastPixel(maxB)
+            });
+        }
+        return windows.toArray(new int[windows.size()][]);
+    }
+
+    // first pixel of a face whose center may be at coordinate c or after it, with a margin
+    private int toFirstPixel(float c) {
+        float u = Math.max(-1, c);
+        return Math.max(0, (int) Math.floor(((u + 1) * mFaceSize - 1) / 2) - 1);
+    }
+
+    // last pixel of a face whose center may be at coordinate c or before it, with a margin
+    private int toLastPixel(float c) {
+        float u = Math.min(1, c);
+        return Math.min(mFaceSize - 1, (int) Math.ceil(((u + 1) * mFaceSize - 1) / 2) + 1);
+    }
+
+    // the part of a polygon that is in front of the plane of the face whose center is given
+    private static List<float[]> clip(float[][] polygon, float[] center) {
+        List<float[]> clipped = new ArrayList<float[]>();
+        for (int k = 0; k < polygon.length; k++) {
+            float[] current = polygon[k];
+            float[] next = polygon[(k + 1) % polygon.length];
+            float currentDistance = MatrixUtils.dot(current, center) - CLIPPING_DISTANCE;
+            float nextDistance = MatrixUtils.dot(next, center) - CLIPPING_DISTANCE;
+
+            if (currentDistance >= 0) {
+                clipped.add(current);
+            }
+            if ((currentDistance >= 0) != (nextDistance >= 0)) {
+                float t = currentDistance / (currentDistance - nextDistance);
+                clipped.add(MatrixUtils.add(
+                        current,
+                        MatrixUtils.multiply(MatrixUtils.subtract(next, current), t)));
+            }
+        }
+        return clipped;
+    }
+}
@@ -0,0 +1,85 @@
+// Copyright 2004-present Facebook. All Rights Reserved.
+
+package com.facebook.fbu.photosphere.spherecore;
+
+/**
+ * The layout of a 2:1 equirectangular image, where columns go around the sphere and rows go from
+ * pole to pole.
+ * Every row is as wide as the equator, although the parallel it stands for is shorter by the
+ * cosine of its latitude, so a latitude adaptive layout groups the columns of the rows near the
+ * poles in as many columns as fit in the width of one at the equator.
+ */
+public class EquirectangularLayout implements SphereLayout {
+
+    private final int mWidth;
+    private final int mHeight;
+    private final SphereDirections mDirections;
+    private final int[] mColumnStrides;
+
+    public EquirectangularLayout(int height) {
+        this(height, false);
+    }
+
+    public EquirectangularLayout(int height, boolean isLatitudeAdaptive) {
+        mWidth = 2 * height;
+        mHeight = height;
+        mDirections = SphereDirections.forEquirectangular(mWidth, mHeight);
+
+        mColumnStrides = new int[height];
+        for (int j = 0; j < height; j++) {
+            float cosLatitude = mDirections.getCosLatitude(j);
+            if (!isLatitudeAdaptive) {
+                mColumnStrides[j] = 1;
+            } else if (cosLatitude * mWidth <= 1) {
+                // the row of the pole is a single point
+                mColumnStrides[j] = mWidth;
+            } else {
+                mColumnStrides[j] = Math.max(1, (int) (1 / cosLatitude));
+            }
+        }
+    }
+
+    @Override
+    public int getWidth() {
+        return mWidth;
+    }
+
+    @Override
+    public int getHeight() {
+        return mHeight;
+    }
+
+    @Override
+    public void getDirection(int i, int j, float[] direction) {
+        mDirections.getDirection(i, j, direction);
+    }
+
+    @Override
+    public int getColumnStride(int j) {
+        return mColumnStrides[j];
+    }
+
+    // the image is in one piece, the first and last columns are even next to each other
+    @Override
+    public int getBlockSize() {
+        return mWidth;
+    }
+
+    @Override
+    public int[][] getWindows(
+            float[][] rotationMatrix,
+            float abstractWidth,
+            float abstractHeight) {
+        SphereFootprint footprint =
+                SphereFootprint.of(rotationMatrix, abstractWidth, abstractHeight);
+        int firstRow = footprint.getFirstRow(mHeight);
+        int lastRow = footprint.getLastRow(mHeight);
+
+        int[][] segments = footprint.getColumnSegments(mWidth);
+        int[][] windows = new int[segments.length][];
+        for (int k = 0; k < segments.length; k++) {
+            windows[k] = new int[]{segments[k][0], segments[k][1], firstRow, lastRow};
+        }
+        return windows;
+    }
+}
@@ -1,6 +1,6 @@
 // Copyright 2004-present Facebook. All Rights Reserved.
 
-package com.facebook.fbu.photosphere.spherelib;
+package com.facebook.fbu.photosphere.spherecore;
 
 
 
@@ -224,4 +224,22 @@ public class MatrixUtils {
         return I;
     }
 
+    /**
+     * The rotation matrix of a picture as it is stored, from the one of the upright picture,
+     * when the stored picture must be turned orientation degrees clockwise to be upright.
+     * The picture can then be drawn from its pixels as they are, without turning them first.
+     */
+    public static float[][] turnPicture(float[][] uprightRotation, int orientation) {
+        float[][] rotation = uprightRotation;
+        for (int turns = ((orientation / 90) % 4 + 4) % 4; turns > 0; turns--) {
+            // the x axis of the stored picture is the y axis of the upright one, and its y axis
+            // is the x axis of the upright one, reversed
+            rotation = new float[][]{
+                    rotation[1].clone(),
+                    multiply(rotation[0], -1),
+                    rotation[2].clone()};
+        }
+        return rotation;
+    }
+
 }
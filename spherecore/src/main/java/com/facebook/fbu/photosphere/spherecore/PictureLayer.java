@@ -0,0 +1,327 @@
+// Copyright 2004-present Facebook. All Rights Reserved.
+
+package com.facebook.fbu.photosphere.spherecore;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * What it takes to draw a picture in a sphere of a given layout, computed once for all bands.
+ * Each pixel of the picture counts fully inside an inner rectangle and fades out towards its
+ * borders, so that pictures blend into each other where they overlap.
+ */
+public class PictureLayer {
+
+    private final SourcePicture mPicture;
+    private final int mSampleSize;
+    private final int mSourceWidth;
+    private final int mSourceHeight;
+    private final int mFadeDistance;
+    private final InnerRect mInnerRect;
+    private final ProjectionKernel mKernel;
+    private final boolean mIsBilinear;
+
+    private final SphereLayout mLayout;
+    // the {firstColumn, lastColumn, firstRow, lastRow} windows of the target it can reach
+    private final int[][] mWindows;
+    private final int mFirstRow;
+    private final int mLastRow;
+
+    // the pixels are only kept while some band still has to draw this picture
+    private final AtomicInteger mNumOfBandsLeft = new AtomicInteger();
+    private int[] mSourcePixels;
+
+    public PictureLayer(
+            SourcePicture picture,
+            int sampleSize,
+            SphereLayout layout,
+            boolean isBilinear) {
+        mPicture = picture;
+        mSampleSize = sampleSize;
+        mSourceWidth = picture.getWidth() / sampleSize;
+        mSourceHeight = picture.getHeight() / sampleSize;
+        // pictures fade out over a sixth of their upright width, and over a sixth of their
+        // upright height on their first rows, whichever way they are stored, and over at least
+        // a pixel, as heavily sampled pictures can be only a few pixels long
+        int turns = ((picture.getOrientation() / 90) % 4 + 4) % 4;
+        int uprightWidth = turns % 2 == 0 ? mSourceWidth : mSourceHeight;
+        int uprightHeight = turns % 2 == 0 ? mSourceHeight : mSourceWidth;
+        mFadeDistance = Math.max(1, uprightWidth / 6);
+        mInnerRect = InnerRect.fromUpright(
+                uprightWidth / 6,
+                uprightWidth * 5 / 6,
+                uprightHeight / 6,
+                uprightHeight - uprightWidth / 6,
+                turns,
+                mSourceWidth,
+                mSourceHeight);
+        mKernel = new ProjectionKernel(
+                picture.getRotationMatrix(),
+                picture.getAbstractWidth(),
+                picture.getAbstractHeight(),
+                mSourceWidth,
+                mSourceHeight);
+        mIsBilinear = isBilinear;
+
+        // we only go over the rows and columns that the picture can reach
+        mLayout = layout;
+        mWindows = layout.getWindows(
+                picture.getRotationMatrix(),
+                picture.getAbstractWidth(),
+                picture.getAbstractHeight());
+        int firstRow = layout.getHeight();
+        int lastRow = -1;
+        for (int[] window : mWindows) {
+            firstRow = Math.min(firstRow, window[2]);
+            lastRow = Math.max(lastRow, window[3]);
+        }
+        mFirstRow = firstRow;
+        mLastRow = lastRow;
+    }
+
+    public SourcePicture getPicture() {
+        return mPicture;
+    }
+
+    public int getSourceWidth() {
+        return mSourceWidth;
+    }
+
+    public int getSourceHeight() {
+        return mSourceHeight;
+    }
+
+    public boolean isBilinear() {
+        return mIsBilinear;
+    }
+
+    public int[][] getWindows() {
+        return mWindows;
+    }
+
+    public int getFirstRow() {
+        return mFirstRow;
+    }
+
+    public int getLastRow() {
+        return mLastRow;
+    }
+
+    public boolean reaches(int firstRow, int lastRow) {
+        return mFirstRow <= lastRow && mLastRow >= firstRow;
+    }
+
+    // we read the whole picture once, instead of reading a pixel for every output pixel
+    public synchronized int[] getSourcePixels() {
+        if (mSourcePixels == null) {
+            mSourcePixels = mPicture.readPixels(mSampleSize);
+        }
+        return mSourcePixels;
+    }
+
+    // whether the pixels are read, so subclasses can keep track of the memory they take
+    protected synchronized boolean hasSourcePixels() {
+        return mSourcePixels != null;
+    }
+
+    // one more band has to draw this picture before its pixels can go
+    public void expectBand() {
+        mNumOfBandsLeft.incrementAndGet();
+    }
+
+    public synchronized void onBandDrawn() {
+        if (mNumOfBandsLeft.decrementAndGet() == 0) {
+            releaseSourcePixels();
+        }
+    }
+
+    public synchronized void releaseSourcePixels() {
+        mSourcePixels = null;
+        onSourcePixelsReleased();
+    }
+
+    // lets subclasses free whatever they made from the pixels
+    protected void onSourcePixelsReleased() {
+    }
+
+    /**
+     * Finds the color this picture gives to every column of row j it can reach, and the
+     * alpha given by the distance to the inner rectangle, or -1 where the picture doesn't
+     * reach after all. Column i goes to index offset + i of colors and alphas.
+     * If columnMask is not null, only the columns set in it are sampled.
+     * Columns the layout groups together all get the sample of the middle one.
+     * direction is only there to be written to, so nothing is allocated per row.
+     */
+    public void sampleRow(
+            int j,
+            int[] colors,
+            int[] alphas,
+            int offset,
+            boolean[] columnMask,
+            float[] direction) {
+        sampleRow(j, 0, mLayout.getWidth() - 1, colors, alphas, offset, columnMask, direction);
+    }
+
+    // same as above, for the columns from firstColumn to lastColumn only
+    public void sampleRow(
+            int j,
+            int firstColumn,
+            int lastColumn,
+            int[] colors,
+            int[] alphas,
+            int offset,
+            boolean[] columnMask,
+            float[] direction) {
+        int[] sourcePixels = getSourcePixels();
+        int stride = mLayout.getColumnStride(j);
+
+        for (int[] window : mWindows) {
+            if (j < window[2] || j > window[3]) {
+                continue;
+            }
+            int sampledColumn = -1;
+            long position = ProjectionKernel.NO_POSITION;
+            int color = 0;
+            int alpha = -1;
+            for (int i = Math.max(window[0], firstColumn);
+                    i <= Math.min(window[1], lastColumn); i++) {
+                if (columnMask != null && !columnMask[i]) {
+                    continue;
+                }
+
+                // the group is cut at the borders of the window, which the picture can't
+                // reach past anyway
+                int groupFirst = Math.max(window[0], i - i % stride);
+                int groupLast = Math.min(window[1], i - i % stride + stride - 1);
+                int column = (groupFirst + groupLast) / 2;
+                if (column != sampledColumn) {
+                    sampledColumn = column;
+                    mLayout.getDirection(column, j, direction);
+                    position = mKernel.project(direction[0], direction[1], direction[2]);
+                    if (position != ProjectionKernel.NO_POSITION) {
+                        color = mIsBilinear
+                                ? mKernel.sampleBilinear(sourcePixels, position)
+                                : mKernel.sampleNearest(sourcePixels, position);
+                        alpha = getAlpha(
+                                ProjectionKernel.getX(position),
+                                ProjectionKernel.getY(position));
+                    }
+                }
+
+                if (position == ProjectionKernel.NO_POSITION) {
+                    alphas[offset + i] = -1;
+                    continue;
+                }
+                colors[offset + i] = color;
+                alphas[offset + i] = alpha;
+            }
+        }
+    }
+
+    /**
+     * Draws row j, as it was sampled by sampleRow(), on the row of pixels that starts at
+     * rowOffset, only in the columns set in columnMask, or in all of them if it is null.
+     */
+    public void blendRow(
+            int j,
+            int[] pixels,
+            int rowOffset,
+            int[] rowColors,
+            int[] rowAlphas,
+            boolean[] columnMask) {
+        blendRow(j, 0, Integer.MAX_VALUE, pixels, rowOffset, rowColors, rowAlphas, columnMask);
+    }
+
+    // same as above, for the columns from firstColumn to lastColumn only
+    public void blendRow(
+            int j,
+            int firstColumn,
+            int lastColumn,
+            int[] pixels,
+            int rowOffset,
+            int[] rowColors,
+            int[] rowAlphas,
+            boolean[] columnMask) {
+        for (int[] window : mWindows) {
+            if (j < window[2] || j > window[3]) {
+                continue;
+            }
+            for (int i = Math.max(window[0], firstColumn);
+                    i <= Math.min(window[1], lastColumn); i++) {
+                if (rowAlphas[i] < 0 || (columnMask != null && !columnMask[i])) {
+                    continue;
+                }
+                // we first draw our picture behind everything that has been drawn, and then in
+                // front of it with the alpha given by the distance to the inner rectangle
+                int blended = PixelBlender.dstOver(pixels[rowOffset + i], rowColors[i]);
+                pixels[rowOffset + i] = PixelBlender.srcOver(blended, rowColors[i], rowAlphas[i]);
+            }
+        }
+    }
+
+    // how much the pixel at x, y counts, fading out away from the inner rectangle
+    private int getAlpha(int x, int y) {
+        return Math.max(
+                0,
+                255
+                        - (255 * mInnerRect.distanceSquaredTo(x, y))
+                        / mFadeDistance / mFadeDistance);
+    }
+
+    private static class InnerRect {
+        private int xmin;
+        private int xmax;
+        private int ymin;
+        private int ymax;
+
+        InnerRect(int l, int r, int b, int t) {
+            xmin = l;
+            xmax = r;
+            ymin = b;
+            ymax = t;
+        }
+
+        // the rectangle l..r, b..t of the upright picture, in the pixels of the picture turned
+        // the given number of quarter turns from upright, width by height as it is stored
+        static InnerRect fromUpright(
+                int l,
+                int r,
+                int b,
+                int t,
+                int turns,
+                int width,
+                int height) {
+            switch (turns) {
+                case 1:
+                    return new InnerRect(b, t, height - 1 - r, height - 1 - l);
+                case 2:
+                    return new InnerRect(
+                            width - 1 - r,
+                            width - 1 - l,
+                            height - 1 - t,
+                            height - 1 - b);
+                case 3:
+                    return new InnerRect(width - 1 - t, width - 1 - b, l, r);
+                default:
+                    return new InnerRect(l, r, b, t);
+            }
+        }
+
+        public int distanceSquaredTo(int x, int y) {
+            int dx = 0, dy = 0;
+            if (x < xmin) {
+                dx = x - xmin;
+            } else if (x > xmax) {
+                dx = x - xmax;
+            }
+
+            if (y < ymin) {
+                dy = y - ymin;
+            } else if (y > ymax) {
+                dy = y - ymax;
+            }
+
+            return dx * dx + dy * dy;
+        }
+
+    }
+}
@@ -0,0 +1,61 @@
+// Copyright 2004-present Facebook. All Rights Reserved.
+
+package com.facebook.fbu.photosphere.spherecore;
+
+/**
+ * Porter-Duff compositing on packed ARGB ints, so pixels can be blended in plain arithmetic
+ * instead of going through a Canvas and a Paint for every single point.
+ * Colors are non-premultiplied, the same as Bitmap.getPixels() and Bitmap.setPixels() use.
+ */
+public class PixelBlender {
+
+    // same as drawing a point of the given color with a DST_OVER paint
+    public static int dstOver(int dst, int color) {
+        return over(dst, color);
+    }
+
+    // same as drawing a point of the given color with a SRC_OVER paint whose alpha was set to
+    // the given alpha (Paint.setAlpha() replaces the alpha of the color)
+    public static int srcOver(int dst, int color, int alpha) {
+        return over(withAlpha(color, alpha), dst);
+    }
+
+    public static int withAlpha(int color, int alpha) {
+        return (alpha << 24) | (color & 0x00ffffff);
+    }
+
+    // composites top over bottom
+    public static int over(int top, int bottom) {
+        int topAlpha = top >>> 24;
+        if (topAlpha == 255) {
+            return top;
+        }
+        if (topAlpha == 0) {
+            return bottom;
+        }
+
+        int bottomAlpha = bottom >>> 24;
+        if (bottomAlpha == 0) {
+            return top;
+        }
+
+        // the bottom layer only shows through the part that the top one doesn't cover
+        int bottomWeight = divideBy255(bottomAlpha * (255 - topAlpha));
+        int outAlpha = topAlpha + bottomWeight;
+
+        int red = (((top >> 16) & 0xff) * topAlpha + ((bottom >> 16) & 0xff) * bottomWeight
+                + outAlpha / 2) / outAlpha;
+        int green = (((top >> 8) & 0xff) * topAlpha + ((bottom >> 8) & 0xff) * bottomWeight
+                + outAlpha / 2) / outAlpha;
+        int blue = ((top & 0xff) * topAlpha + (bottom & 0xff) * bottomWeight
+                + outAlpha / 2) / outAlpha;
+
+        return (outAlpha << 24) | (red << 16) | (green << 8) | blue;
+    }
+
+    // rounded division by 255 for values in [0, 255 * 255]
+    private static int divideBy255(int value) {
+        value += 128;
+        return (value + (value >> 8)) >> 8;
+    }
+}
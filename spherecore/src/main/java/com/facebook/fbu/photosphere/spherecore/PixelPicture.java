@@ -0,0 +1,102 @@
+// Copyright 2004-present Facebook. All Rights Reserved.
+
+package com.facebook.fbu.photosphere.spherecore;
+
+/**
+ * A picture whose pixels are already in an array.
+ */
+public class PixelPicture implements SourcePicture {
+
+    private final int[] mPixels;
+    private final int mWidth;
+    private final int mHeight;
+    private final float[][] mRotationMatrix;
+    private final float mAbstractWidth;
+    private final float mAbstractHeight;
+    private final int mOrientation;
+
+    public PixelPicture(
+            int[] pixels,
+            int width,
+            int height,
+            float[][] rotationMatrix,
+            float abstractWidth,
+            float abstractHeight,
+            int orientation) {
+        mPixels = pixels;
+        mWidth = width;
+        mHeight = height;
+        mRotationMatrix = rotationMatrix;
+        mAbstractWidth = abstractWidth;
+        mAbstractHeight = abstractHeight;
+        mOrientation = orientation;
+    }
+
+    // the abstract size of a picture that spans the given field of view, in degrees
+    public static float getAbstractSize(double fieldOfView) {
+        return (float) (2 * Math.tan(Math.toRadians(fieldOfView) / 2));
+    }
+
+    @Override
+    public float[][] getRotationMatrix() {
+        return mRotationMatrix;
+    }
+
+    @Override
+    public float getAbstractWidth() {
+        return mAbstractWidth;
+    }
+
+    @Override
+    public float getAbstractHeight() {
+        return mAbstractHeight;
+    }
+
+    @Override
+    public int getOrientation() {
+        return mOrientation;
+    }
+
+    @Override
+    public int getWidth() {
+        return mWidth;
+    }
+
+    @Override
+    public int getHeight() {
+        return mHeight;
+    }
+
+    // each pixel of the scaled down picture is the average of the ones it stands for
+    @Override
+    public int[] readPixels(int sampleSize) {
+        if (sampleSize == 1) {
+            return mPixels;
+        }
+        int width = mWidth / sampleSize;
+        int height = mHeight / sampleSize;
+        int[] pixels = new int[width * height];
+        int count = sampleSize * sampleSize;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int alpha = 0;
+                int red = 0;
+                int green = 0;
+                int blue = 0;
+                for (int v = 0; v < sampleSize; v++) {
+                    int rowOffset = (y * sampleSize + v) * mWidth + x * sampleSize;
+                    for (int u = 0; u < sampleSize; u++) {
+                        int pixel = mPixels[rowOffset + u];
+                        alpha += pixel >>> 24;
+                        red += (pixel >> 16) & 0xff;
+                        green += (pixel >> 8) & 0xff;
+                        blue += pixel & 0xff;
+                    }
+                }
+                pixels[y * width + x] = ((alpha / count) << 24) | ((red / count) << 16)
+                        | ((green / count) << 8) | (blue / count);
+            }
+        }
+        return pixels;
+    }
+}
@@ -0,0 +1,124 @@
+// Copyright 2004-present Facebook. All Rights Reserved.
+
+package com.facebook.fbu.photosphere.spherecore;
+
+/**
+ * Projects directions of the sphere on the pixels of a picture without allocating anything, as
+ * it runs for every pixel of the sphere. The rotation of the picture is read once, when the
+ * kernel is made, so a projection costs three dot products and a division.
+ * A position on the picture is packed in a long, with SUBPIXEL_BITS bits of fraction on each
+ * axis, and pixels are read from it either from the nearest pixel or bilinearly.
+ */
+public class ProjectionKernel {
+
+    public static final int SUBPIXEL_BITS = 8;
+    // the position of a direction the picture doesn't reach
+    public static final long NO_POSITION = -1;
+
+    private static final int SUBPIXEL_SCALE = 1 << SUBPIXEL_BITS;
+    private static final int SUBPIXEL_MASK = SUBPIXEL_SCALE - 1;
+
+    // the rotation of the picture, in rows
+    private final float mR00, mR01, mR02;
+    private final float mR10, mR11, mR12;
+    private final float mR20, mR21, mR22;
+
+    private final int mSourceWidth;
+    private final int mSourceHeight;
+    private final float mScaleX;
+    private final float mScaleY;
+
+    public ProjectionKernel(
+            float[][] rotationMatrix,
+            float abstractWidth,
+            float abstractHeight,
+            int sourceWidth,
+            int sourceHeight) {
+        mR00 = rotationMatrix[0][0];
+        mR01 = rotationMatrix[0][1];
+        mR02 = rotationMatrix[0][2];
+        mR10 = rotationMatrix[1][0];
+        mR11 = rotationMatrix[1][1];
+        mR12 = rotationMatrix[1][2];
+        mR20 = rotationMatrix[2][0];
+        mR21 = rotationMatrix[2][1];
+        mR22 = rotationMatrix[2][2];
+
+        mSourceWidth = sourceWidth;
+        mSourceHeight = sourceHeight;
+        mScaleX = sourceWidth / abstractWidth;
+        mScaleY = sourceHeight / abstractHeight;
+    }
+
+    /**
+     * The position on the picture of the given direction of the sphere, or NO_POSITION if the
+     * picture doesn't reach it. Positions always leave room for the pixels to their right and
+     * below, so they can be read bilinearly.
+     */
+    public long project(float x, float y, float z) {
+        // the same operations in the same order as multiplying by the transpose and projecting,
+        // so the nearest pixel is the one it always was
+        float rotatedZ = mR20 * x + mR21 * y + mR22 * z;
+        if (rotatedZ <= 0) {
+            return NO_POSITION;
+        }
+        float projectedX = (mR00 * x + mR01 * y + mR02 * z) / rotatedZ;
+        float projectedY = (mR10 * x + mR11 * y + mR12 * z) / rotatedZ;
+        projectedX *= mScaleX;
+        projectedX += mSourceWidth / 2;
+        projectedY *= mScaleY;
+        projectedY += mSourceHeight / 2;
+
+        if (projectedX < 0
+                || projectedX >= mSourceWidth - 1
+                || projectedY < 0
+                || projectedY >= mSourceHeight - 1) {
+            return NO_POSITION;
+        }
+        // scaling by a power of two is exact, so the integer part is the same as before
+        int fixedX = (int) (projectedX * SUBPIXEL_SCALE);
+        int fixedY = (int) (projectedY * SUBPIXEL_SCALE);
+        return ((long) fixedX << 32) | fixedY;
+    }
+
+    // the column of the pixel a position is in
+    public static int getX(long position) {
+        return (int) (position >>> 32) >> SUBPIXEL_BITS;
+    }
+
+    // the row of the pixel a position is in
+    public static int getY(long position) {
+        return (int) position >> SUBPIXEL_BITS;
+    }
+
+    public int sampleNearest(int[] pixels, long position) {
+        return pixels[getY(position) * mSourceWidth + getX(position)];
+    }
+
+    // blends the 4 pixels around a position by how close they are, channel by channel
+    public int sampleBilinear(int[] pixels, long position) {
+        int fractionX = (int) (position >>> 32) & SUBPIXEL_MASK;
+        int fractionY = (int) position & SUBPIXEL_MASK;
+        int index = getY(position) * mSourceWidth + getX(position);
+        if (fractionX == 0 && fractionY == 0) {
+            return pixels[index];
+        }
+
+        int topLeft = pixels[index];
+        int topRight = pixels[index + 1];
+        int bottomLeft = pixels[index + mSourceWidth];
+        int bottomRight = pixels[index + mSourceWidth + 1];
+
+        int color = 0;
+        for (int shift = 0; shift < 32; shift += 8) {
+            int top = ((topLeft >>> shift) & 0xff) * (SUBPIXEL_SCALE - fractionX)
+                    + ((topRight >>> shift) & 0xff) * fractionX;
+            int bottom = ((bottomLeft >>> shift) & 0xff) * (SUBPIXEL_SCALE - fractionX)
+                    + ((bottomRight >>> shift) & 0xff) * fractionX;
+            int channel = (top * (SUBPIXEL_SCALE - fractionY) + bottom * fractionY)
+                    >> (2 * SUBPIXEL_BITS);
+            color |= channel << shift;
+        }
+        return color;
+    }
+}
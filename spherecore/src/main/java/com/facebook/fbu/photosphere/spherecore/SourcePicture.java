@@ -0,0 +1,31 @@
+// Copyright 2004-present Facebook. All Rights Reserved.
+
+package com.facebook.fbu.photosphere.spherecore;
+
+/**
+ * A picture to stitch in the sphere, with its pixels as plain ARGB ints, so it can come from an
+ * Android Bitmap as well as from a file decoded on a desktop JVM.
+ */
+public interface SourcePicture {
+
+    float[][] getRotationMatrix();
+
+    // the size of the picture on the plane at distance 1 from the center of the sphere
+    float getAbstractWidth();
+
+    float getAbstractHeight();
+
+    // how many degrees clockwise the pixels must be turned to be upright, see
+    // MatrixUtils.turnPicture(), which the rotation matrix already includes
+    int getOrientation();
+
+    int getWidth();
+
+    int getHeight();
+
+    /**
+     * Returns the pixels of the picture scaled down to getWidth() / sampleSize by
+     * getHeight() / sampleSize, row after row. The array is only ever read.
+     */
+    int[] readPixels(int sampleSize);
+}
@@ -0,0 +1,177 @@
+// Copyright 2004-present Facebook. All Rights Reserved.
+
+package com.facebook.fbu.photosphere.spherecore;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Precomputed cosines and sines of the longitudes of the columns and of the latitudes of the
+ * rows of a sphere representation, so the unit direction of a column and row can be found
+ * without any trigonometry.
+ * The direction of column i and row j is
+ * (sin(latitude_j), cos(longitude_i) * cos(latitude_j), sin(longitude_i) * cos(latitude_j)).
+ * Tables are immutable and the last ones used are cached, so they are shared between pictures,
+ * constructions and viewers of the same size. Older tables are dropped from the cache, and only
+ * stay as long as something still uses them, as the process may outlive many sizes and crops.
+ */
+public class SphereDirections {
+
+    // a construction draws at its size and at the size of its preview
+    private static final int MAX_CACHED_EQUIRECTANGULAR_TABLES = 2;
+    // a viewer shows one sphere, or the crop of one panorama
+    private static final int MAX_CACHED_GRID_TABLES = 2;
+
+    private static final Map<String, SphereDirections> sEquirectangularCache =
+            createCache(MAX_CACHED_EQUIRECTANGULAR_TABLES);
+    private static final Map<String, SphereDirections> sGridCache =
+            createCache(MAX_CACHED_GRID_TABLES);
+
+    // fractions of the full turn (for longitudes) and of the half turn (for latitudes)
+    private final float[] mLongitudeFractions;
+    private final float[] mLatitudeFractions;
+
+    private final float[] mCosLongitudes;
+    private final float[] mSinLongitudes;
+    private final float[] mCosLatitudes;
+    private final float[] mSinLatitudes;
+
+    /**
+     * Directions of the pixels of a width x height equirectangular image, where column i is at
+     * longitude 2 * PI * i / width and row j at latitude PI * (j / height - 1 / 2).
+     */
+    public static synchronized SphereDirections forEquirectangular(int width, int height) {
+        String key = "equirectangular " + width + "x" + height;
+        SphereDirections directions = sEquirectangularCache.get(key);
+        if (directions == null) {
+            float[] longitudeFractions = new float[width];
+            for (int i = 0; i < width; i++) {
+                longitudeFractions[i] = (float) i / width;
+            }
+            float[] latitudeFractions = new float[height];
+            for (int j = 0; j < height; j++) {
+                latitudeFractions[j] = (float) j / height;
+            }
+            directions = new SphereDirections(longitudeFractions, latitudeFractions);
+            sEquirectangularCache.put(key, directions);
+        }
+        return directions;
+    }
+
+    /**
+     * Directions of the vertices of a viewer grid of meridians and parallels. There are
+     * gridWidth + 1 columns, the last one closing the grid at longitude 2 * PI, and gridHeight
+     * rows, slightly inset from the poles so the quadrangles touching them don't degenerate.
+     */
+    public static SphereDirections forGrid(int gridWidth, int gridHeight) {
+        return forGrid(gridWidth, gridHeight, 0, 1, 0, 1);
+    }
+
+    /**
+     * Directions of the vertices of a viewer grid that only spans part of the sphere, such as
+     * the cropped area of a panorama, with gridWidth + 1 columns from its left to its right
+     * side, and gridHeight rows from its top to its bottom side, inset as those of the whole
+     * grid. The sides are given as fractions of the width and of the height of the sphere.
+     */
+    public static synchronized SphereDirections forGrid(
+            int gridWidth,
+            int gridHeight,
+            float left,
+            float width,
+            float top,
+            float height) {
+        String key = "grid " + gridWidth + "x" + gridHeight
+                + " of " + left + " " + width + " " + top + " " + height;
+        SphereDirections directions = sGridCache.get(key);
+        if (directions == null) {
+            float[] longitudeFractions = new float[gridWidth + 1];
+            for (int i = 0; i < gridWidth + 1; i++) {
+                longitudeFractions[i] = left + width * (i * 1.0f / gridWidth);
+            }
+            float[] latitudeFractions = new float[gridHeight];
+            for (int j = 0; j < gridHeight; j++) {
+                latitudeFractions[j] = top + height * (0.0005f + j * 0.999f / (gridHeight - 1));
+            }
+            directions = new SphereDirections(longitudeFractions, latitudeFractions);
+            sGridCache.put(key, directions);
+        }
+        return directions;
+    }
+
+    // keeps the maxSize tables used last
+    private static Map<String, SphereDirections> createCache(final int maxSize) {
+        return new LinkedHashMap<String, SphereDirections>(maxSize + 1, 1, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, SphereDirections> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    private SphereDirections(float[] longitudeFractions, float[] latitudeFractions) {
+        mLongitudeFractions = longitudeFractions;
+        mLatitudeFractions = latitudeFractions;
+
+        mCosLongitudes = new float[longitudeFractions.length];
+        mSinLongitudes = new float[longitudeFractions.length];
+        for (int i = 0; i < longitudeFractions.length; i++) {
+            float longitude = (float) (2 * Math.PI * longitudeFractions[i]);
+            mCosLongitudes[i] = (float) Math.cos(longitude);
+            mSinLongitudes[i] = (float) Math.sin(longitude);
+        }
+
+        mCosLatitudes = new float[latitudeFractions.length];
+        mSinLatitudes = new float[latitudeFractions.length];
+        for (int j = 0; j < latitudeFractions.length; j++) {
+            float latitude = (float) (Math.PI * (latitudeFractions[j] - 1.0f / 2));
+            mCosLatitudes[j] = (float) Math.cos(latitude);
+            mSinLatitudes[j] = (float) Math.sin(latitude);
+        }
+    }
+
+    public int getColumnCount() {
+        return mLongitudeFractions.length;
+    }
+
+    public int getRowCount() {
+        return mLatitudeFractions.length;
+    }
+
+    public float getLongitudeFraction(int i) {
+        return mLongitudeFractions[i];
+    }
+
+    public float getLatitudeFraction(int j) {
+        return mLatitudeFractions[j];
+    }
+
+    public float getCosLongitude(int i) {
+        return mCosLongitudes[i];
+    }
+
+    public float getSinLongitude(int i) {
+        return mSinLongitudes[i];
+    }
+
+    public float getCosLatitude(int j) {
+        return mCosLatitudes[j];
+    }
+
+    public float getSinLatitude(int j) {
+        return mSinLatitudes[j];
+    }
+
+    // writes the unit direction of column i and row j into direction, which avoids allocating
+    // in the loops that go over every pixel
+    public void getDirection(int i, int j, float[] direction) {
+        direction[0] = mSinLatitudes[j];
+        direction[1] = mCosLongitudes[i] * mCosLatitudes[j];
+        direction[2] = mSinLongitudes[i] * mCosLatitudes[j];
+    }
+
+    public float[] getDirection(int i, int j) {
+        float[] direction = new float[3];
+        getDirection(i, j, direction);
+        return direction;
+    }
+}
@@ -0,0 +1,207 @@
+// Copyright 2004-present Facebook. All Rights Reserved.
+
+package com.facebook.fbu.photosphere.spherecore;
+
+/**
+ * The latitude/longitude window that a picture covers on the sphere.
+ * The picture covers the spherical quadrangle whose corners are the directions of the corners of
+ * its frame and whose sides are great circle arcs, so the window follows exactly from the
+ * rotation matrix and the abstract size of the picture.
+ * Latitudes go from -PI / 2 to PI / 2, as the rows of the equirectangular image, and longitudes go
+ * from 0 to 2 * PI, as its columns. The longitude window may go beyond 2 * PI, in which case it
+ * wraps around.
+ */
+public class SphereFootprint {
+
+    private static final float[] UP = new float[]{1, 0, 0};
+
+    private final double mMinLatitude;
+    private final double mMaxLatitude;
+    private final double mMinLongitude;
+    private final double mMaxLongitude;
+    private final boolean mContainsPole;
+
+    private SphereFootprint(
+            double minLatitude,
+            double maxLatitude,
+            double minLongitude,
+            double maxLongitude,
+            boolean containsPole) {
+        mMinLatitude = minLatitude;
+        mMaxLatitude = maxLatitude;
+        mMinLongitude = minLongitude;
+        mMaxLongitude = maxLongitude;
+        mContainsPole = containsPole;
+    }
+
+    public static SphereFootprint of(
+            float[][] rotationMatrix,
+            float abstractWidth,
+            float abstractHeight) {
+        // the corners of the picture frame, in order around the frame
+        float[][] corners = new float[][]{
+                {-abstractWidth / 2, -abstractHeight / 2, 1},
+                {abstractWidth / 2, -abstractHeight / 2, 1},
+                {abstractWidth / 2, abstractHeight / 2, 1},
+                {-abstractWidth / 2, abstractHeight / 2, 1}
+        };
+        for (int k = 0; k < 4; k++) {
+            corners[k] = MatrixUtils.multiply(corners[k], rotationMatrix);
+            corners[k] = MatrixUtils.multiply(corners[k], 1 / MatrixUtils.norm(corners[k]));
+        }
+
+        boolean containsNorthPole = contains(rotationMatrix, abstractWidth, abstractHeight, 1);
+        boolean containsSouthPole = contains(rotationMatrix, abstractWidth, abstractHeight, -1);
+
+        double minLatitude = Math.PI / 2;
+        double maxLatitude = -Math.PI / 2;
+        for (int k = 0; k < 4; k++) {
+            float[] a = corners[k];
+            float[] b = corners[(k + 1) % 4];
+            minLatitude = Math.min(minLatitude, Math.min(latitude(a), latitude(b)));
+            maxLatitude = Math.max(maxLatitude, Math.max(latitude(a), latitude(b)));
+
+            // the highest and lowest points of a side may be in the middle of its arc
+            float[] normal = MatrixUtils.cross(a, b);
+            float normalNorm = MatrixUtils.norm(normal);
+            if (normalNorm == 0) {
+                continue;
+            }
+            normal = MatrixUtils.multiply(normal, 1 / normalNorm);
+            float[] highest = MatrixUtils.subtract(
+                    UP,
+                    MatrixUtils.multiply(normal, MatrixUtils.dot(UP, normal)));
+            float highestNorm = MatrixUtils.norm(highest);
+            if (highestNorm == 0) {
+                continue;
+            }
+            highest = MatrixUtils.multiply(highest, 1 / highestNorm);
+            float[] lowest = MatrixUtils.multiply(highest, -1);
+            if (isOnArc(highest, a, b, normal)) {
+                maxLatitude = Math.max(maxLatitude, latitude(highest));
+            }
+            if (isOnArc(lowest, a, b, normal)) {
+                minLatitude = Math.min(minLatitude, latitude(lowest));
+            }
+        }
+
+        if (containsNorthPole) {
+            maxLatitude = Math.PI / 2;
+        }
+        if (containsSouthPole) {
+            minLatitude = -Math.PI / 2;
+        }
+
+        if (containsNorthPole || containsSouthPole) {
+            return new SphereFootprint(minLatitude, maxLatitude, 0, 2 * Math.PI, true);
+        }
+
+        // a great circle arc that doesn't go through a pole moves monotonically in longitude,
+        // and by less than PI, so walking around the sides gives the window with no ambiguity
+        // about which way it wraps around
+        double longitude = longitude(corners[0]);
+        double minLongitude = longitude;
+        double maxLongitude = longitude;
+        for (int k = 0; k < 3; k++) {
+            double delta = longitude(corners[k + 1]) - longitude(corners[k]);
+            if (delta > Math.PI) {
+                delta -= 2 * Math.PI;
+            } else if (delta < -Math.PI) {
+                delta += 2 * Math.PI;
+            }
+            longitude += delta;
+            minLongitude = Math.min(minLongitude, longitude);
+            maxLongitude = Math.max(maxLongitude, longitude);
+        }
+
+        if (minLongitude < 0) {
+            minLongitude += 2 * Math.PI;
+            maxLongitude += 2 * Math.PI;
+        }
+
+        return new SphereFootprint(minLatitude, maxLatitude, minLongitude, maxLongitude, false);
+    }
+
+    public double getMinLatitude() {
+        return mMinLatitude;
+    }
+
+    public double getMaxLatitude() {
+        return mMaxLatitude;
+    }
+
+    public double getMinLongitude() {
+        return mMinLongitude;
+    }
+
+    public double getMaxLongitude() {
+        return mMaxLongitude;
+    }
+
+    public boolean containsPole() {
+        return mContainsPole;
+    }
+
+    // first row of a height-tall equirectangular image this footprint reaches
+    public int getFirstRow(int height) {
+        return Math.max(0, (int) Math.floor((mMinLatitude / Math.PI + 0.5) * height) - 1);
+    }
+
+    // last row of a height-tall equirectangular image this footprint reaches
+    public int getLastRow(int height) {
+        return Math.min(height - 1, (int) Math.ceil((mMaxLatitude / Math.PI + 0.5) * height) + 1);
+    }
+
+    /**
+     * Returns the columns of a width-wide equirectangular image this footprint reaches, as one or
+     * two {first, last} segments, two meaning that the footprint wraps around the image.
+     */
+    public int[][] getColumnSegments(int width) {
+        int firstColumn = (int) Math.floor(mMinLongitude / (2 * Math.PI) * width) - 1;
+        int lastColumn = (int) Math.ceil(mMaxLongitude / (2 * Math.PI) * width) + 1;
+
+        if (mContainsPole || lastColumn - firstColumn + 1 >= width) {
+            return new int[][]{{0, width - 1}};
+        }
+        if (firstColumn < 0) {
+            return new int[][]{{0, lastColumn}, {firstColumn + width, width - 1}};
+        }
+        if (lastColumn >= width) {
+            return new int[][]{{0, lastColumn - width}, {firstColumn, width - 1}};
+        }
+        return new int[][]{{firstColumn, lastColumn}};
+    }
+
+    // whether the north (sign = 1) or the south (sign = -1) pole is inside the picture frame
+    private static boolean contains(
+            float[][] rotationMatrix,
+            float abstractWidth,
+            float abstractHeight,
+            int sign) {
+        // rotates the pole to the picture referential
+        float[] pole = MatrixUtils.multiply(rotationMatrix, MatrixUtils.multiply(UP, sign));
+        if (pole[2] <= 0) {
+            return false;
+        }
+        // we are slightly generous here, so that a pole right on the frame is also caught
+        float margin = 1.01f;
+        return Math.abs(pole[0] / pole[2]) <= margin * abstractWidth / 2
+                && Math.abs(pole[1] / pole[2]) <= margin * abstractHeight / 2;
+    }
+
+    // whether point, which lies on the great circle with the given normal, is on the arc from a
+    // to b
+    private static boolean isOnArc(float[] point, float[] a, float[] b, float[] normal) {
+        return MatrixUtils.dot(MatrixUtils.cross(a, point), normal) >= 0
+                && MatrixUtils.dot(MatrixUtils.cross(point, b), normal) >= 0;
+    }
+
+    private static double latitude(float[] direction) {
+        return Math.asin(Math.max(-1, Math.min(1, direction[0])));
+    }
+
+    private static double longitude(float[] direction) {
+        double longitude = Math.atan2(direction[2], direction[1]);
+        return longitude < 0 ? longitude + 2 * Math.PI : longitude;
+    }
+}
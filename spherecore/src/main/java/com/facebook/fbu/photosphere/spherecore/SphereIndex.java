@@ -0,0 +1,186 @@
+// Copyright 2004-present Facebook. All Rights Reserved.
+
+package com.facebook.fbu.photosphere.spherecore;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Finds the pictures that can reach a part of the sphere without going through all of them.
+ * Each picture is seen as the cap around its center that holds the corners of its frame, and is
+ * kept in a bucket for every band of latitude its footprint crosses, so a query only tests the
+ * pictures of the bands the queried cap crosses.
+ * Queries allocate nothing and can be made from any number of threads at the same time.
+ */
+public class SphereIndex {
+
+    private static final int NUM_OF_BUCKETS = 36;
+    // caps are made a bit larger, so float errors never leave out a picture that reaches
+    private static final double MARGIN = 1e-3;
+
+    // the unit direction of the center of each picture, and the angle to its corners
+    private final float[][] mCenters;
+    private final double[] mRadii;
+    // the first bucket of each picture, so a picture is only found once by a query
+    private final int[] mFirstBuckets;
+    // the pictures of each band of latitude, in order
+    private final int[][] mBuckets;
+
+    public SphereIndex(List<? extends SourcePicture> pictures) {
+        int numOfPictures = pictures.size();
+        mCenters = new float[numOfPictures][];
+        mRadii = new double[numOfPictures];
+        mFirstBuckets = new int[numOfPictures];
+
+        List<List<Integer>> buckets = new ArrayList<List<Integer>>();
+        for (int b = 0; b < NUM_OF_BUCKETS; b++) {
+            buckets.add(new ArrayList<Integer>());
+        }
+        for (int k = 0; k < numOfPictures; k++) {
+            SourcePicture picture = pictures.get(k);
+            float[][] rotationMatrix = picture.getRotationMatrix();
+            // the direction that projects on the middle of the picture
+            mCenters[k] = new float[]{
+                    rotationMatrix[2][0],
+                    rotationMatrix[2][1],
+                    rotationMatrix[2][2]};
+            float halfWidth = picture.getAbstractWidth() / 2;
+            float halfHeight = picture.getAbstractHeight() / 2;
+            mRadii[k] = Math.atan(Math.sqrt(halfWidth * halfWidth + halfHeight * halfHeight));
+
+            SphereFootprint footprint = SphereFootprint.of(
+                    rotationMatrix,
+                    picture.getAbstractWidth(),
+                    picture.getAbstractHeight());
+            int firstBucket = getBucket(footprint.getMinLatitude() - MARGIN);
+            int lastBucket = getBucket(footprint.getMaxLatitude() + MARGIN);
+            mFirstBuckets[k] = firstBucket;
+            for (int b = firstBucket; b <= lastBucket; b++) {
+                buckets.get(b).add(k);
+            }
+        }
+
+        mBuckets = new int[NUM_OF_BUCKETS][];
+        for (int b = 0; b < NUM_OF_BUCKETS; b++) {
+            List<Integer> bucket = buckets.get(b);
+            mBuckets[b] = new int[bucket.size()];
+            for (int k = 0; k < bucket.size(); k++) {
+                mBuckets[b][k] = bucket.get(k);
+            }
+        }
+    }
+
+    public int getNumOfPictures() {
+        return mCenters.length;
+    }
+
+    /**
+     * Writes to pictures the indices, in increasing order, of the pictures whose caps meet the
+     * cap of the given radius around center, which must be of unit length, and returns how many
+     * there are. pictures must be able to hold all of the pictures.
+     */
+    public int query(float[] center, double radius, int[] pictures) {
+        double latitude = Math.asin(Math.max(-1, Math.min(1, center[0])));
+        int firstBucket = getBucket(latitude - radius - MARGIN);
+        int lastBucket = getBucket(latitude + radius + MARGIN);
+
+        int numOfPictures = 0;
+        for (int b = firstBucket; b <= lastBucket; b++) {
+            for (int k : mBuckets[b]) {
+                // a picture that crosses several of the buckets is only tested in the first one
+                if (Math.max(firstBucket, mFirstBuckets[k]) != b || !meets(k, center, radius)) {
+                    continue;
+                }
+                // keeps the indices in order, there are only ever a few of them
+                int position = numOfPictures++;
+                while (position > 0 && pictures[position - 1] > k) {
+                    pictures[position] = pictures[position - 1];
+                    position--;
+                }
+                pictures[position] = k;
+            }
+        }
+        return numOfPictures;
+    }
+
+    /**
+     * Finds the cap that holds the directions of the pixels from firstColumn to lastColumn and
+     * from firstRow to lastRow of a layout. Writes its center to center and returns its radius.
+     * direction is only there to be written to.
+     */
+    public static double getCap(
+            SphereLayout layout,
+            int firstColumn,
+            int lastColumn,
+            int firstRow,
+            int lastRow,
+            float[] center,
+            float[] direction) {
+        layout.getDirection(
+                (firstColumn + lastColumn) / 2,
+                (firstRow + lastRow) / 2,
+                center);
+        normalize(center);
+
+        // the pixels farthest from the middle are on the border, which is walked in steps small
+        // enough that the pixels between two steps are never much farther than the steps
+        int step = Math.max(1, Math.min(lastColumn - firstColumn, lastRow - firstRow) / 2);
+        double radius = 0;
+        double largestStep = 0;
+        float previousX = 0;
+        float previousY = 0;
+        float previousZ = 0;
+        for (int k = 0; k < 4; k++) {
+            boolean isRow = k % 2 == 0;
+            int first = isRow ? firstColumn : firstRow;
+            int last = isRow ? lastColumn : lastRow;
+            for (int u = first; u <= last; u = u < last ? Math.min(u + step, last) : last + 1) {
+                if (isRow) {
+                    layout.getDirection(u, k == 0 ? firstRow : lastRow, direction);
+                } else {
+                    layout.getDirection(k == 1 ? lastColumn : firstColumn, u, direction);
+                }
+                normalize(direction);
+                radius = Math.max(radius, angle(center, direction[0], direction[1], direction[2]));
+                if (u != first) {
+                    largestStep = Math.max(
+                            largestStep,
+                            angle(direction, previousX, previousY, previousZ));
+                }
+                previousX = direction[0];
+                previousY = direction[1];
+                previousZ = direction[2];
+            }
+        }
+        return radius + largestStep / 2;
+    }
+
+    private boolean meets(int picture, float[] center, double radius) {
+        double reach = mRadii[picture] + radius + MARGIN;
+        if (reach >= Math.PI) {
+            return true;
+        }
+        float[] pictureCenter = mCenters[picture];
+        return pictureCenter[0] * center[0]
+                + pictureCenter[1] * center[1]
+                + pictureCenter[2] * center[2] >= Math.cos(reach);
+    }
+
+    private static int getBucket(double latitude) {
+        int bucket = (int) Math.floor((latitude / Math.PI + 0.5) * NUM_OF_BUCKETS);
+        return Math.max(0, Math.min(NUM_OF_BUCKETS - 1, bucket));
+    }
+
+    private static void normalize(float[] vector) {
+        float norm = (float) Math.sqrt(
+                vector[0] * vector[0] + vector[1] * vector[1] + vector[2] * vector[2]);
+        vector[0] /= norm;
+        vector[1] /= norm;
+        vector[2] /= norm;
+    }
+
+    private static double angle(float[] a, float x, float y, float z) {
+        double dot = a[0] * x + a[1] * y + a[2] * z;
+        return Math.acos(Math.max(-1, Math.min(1, dot)));
+    }
+}
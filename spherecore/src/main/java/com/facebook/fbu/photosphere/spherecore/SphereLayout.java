@@ -0,0 +1,37 @@
+// Copyright 2004-present Facebook. All Rights Reserved.
+
+package com.facebook.fbu.photosphere.spherecore;
+
+/**
+ * Where the pixels of an image of the whole sphere are on the sphere, so the constructor can draw
+ * pictures in any such image the same way.
+ */
+public interface SphereLayout {
+
+    int getWidth();
+
+    int getHeight();
+
+    // writes the direction of column i and row j into direction, which need not be of unit length
+    void getDirection(int i, int j, float[] direction);
+
+    /**
+     * Returns how many columns of row j are so close together on the sphere that a picture only
+     * needs to be sampled once for all of them. Columns are grouped from column 0 on, so column
+     * i is in the group that starts at i - i % stride.
+     */
+    int getColumnStride(int j);
+
+    /**
+     * Returns the size of the squares, from column 0 and row 0 on, inside which pixels next to
+     * each other are also next to each other on the sphere.
+     */
+    int getBlockSize();
+
+    /**
+     * Returns the parts of the image that a picture can reach, as {firstColumn, lastColumn,
+     * firstRow, lastRow} windows, inclusive. Windows may reach a bit more than the picture does,
+     * but never less.
+     */
+    int[][] getWindows(float[][] rotationMatrix, float abstractWidth, float abstractHeight);
+}
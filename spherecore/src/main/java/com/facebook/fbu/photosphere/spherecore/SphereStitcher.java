@@ -0,0 +1,96 @@
+// Copyright 2004-present Facebook. All Rights Reserved.
+
+package com.facebook.fbu.photosphere.spherecore;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Draws layers on the rows of a sphere, each layer blended over the ones before it.
+ * Bands of rows are independent, so they can be drawn from any number of threads at the same
+ * time, as long as the layers don't change while they are.
+ */
+public class SphereStitcher {
+
+    // the number of columns of the tiles a band is drawn in
+    private static final int TILE_WIDTH = 64;
+
+    private final SphereLayout mLayout;
+    private final List<? extends PictureLayer> mLayers;
+    // finds the few layers that can reach a tile, so each tile only samples those
+    private final SphereIndex mIndex;
+
+    public SphereStitcher(SphereLayout layout, List<? extends PictureLayer> layers) {
+        mLayout = layout;
+        mLayers = layers;
+        List<SourcePicture> pictures = new ArrayList<SourcePicture>();
+        for (PictureLayer layer : layers) {
+            pictures.add(layer.getPicture());
+        }
+        mIndex = new SphereIndex(pictures);
+    }
+
+    public SphereLayout getLayout() {
+        return mLayout;
+    }
+
+    /**
+     * Draws the layers over the rows from firstRow to lastRow, which pixels holds one after the
+     * other as wide as the layout.
+     * The band is walked once, tile by tile, and each tile only samples the layers the index
+     * finds can reach it, so the work goes with the size of the sphere rather than with its
+     * size times the number of pictures. Layers are blended in order in every tile, which
+     * gives the same pixels as blending them one after the other over the whole band.
+     */
+    public void drawBand(int[] pixels, int firstRow, int lastRow) {
+        int width = mLayout.getWidth();
+        int[] rowColors = new int[width];
+        int[] rowAlphas = new int[width];
+        float[] direction = new float[3];
+        float[] center = new float[3];
+        int[] candidates = new int[mLayers.size()];
+        // tiles never cross the border of a block, as the index needs them in one piece
+        int blockSize = mLayout.getBlockSize();
+        int tileLastRow;
+        for (int tileFirstRow = firstRow; tileFirstRow <= lastRow;
+                tileFirstRow = tileLastRow + 1) {
+            tileLastRow = Math.min(lastRow, (tileFirstRow / blockSize + 1) * blockSize - 1);
+            int tileLastColumn;
+            for (int tileFirstColumn = 0; tileFirstColumn < width;
+                    tileFirstColumn = tileLastColumn + 1) {
+                tileLastColumn = Math.min(
+                        Math.min(width, tileFirstColumn + TILE_WIDTH),
+                        (tileFirstColumn / blockSize + 1) * blockSize) - 1;
+                // columns grouped with those of the tile may be sampled outside of it
+                int maxStride = 1;
+                for (int j = tileFirstRow; j <= tileLastRow; j++) {
+                    maxStride = Math.max(maxStride, mLayout.getColumnStride(j));
+                }
+                int blockLeft = tileFirstColumn / blockSize * blockSize;
+                double radius = SphereIndex.getCap(
+                        mLayout,
+                        Math.max(blockLeft, tileFirstColumn - maxStride + 1),
+                        Math.min(
+                                Math.min(width, blockLeft + blockSize) - 1,
+                                tileLastColumn + maxStride - 1),
+                        tileFirstRow,
+                        tileLastRow,
+                        center,
+                        direction);
+                int numOfCandidates = mIndex.query(center, radius, candidates);
+
+                for (int k = 0; k < numOfCandidates; k++) {
+                    PictureLayer layer = mLayers.get(candidates[k]);
+                    for (int j = Math.max(tileFirstRow, layer.getFirstRow());
+                            j <= Math.min(tileLastRow, layer.getLastRow()); j++) {
+                        layer.sampleRow(j, tileFirstColumn, tileLastColumn,
+                                rowColors, rowAlphas, 0, null, direction);
+                        layer.blendRow(j, tileFirstColumn, tileLastColumn,
+                                pixels, (j - firstRow) * width,
+                                rowColors, rowAlphas, null);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,157 @@
+// Copyright 2004-present Facebook. All Rights Reserved.
+
+package com.facebook.fbu.photosphere.spherecore;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes a PNG image a few rows at a time, so an image can be saved while it is drawn, without
+ * ever holding all of it, or all of its compressed bytes, in memory.
+ * Rows must be written from top to bottom, as non-premultiplied ARGB ints, the same as
+ * Bitmap.getPixels() gives them. The output is 8 bit RGBA.
+ * The compressor holds native memory until finish() returns or throws, so a writer that is given
+ * up on before that must be closed.
+ */
+public class StreamingPngWriter {
+
+    private static final byte[] SIGNATURE = new byte[]{
+            (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'
+    };
+    // each IDAT chunk holds at most this many compressed bytes
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final int BYTES_PER_PIXEL = 4;
+    // each row is stored as the difference with the pixel on its left
+    private static final int FILTER_SUB = 1;
+
+    private final OutputStream mOutputStream;
+    private final int mWidth;
+    private final int mHeight;
+    private int mNumOfRowsWritten;
+
+    private final Deflater mDeflater;
+    private final CRC32 mCrc = new CRC32();
+    private final byte[] mRow;
+    private final byte[] mChunk = new byte[CHUNK_SIZE];
+    private int mChunkLength;
+
+    public StreamingPngWriter(OutputStream outputStream, int width, int height)
+            throws IOException {
+        mOutputStream = outputStream;
+        mWidth = width;
+        mHeight = height;
+        mRow = new byte[1 + width * BYTES_PER_PIXEL];
+
+        mOutputStream.write(SIGNATURE);
+
+        byte[] header = new byte[13];
+        putInt(header, 0, width);
+        putInt(header, 4, height);
+        header[8] = 8;  // bits per channel
+        header[9] = 6;  // RGBA
+        header[10] = 0; // deflate
+        header[11] = 0; // adaptive filtering
+        header[12] = 0; // no interlacing
+        writeChunk("IHDR", header, header.length);
+        // only made once nothing else can fail, so a writer that couldn't be made holds nothing
+        mDeflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+    }
+
+    public int getNumOfRowsWritten() {
+        return mNumOfRowsWritten;
+    }
+
+    /**
+     * Writes the next numOfRows rows of the image, found in pixels from offset on, with a stride
+     * equal to the width of the image.
+     */
+    public void writeRows(int[] pixels, int offset, int numOfRows) throws IOException {
+        if (mNumOfRowsWritten + numOfRows > mHeight) {
+            throw new IllegalStateException("More rows than the height of the image");
+        }
+
+        for (int j = 0; j < numOfRows; j++) {
+            int rowOffset = offset + j * mWidth;
+            mRow[0] = FILTER_SUB;
+            int previous = 0;
+            for (int i = 0; i < mWidth; i++) {
+                int color = pixels[rowOffset + i];
+                int index = 1 + i * BYTES_PER_PIXEL;
+                mRow[index] = (byte) ((color >> 16) - (previous >> 16));
+                mRow[index + 1] = (byte) ((color >> 8) - (previous >> 8));
+                mRow[index + 2] = (byte) (color - previous);
+                mRow[index + 3] = (byte) ((color >>> 24) - (previous >>> 24));
+                previous = color;
+            }
+
+            mDeflater.setInput(mRow);
+            while (!mDeflater.needsInput()) {
+                deflate();
+            }
+        }
+        mNumOfRowsWritten += numOfRows;
+    }
+
+    // writes what is left of the compressed data and the end of the image, but doesn't close the
+    // output stream
+    public void finish() throws IOException {
+        try {
+            if (mNumOfRowsWritten != mHeight) {
+                throw new IllegalStateException(
+                        "Only " + mNumOfRowsWritten + " of " + mHeight + " rows were written");
+            }
+
+            mDeflater.finish();
+            while (!mDeflater.finished()) {
+                deflate();
+            }
+            if (mChunkLength > 0) {
+                writeChunk("IDAT", mChunk, mChunkLength);
+            }
+
+            writeChunk("IEND", mChunk, 0);
+            mOutputStream.flush();
+        } finally {
+            mDeflater.end();
+        }
+    }
+
+    // lets go of the compressor of a writer that won't be finished, which can be done any time
+    public void close() {
+        mDeflater.end();
+    }
+
+    // compresses some of the input into the current IDAT chunk, and writes it once it is full
+    private void deflate() throws IOException {
+        mChunkLength += mDeflater.deflate(mChunk, mChunkLength, CHUNK_SIZE - mChunkLength);
+        if (mChunkLength == CHUNK_SIZE) {
+            writeChunk("IDAT", mChunk, mChunkLength);
+            mChunkLength = 0;
+        }
+    }
+
+    private void writeChunk(String type, byte[] data, int length) throws IOException {
+        byte[] typeBytes = type.getBytes("US-ASCII");
+        byte[] intBytes = new byte[4];
+
+        putInt(intBytes, 0, length);
+        mOutputStream.write(intBytes);
+        mOutputStream.write(typeBytes);
+        mOutputStream.write(data, 0, length);
+
+        mCrc.reset();
+        mCrc.update(typeBytes);
+        mCrc.update(data, 0, length);
+        putInt(intBytes, 0, (int) mCrc.getValue());
+        mOutputStream.write(intBytes);
+    }
+
+    private static void putInt(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) (value >>> 24);
+        bytes[offset + 1] = (byte) (value >>> 16);
+        bytes[offset + 2] = (byte) (value >>> 8);
+        bytes[offset + 3] = (byte) value;
+    }
+}
@@ -0,0 +1,75 @@
+// Copyright 2004-present Facebook. All Rights Reserved.
+
+package com.facebook.fbu.photosphere.spherecore;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+
+/**
+ * Checks that a picture stored turned, with the rotation matrix MatrixUtils.turnPicture() gives,
+ * sees every direction where the upright picture does.
+ */
+public class MatrixUtilsTest {
+
+    private static final float TOLERANCE = 1e-5f;
+
+    // the upright rotation of a picture looking up and to the side, with some roll
+    private static final float[][] UPRIGHT = TestPictures.rotation(0.3, 2.0, 0.5);
+
+    @Test
+    public void turnPictureByZeroKeepsTheRotation() {
+        assertTurnedBy(0, new float[][]{{1, 0}, {0, 1}});
+    }
+
+    @Test
+    public void turnPictureBy90() {
+        // stored x is upright y, stored y is upright x reversed
+        assertTurnedBy(90, new float[][]{{0, -1}, {1, 0}});
+    }
+
+    @Test
+    public void turnPictureBy180() {
+        assertTurnedBy(180, new float[][]{{-1, 0}, {0, -1}});
+    }
+
+    @Test
+    public void turnPictureBy270() {
+        assertTurnedBy(270, new float[][]{{0, 1}, {-1, 0}});
+    }
+
+    @Test
+    public void turnPictureWrapsAround() {
+        assertArrayEquals(
+                MatrixUtils.rectangularToLinear(MatrixUtils.turnPicture(UPRIGHT, 270)),
+                MatrixUtils.rectangularToLinear(MatrixUtils.turnPicture(UPRIGHT, -90)),
+                TOLERANCE);
+        assertArrayEquals(
+                MatrixUtils.rectangularToLinear(UPRIGHT),
+                MatrixUtils.rectangularToLinear(MatrixUtils.turnPicture(UPRIGHT, 360)),
+                TOLERANCE);
+    }
+
+    /**
+     * Checks that the point (x, y) of the picture as stored, turned by orientation degrees
+     * clockwise from upright, has the direction of the point (x', y') = toUpright (x, y) of the
+     * upright picture.
+     */
+    private static void assertTurnedBy(int orientation, float[][] toUpright) {
+        float[][] turned = MatrixUtils.turnPicture(UPRIGHT, orientation);
+        for (float x = -1; x <= 1; x += 0.5f) {
+            for (float y = -1; y <= 1; y += 0.5f) {
+                float[] upright = new float[]{
+                        toUpright[0][0] * x + toUpright[0][1] * y,
+                        toUpright[1][0] * x + toUpright[1][1] * y,
+                        1
+                };
+                assertArrayEquals(
+                        "point " + x + ", " + y + " turned by " + orientation,
+                        MatrixUtils.multiply(upright, UPRIGHT),
+                        MatrixUtils.multiply(new float[]{x, y, 1}, turned),
+                        TOLERANCE);
+            }
+        }
+    }
+}
@@ -0,0 +1,105 @@
+// Copyright 2004-present Facebook. All Rights Reserved.
+
+package com.facebook.fbu.photosphere.spherecore;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks the blending against the Porter-Duff DST_OVER and SRC_OVER modes the pictures used to
+ * be drawn with, computed here in doubles on premultiplied colors.
+ */
+public class PixelBlenderTest {
+
+    private static final int NUM_OF_SAMPLES = 100000;
+
+    @Test
+    public void dstOverMatchesPorterDuff() {
+        Random random = new Random(1);
+        for (int k = 0; k < NUM_OF_SAMPLES; k++) {
+            int dst = random.nextInt();
+            int color = random.nextInt();
+            // DST_OVER draws what is already there over the color
+            assertClose(over(dst, color), PixelBlender.dstOver(dst, color));
+        }
+    }
+
+    @Test
+    public void srcOverMatchesPorterDuff() {
+        Random random = new Random(2);
+        for (int k = 0; k < NUM_OF_SAMPLES; k++) {
+            int dst = random.nextInt();
+            int color = random.nextInt();
+            int alpha = random.nextInt(256);
+            // the alpha of the paint replaces the one of the color
+            int src = (alpha << 24) | (color & 0x00ffffff);
+            assertClose(over(src, dst), PixelBlender.srcOver(dst, color, alpha));
+        }
+    }
+
+    @Test
+    public void opaqueAndTransparentPixelsAreKept() {
+        Random random = new Random(3);
+        for (int k = 0; k < NUM_OF_SAMPLES; k++) {
+            int color = random.nextInt();
+            int opaque = random.nextInt() | 0xff000000;
+            int transparent = random.nextInt() & 0x00ffffff;
+            assertEquals(opaque, PixelBlender.dstOver(opaque, color));
+            assertEquals(color, PixelBlender.dstOver(transparent, color));
+            assertEquals(color | 0xff000000, PixelBlender.srcOver(color, color, 255));
+            assertEquals(opaque, PixelBlender.srcOver(opaque, color, 0));
+        }
+    }
+
+    @Test
+    public void stitchedPixelsMatchPorterDuff() {
+        // as a layer draws an opaque picture: behind the sphere, then over it with its fade
+        Random random = new Random(4);
+        for (int k = 0; k < NUM_OF_SAMPLES; k++) {
+            int dst = random.nextBoolean() ? 0 : random.nextInt();
+            int color = random.nextInt() | 0xff000000;
+            int alpha = random.nextInt(256);
+            int expected = over((alpha << 24) | (color & 0x00ffffff), over(dst, color));
+            int blended = PixelBlender.dstOver(dst, color);
+            assertClose(expected, PixelBlender.srcOver(blended, color, alpha));
+        }
+    }
+
+    // top composited over bottom, both non-premultiplied, rounded back to a non-premultiplied int
+    private static int over(int top, int bottom) {
+        double topAlpha = (top >>> 24) / 255.0;
+        double bottomAlpha = (bottom >>> 24) / 255.0;
+        double outAlpha = topAlpha + bottomAlpha * (1 - topAlpha);
+        int result = (int) Math.round(outAlpha * 255) << 24;
+        if (outAlpha == 0) {
+            return result;
+        }
+        for (int shift = 0; shift < 24; shift += 8) {
+            double channel = (((top >> shift) & 0xff) * topAlpha
+                    + ((bottom >> shift) & 0xff) * bottomAlpha * (1 - topAlpha)) / outAlpha;
+            result |= (int) Math.round(channel) << shift;
+        }
+        return result;
+    }
+
+    /**
+     * The alpha is within a unit of the expected one, and so are the colors, give or take a unit
+     * of premultiplied color, which is all a canvas could keep: at alpha a, that is 255 / a
+     * units of a non-premultiplied channel.
+     */
+    private static void assertClose(int expected, int actual) {
+        int tolerance = Math.max(1, 255 / Math.max(1, expected >>> 24));
+        for (int shift = 0; shift < 32; shift += 8) {
+            int difference = ((expected >>> shift) & 0xff) - ((actual >>> shift) & 0xff);
+            if (Math.abs(difference) > (shift == 24 ? 1 : tolerance)) {
+                assertEquals(
+                        "blending to " + Integer.toHexString(expected),
+                        expected,
+                        actual);
+            }
+        }
+    }
+}
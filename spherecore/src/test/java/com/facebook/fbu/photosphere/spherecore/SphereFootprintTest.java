@@ -0,0 +1,136 @@
+// Copyright 2004-present Facebook. All Rights Reserved.
+
+package com.facebook.fbu.photosphere.spherecore;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that the rows and columns of the footprint of a picture hold every point of the picture,
+ * found by walking over its frame, where it crosses the seam of the equirectangular image and
+ * where it covers a pole.
+ */
+public class SphereFootprintTest {
+
+    private static final int HEIGHT = 180;
+    private static final int WIDTH = 2 * HEIGHT;
+    // points walked over on each side of the frame
+    private static final int NUM_OF_STEPS = 100;
+
+    private static final float ABSTRACT_WIDTH = PixelPicture.getAbstractSize(50);
+    private static final float ABSTRACT_HEIGHT = PixelPicture.getAbstractSize(65);
+
+    @Test
+    public void pictureOnTheSeamWrapsAround() {
+        for (double roll = 0; roll < Math.PI; roll += 0.3) {
+            SphereFootprint footprint = assertHoldsPicture(0, 0, roll);
+            assertFalse(footprint.containsPole());
+            assertEquals(2, footprint.getColumnSegments(WIDTH).length);
+        }
+    }
+
+    @Test
+    public void pictureJustBeforeTheSeamWrapsAround() {
+        SphereFootprint footprint = assertHoldsPicture(0.4, Math.toRadians(355), 0.2);
+        assertEquals(2, footprint.getColumnSegments(WIDTH).length);
+        footprint = assertHoldsPicture(-0.4, Math.toRadians(5), -0.2);
+        assertEquals(2, footprint.getColumnSegments(WIDTH).length);
+    }
+
+    @Test
+    public void pictureAwayFromTheSeamIsInOnePiece() {
+        SphereFootprint footprint = assertHoldsPicture(0.2, Math.PI, 0.7);
+        int[][] segments = footprint.getColumnSegments(WIDTH);
+        assertEquals(1, segments.length);
+        assertTrue(segments[0][1] - segments[0][0] < WIDTH / 2);
+    }
+
+    @Test
+    public void pictureOverTheNorthPoleReachesTheLastRow() {
+        for (double roll = 0; roll < Math.PI; roll += 0.5) {
+            SphereFootprint footprint = assertHoldsPicture(Math.PI / 2, 1, roll);
+            assertTrue(footprint.containsPole());
+            assertEquals(HEIGHT - 1, footprint.getLastRow(HEIGHT));
+            assertFullWidth(footprint);
+        }
+    }
+
+    @Test
+    public void pictureOverTheSouthPoleReachesTheFirstRow() {
+        // the frame is wide enough to reach past the pole even though it looks away from it
+        SphereFootprint footprint = assertHoldsPicture(Math.toRadians(-75), 4, 0.1);
+        assertTrue(footprint.containsPole());
+        assertEquals(0, footprint.getFirstRow(HEIGHT));
+        assertFullWidth(footprint);
+    }
+
+    @Test
+    public void pictureNextToThePoleDoesNotCoverIt() {
+        SphereFootprint footprint = assertHoldsPicture(Math.toRadians(50), 2, 0);
+        assertFalse(footprint.containsPole());
+        assertTrue(footprint.getLastRow(HEIGHT) < HEIGHT - 1);
+    }
+
+    private static void assertFullWidth(SphereFootprint footprint) {
+        int[][] segments = footprint.getColumnSegments(WIDTH);
+        assertEquals(1, segments.length);
+        assertEquals(0, segments[0][0]);
+        assertEquals(WIDTH - 1, segments[0][1]);
+    }
+
+    /**
+     * Checks that the footprint of a picture looking at the given latitude and longitude, turned
+     * by roll, reaches the pixels on either side of every point of its frame, and returns it.
+     */
+    private static SphereFootprint assertHoldsPicture(
+            double latitude,
+            double longitude,
+            double roll) {
+        float[][] rotation = TestPictures.rotation(latitude, longitude, roll);
+        SphereFootprint footprint = SphereFootprint.of(rotation, ABSTRACT_WIDTH, ABSTRACT_HEIGHT);
+        int[][] segments = footprint.getColumnSegments(WIDTH);
+
+        for (int u = 0; u <= NUM_OF_STEPS; u++) {
+            for (int v = 0; v <= NUM_OF_STEPS; v++) {
+                float[] point = new float[]{
+                        ABSTRACT_WIDTH * ((float) u / NUM_OF_STEPS - 0.5f),
+                        ABSTRACT_HEIGHT * ((float) v / NUM_OF_STEPS - 0.5f),
+                        1
+                };
+                float[] direction = MatrixUtils.multiply(point, rotation);
+                direction = MatrixUtils.multiply(direction, 1 / MatrixUtils.norm(direction));
+
+                double row = (Math.asin(direction[0]) / Math.PI + 0.5) * HEIGHT;
+                double pointLongitude = Math.atan2(direction[2], direction[1]);
+                double column = pointLongitude / (2 * Math.PI) * WIDTH;
+
+                for (int j : new int[]{(int) Math.floor(row), (int) Math.ceil(row)}) {
+                    j = Math.max(0, Math.min(HEIGHT - 1, j));
+                    if (j < footprint.getFirstRow(HEIGHT) || j > footprint.getLastRow(HEIGHT)) {
+                        fail("row " + j + " is out of the footprint");
+                    }
+                }
+                for (int i : new int[]{(int) Math.floor(column), (int) Math.ceil(column)}) {
+                    i = (i % WIDTH + WIDTH) % WIDTH;
+                    if (!isInSegments(i, segments)) {
+                        fail("column " + i + " is out of the footprint");
+                    }
+                }
+            }
+        }
+        return footprint;
+    }
+
+    private static boolean isInSegments(int column, int[][] segments) {
+        for (int[] segment : segments) {
+            if (column >= segment[0] && column <= segment[1]) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
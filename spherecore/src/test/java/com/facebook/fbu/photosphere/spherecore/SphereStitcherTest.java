@@ -0,0 +1,340 @@
+// Copyright 2004-present Facebook. All Rights Reserved.
+
+package com.facebook.fbu.photosphere.spherecore;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the bands the stitcher draws, tile by tile with only the layers its index finds, against
+ * drawing every picture on every pixel of the sphere, one picture after the other.
+ */
+public class SphereStitcherTest {
+
+    private static final int HEIGHT = 64;
+    private static final int NUM_OF_PICTURES = 12;
+    // the bands don't start on the tiles or the faces, so their offsets are checked as well
+    private static final int[] BAND_FIRST_ROWS = new int[]{0, 5, 16, 29, 47};
+
+    @Test
+    public void equirectangularMatchesReference() {
+        assertMatchesReference(new EquirectangularLayout(HEIGHT), false, 1);
+    }
+
+    @Test
+    public void equirectangularBilinearMatchesReference() {
+        assertMatchesReference(new EquirectangularLayout(HEIGHT), true, 2);
+    }
+
+    @Test
+    public void latitudeAdaptiveMatchesReference() {
+        assertMatchesReference(new EquirectangularLayout(HEIGHT, true), false, 3);
+    }
+
+    @Test
+    public void cubemapMatchesReference() {
+        assertMatchesReference(new CubemapLayout(HEIGHT / 2), false, 4);
+    }
+
+    @Test
+    public void baselineTraversalDiffersOnlyWhereItJumped() {
+        // the baseline drew upright pictures on an equirectangular sphere that already had some
+        Random random = new Random(5);
+        SphereLayout layout = new EquirectangularLayout(HEIGHT);
+        int width = layout.getWidth();
+        int numOfSkippedPixels = 0;
+        for (int k = 0; k < NUM_OF_PICTURES; k++) {
+            SourcePicture picture = TestPictures.randomPicture(
+                    random,
+                    30,
+                    40,
+                    TestPictures.rotation(
+                            (random.nextDouble() - 0.5) * Math.PI,
+                            random.nextDouble() * 2 * Math.PI,
+                            random.nextDouble() * 2 * Math.PI),
+                    PixelPicture.getAbstractSize(50),
+                    PixelPicture.getAbstractSize(65),
+                    0);
+            int[] background = new int[width * HEIGHT];
+            for (int index = 0; index < background.length; index++) {
+                background[index] = random.nextInt();
+            }
+
+            int[] baseline = background.clone();
+            int[] numOfDraws = drawBaseline(picture, width, HEIGHT, baseline);
+            int[] pixels = background.clone();
+            PictureLayer layer = new PictureLayer(picture, 1, layout, false);
+            List<PictureLayer> layers = new ArrayList<PictureLayer>();
+            layers.add(layer);
+            new SphereStitcher(layout, layers).drawBand(pixels, 0, HEIGHT - 1);
+
+            int[] rowColors = new int[width];
+            int[] rowAlphas = new int[width];
+            for (int j = 0; j < HEIGHT; j++) {
+                layer.sampleRow(j, rowColors, rowAlphas, 0, null, new float[3]);
+                for (int i = 0; i < width; i++) {
+                    int index = j * width + i;
+                    if (numOfDraws[index] == 1) {
+                        assertEquals("pixel " + index, baseline[index], pixels[index]);
+                    } else if (numOfDraws[index] == 2) {
+                        // the pixel it lands on after a jump is drawn again on the way back
+                        int again = PixelBlender.srcOver(
+                                PixelBlender.dstOver(pixels[index], rowColors[i]),
+                                rowColors[i],
+                                rowAlphas[i]);
+                        assertEquals("pixel " + index, baseline[index], again);
+                    } else if (pixels[index] != background[index]) {
+                        numOfSkippedPixels++;
+                    }
+                }
+            }
+        }
+        // the jumps of the baseline left holes in the pictures, which are drawn now
+        assertTrue(numOfSkippedPixels > 0);
+    }
+
+    private static void assertMatchesReference(SphereLayout layout, boolean isBilinear, long seed) {
+        List<SourcePicture> pictures = createPictures(new Random(seed));
+        List<PictureLayer> layers = new ArrayList<PictureLayer>();
+        for (SourcePicture picture : pictures) {
+            layers.add(new PictureLayer(picture, 1, layout, isBilinear));
+        }
+
+        int width = layout.getWidth();
+        int height = layout.getHeight();
+        int[] pixels = new int[width * height];
+        SphereStitcher stitcher = new SphereStitcher(layout, layers);
+        for (int band = 0; band < BAND_FIRST_ROWS.length; band++) {
+            int firstRow = BAND_FIRST_ROWS[band];
+            int lastRow = band + 1 < BAND_FIRST_ROWS.length
+                    ? BAND_FIRST_ROWS[band + 1] - 1
+                    : height - 1;
+            int[] bandPixels = new int[width * (lastRow - firstRow + 1)];
+            stitcher.drawBand(bandPixels, firstRow, lastRow);
+            System.arraycopy(bandPixels, 0, pixels, firstRow * width, bandPixels.length);
+        }
+
+        int[] reference = drawReference(layout, layers, isBilinear);
+        int numOfDrawnPixels = 0;
+        for (int pixel : reference) {
+            if (pixel != 0) {
+                numOfDrawnPixels++;
+            }
+        }
+        assertTrue(numOfDrawnPixels > reference.length / 4);
+        assertArrayEquals(reference, pixels);
+    }
+
+    // pictures of all orientations all over the sphere, on the seam and the poles as well
+    private static List<SourcePicture> createPictures(Random random) {
+        List<SourcePicture> pictures = new ArrayList<SourcePicture>();
+        float abstractWidth = PixelPicture.getAbstractSize(65);
+        float abstractHeight = PixelPicture.getAbstractSize(50);
+        for (int k = 0; k < NUM_OF_PICTURES; k++) {
+            double latitude = k == 0 ? Math.PI / 2 : (random.nextDouble() - 0.5) * Math.PI;
+            double longitude = k == 1 ? 0 : random.nextDouble() * 2 * Math.PI;
+            double roll = random.nextDouble() * 2 * Math.PI;
+            pictures.add(TestPictures.randomPicture(
+                    random,
+                    40,
+                    30,
+                    TestPictures.rotation(latitude, longitude, roll),
+                    abstractWidth,
+                    abstractHeight,
+                    90 * (k % 4)));
+        }
+        return pictures;
+    }
+
+    /**
+     * Draws every picture on every pixel, one after the other, sampling each pixel on its own.
+     * Only the columns a latitude adaptive layout groups together need the windows of the layer,
+     * as their groups are cut at the borders of the windows.
+     */
+    private static int[] drawReference(
+            SphereLayout layout,
+            List<PictureLayer> layers,
+            boolean isBilinear) {
+        int width = layout.getWidth();
+        int height = layout.getHeight();
+        int[] pixels = new int[width * height];
+        float[] direction = new float[3];
+
+        for (PictureLayer layer : layers) {
+            SourcePicture picture = layer.getPicture();
+            ProjectionKernel kernel = new ProjectionKernel(
+                    picture.getRotationMatrix(),
+                    picture.getAbstractWidth(),
+                    picture.getAbstractHeight(),
+                    picture.getWidth(),
+                    picture.getHeight());
+            int[] sourcePixels = picture.readPixels(1);
+
+            for (int j = 0; j < height; j++) {
+                int stride = layout.getColumnStride(j);
+                for (int i = 0; i < width; i++) {
+                    int groupFirst = i - i % stride;
+                    int groupLast = Math.min(width - 1, groupFirst + stride - 1);
+                    for (int[] window : layer.getWindows()) {
+                        if (j >= window[2] && j <= window[3]
+                                && i >= window[0] && i <= window[1]) {
+                            groupFirst = Math.max(groupFirst, window[0]);
+                            groupLast = Math.min(groupLast, window[1]);
+                        }
+                    }
+
+                    layout.getDirection((groupFirst + groupLast) / 2, j, direction);
+                    long position = kernel.project(direction[0], direction[1], direction[2]);
+                    if (position == ProjectionKernel.NO_POSITION) {
+                        continue;
+                    }
+                    int color = isBilinear
+                            ? kernel.sampleBilinear(sourcePixels, position)
+                            : kernel.sampleNearest(sourcePixels, position);
+                    int alpha = getAlpha(
+                            picture,
+                            ProjectionKernel.getX(position),
+                            ProjectionKernel.getY(position));
+                    int index = j * width + i;
+                    pixels[index] = PixelBlender.srcOver(
+                            PixelBlender.dstOver(pixels[index], color),
+                            color,
+                            alpha);
+                }
+            }
+        }
+        return pixels;
+    }
+
+    /**
+     * Draws an upright picture over pixels the way the baseline did: column after column,
+     * skipping jumpSize rows at a time once it has been outside of the picture for a while, and
+     * going back when it lands inside of it again. Returns how many times it drew each pixel.
+     */
+    private static int[] drawBaseline(
+            SourcePicture picture,
+            int width,
+            int height,
+            int[] pixels) {
+        int[] numOfDraws = new int[width * height];
+        int[] sourcePixels = picture.readPixels(1);
+        int sourceWidth = picture.getWidth();
+        int sourceHeight = picture.getHeight();
+
+        int jumpSize = 15;
+        boolean moveFast = false;
+        int count = 0;
+        boolean gotInside;
+
+        for (int i = 0; i < width; i++) {
+            for (int j = 0; j < height - 1; j++) {
+                float xAngle = (float) (2 * Math.PI * (float) i / width);
+                float yAngle = (float) (Math.PI * (((float) j / height) - 1.0f / 2));
+                float[] pointInSphere = new float[]{
+                        (float) Math.sin(yAngle),
+                        (float) (Math.cos(xAngle) * Math.cos(yAngle)),
+                        (float) (Math.sin(xAngle) * Math.cos(yAngle))
+                };
+                float[] rotated = MatrixUtils.multiply(
+                        pointInSphere,
+                        MatrixUtils.transpose(picture.getRotationMatrix()));
+
+                gotInside = rotated[2] > 0;
+                if (gotInside) {
+                    float projectedX = rotated[0] / rotated[2];
+                    float projectedY = rotated[1] / rotated[2];
+                    projectedX *= sourceWidth / picture.getAbstractWidth();
+                    projectedX += sourceWidth / 2;
+                    projectedY *= sourceHeight / picture.getAbstractHeight();
+                    projectedY += sourceHeight / 2;
+
+                    gotInside = projectedX >= 0
+                            && projectedX < sourceWidth - 1
+                            && projectedY >= 0
+                            && projectedY < sourceHeight - 1;
+                    if (gotInside) {
+                        int x = (int) projectedX;
+                        int y = (int) projectedY;
+                        int color = sourcePixels[y * sourceWidth + x];
+                        int index = j * width + i;
+                        pixels[index] = PixelBlender.srcOver(
+                                PixelBlender.dstOver(pixels[index], color),
+                                color,
+                                getAlpha(picture, x, y));
+                        numOfDraws[index]++;
+                    }
+                }
+
+                if (!moveFast && !gotInside) {
+                    count++;
+                }
+                if (count > jumpSize + 1) {
+                    count = 0;
+                    moveFast = true;
+                }
+                if (moveFast && gotInside) {
+                    moveFast = false;
+                    j = Math.max(j - jumpSize, 0);
+                }
+                if (moveFast) {
+                    j = j + jumpSize;
+                }
+            }
+        }
+        return numOfDraws;
+    }
+
+    /**
+     * The fade of the pictures when they were turned upright before being drawn: full inside
+     * (w / 6, w * 5 / 6, h / 6, h - w / 6) of the upright w by h picture, and out over w / 6.
+     */
+    private static int getAlpha(SourcePicture picture, int x, int y) {
+        int storedWidth = picture.getWidth();
+        int storedHeight = picture.getHeight();
+        int uprightX;
+        int uprightY;
+        int uprightWidth;
+        int uprightHeight;
+        switch (picture.getOrientation()) {
+            case 90:
+                uprightX = storedHeight - 1 - y;
+                uprightY = x;
+                break;
+            case 180:
+                uprightX = storedWidth - 1 - x;
+                uprightY = storedHeight - 1 - y;
+                break;
+            case 270:
+                uprightX = y;
+                uprightY = storedWidth - 1 - x;
+                break;
+            default:
+                uprightX = x;
+                uprightY = y;
+                break;
+        }
+        if (picture.getOrientation() % 180 == 0) {
+            uprightWidth = storedWidth;
+            uprightHeight = storedHeight;
+        } else {
+            uprightWidth = storedHeight;
+            uprightHeight = storedWidth;
+        }
+
+        int left = uprightWidth / 6;
+        int right = uprightWidth * 5 / 6;
+        int top = uprightHeight / 6;
+        int bottom = uprightHeight - uprightWidth / 6;
+        int fade = Math.max(1, uprightWidth / 6);
+        int dx = Math.max(0, Math.max(left - uprightX, uprightX - right));
+        int dy = Math.max(0, Math.max(top - uprightY, uprightY - bottom));
+        return Math.max(0, 255 - 255 * (dx * dx + dy * dy) / fade / fade);
+    }
+}
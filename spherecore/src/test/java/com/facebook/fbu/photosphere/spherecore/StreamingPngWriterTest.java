@@ -0,0 +1,87 @@
+// Copyright 2004-present Facebook. All Rights Reserved.
+
+package com.facebook.fbu.photosphere.spherecore;
+
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that what the writer writes a few rows at a time is read back by ImageIO as the same
+ * pixels, alpha included.
+ */
+public class StreamingPngWriterTest {
+
+    @Test
+    public void smallImageRoundTrips() throws IOException {
+        assertRoundTrips(37, 29, new int[]{1, 5, 23}, new Random(1));
+    }
+
+    @Test
+    public void imageOfManyChunksRoundTrips() throws IOException {
+        // random pixels hardly compress, so this takes several IDAT chunks
+        assertRoundTrips(300, 200, new int[]{16, 16, 100, 68}, new Random(2));
+    }
+
+    @Test
+    public void writingPastTheLastRowFails() throws IOException {
+        StreamingPngWriter writer = new StreamingPngWriter(new ByteArrayOutputStream(), 4, 2);
+        try {
+            writer.writeRows(new int[12], 0, 3);
+            fail("wrote 3 rows of a 2 row image");
+        } catch (IllegalStateException e) {
+            // expected
+        } finally {
+            writer.close();
+        }
+    }
+
+    @Test
+    public void finishingEarlyFails() throws IOException {
+        StreamingPngWriter writer = new StreamingPngWriter(new ByteArrayOutputStream(), 4, 2);
+        writer.writeRows(new int[4], 0, 1);
+        try {
+            writer.finish();
+            fail("finished with 1 row of 2");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    // writes random pixels in bands of the given numbers of rows, and reads them back
+    private static void assertRoundTrips(int width, int height, int[] bands, Random random)
+            throws IOException {
+        int[] pixels = new int[width * height];
+        for (int k = 0; k < pixels.length; k++) {
+            pixels[k] = random.nextInt();
+        }
+        // fully transparent pixels keep their colors too, as the PNG is not premultiplied
+        pixels[0] = 0x00123456;
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        StreamingPngWriter writer = new StreamingPngWriter(outputStream, width, height);
+        int firstRow = 0;
+        for (int numOfRows : bands) {
+            writer.writeRows(pixels, firstRow * width, numOfRows);
+            firstRow += numOfRows;
+            assertEquals(firstRow, writer.getNumOfRowsWritten());
+        }
+        writer.finish();
+
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(outputStream.toByteArray()));
+        assertEquals(width, image.getWidth());
+        assertEquals(height, image.getHeight());
+        int[] read = image.getRGB(0, 0, width, height, null, 0, width);
+        assertArrayEquals(pixels, read);
+    }
+}
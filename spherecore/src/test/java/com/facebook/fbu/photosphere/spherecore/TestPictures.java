@@ -0,0 +1,58 @@
+// Copyright 2004-present Facebook. All Rights Reserved.
+
+package com.facebook.fbu.photosphere.spherecore;
+
+import java.util.Random;
+
+/**
+ * Pictures and poses for the tests, in the referential of the sphere, where x goes up and the
+ * longitude goes from y towards z.
+ */
+class TestPictures {
+
+    // the direction at the given latitude and longitude, in radians
+    static float[] direction(double latitude, double longitude) {
+        return new float[]{
+                (float) Math.sin(latitude),
+                (float) (Math.cos(longitude) * Math.cos(latitude)),
+                (float) (Math.sin(longitude) * Math.cos(latitude))
+        };
+    }
+
+    /**
+     * The rotation of a picture looking at the given latitude and longitude, turned by roll
+     * around the direction it looks at, all in radians.
+     */
+    static float[][] rotation(double latitude, double longitude, double roll) {
+        float[] forward = direction(latitude, longitude);
+        float[] east = new float[]{0, (float) -Math.sin(longitude), (float) Math.cos(longitude)};
+        float[] north = direction(latitude + Math.PI / 2, longitude);
+        float[] right = MatrixUtils.add(
+                MatrixUtils.multiply(east, (float) Math.cos(roll)),
+                MatrixUtils.multiply(north, (float) Math.sin(roll)));
+        return new float[][]{right, MatrixUtils.cross(forward, right), forward};
+    }
+
+    // a picture of random opaque pixels
+    static PixelPicture randomPicture(
+            Random random,
+            int width,
+            int height,
+            float[][] rotationMatrix,
+            float abstractWidth,
+            float abstractHeight,
+            int orientation) {
+        int[] pixels = new int[width * height];
+        for (int k = 0; k < pixels.length; k++) {
+            pixels[k] = random.nextInt() | 0xff000000;
+        }
+        return new PixelPicture(
+                pixels,
+                width,
+                height,
+                rotationMatrix,
+                abstractWidth,
+                abstractHeight,
+                orientation);
+    }
+}
@@ -0,0 +1,71 @@
+// Copyright 2004-present Facebook. All Rights Reserved.
+
+package com.facebook.fbu.photosphere.spherelib;
+
+/**
+ * Per pixel sums of weighted colors and of weights, for compositing pictures in any order.
+ * Adding is commutative, so pictures can be added concurrently and as they come, and the colors
+ * come out the same once the sums are divided by the weights.
+ * Callers make sure no two threads add to the same rows at the same time.
+ */
+public class AccumulationBuffer {
+
+    private final int mWidth;
+    private final int mHeight;
+
+    private final int[] mRedSums;
+    private final int[] mGreenSums;
+    private final int[] mBlueSums;
+    private final int[] mWeightSums;
+
+    public AccumulationBuffer(int width, int height) {
+        mWidth = width;
+        mHeight = height;
+
+        mRedSums = new int[width * height];
+        mGreenSums = new int[width * height];
+        mBlueSums = new int[width * height];
+        mWeightSums = new int[width * height];
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    // adds color with the given weight to pixel (i, j), a negative weight takes it back out
+    public void add(int i, int j, int color, int weight) {
+        int index = j * mWidth + i;
+        mRedSums[index] += ((color >> 16) & 0xff) * weight;
+        mGreenSums[index] += ((color >> 8) & 0xff) * weight;
+        mBlueSums[index] += (color & 0xff) * weight;
+        mWeightSums[index] += weight;
+    }
+
+    // the normalized color of pixel (i, j), transparent if nothing was added to it
+    public int resolve(int i, int j) {
+        int index = j * mWidth + i;
+        int weight = mWeightSums[index];
+        if (weight <= 0) {
+            return 0;
+        }
+        int half = weight / 2;
+        int red = (mRedSums[index] + half) / weight;
+        int green = (mGreenSums[index] + half) / weight;
+        int blue = (mBlueSums[index] + half) / weight;
+        return 0xff000000 | (red << 16) | (green << 8) | blue;
+    }
+
+    // writes the normalized colors of the rows from firstRow to lastRow into pixels
+    public void resolve(int firstRow, int lastRow, int[] pixels) {
+        for (int j = firstRow; j <= lastRow; j++) {
+            int offset = (j - firstRow) * mWidth;
+            for (int i = 0; i < mWidth; i++) {
+                pixels[offset + i] = resolve(i, j);
+            }
+        }
+    }
+}
@@ -0,0 +1,55 @@
+// Copyright 2004-present Facebook. All Rights Reserved.
+
+package com.facebook.fbu.photosphere.spherelib;
+
+import android.graphics.Bitmap;
+
+/**
+ * A canvas that is simply a Bitmap, for spheres that fit in memory.
+ */
+public class BitmapSphereCanvas implements SphereCanvas {
+
+    private final Bitmap mBitmap;
+
+    public BitmapSphereCanvas(Bitmap bitmap) {
+        mBitmap = bitmap;
+    }
+
+    public Bitmap getBitmap() {
+        return mBitmap;
+    }
+
+    @Override
+    public int getWidth() {
+        return mBitmap.getWidth();
+    }
+
+    @Override
+    public int getHeight() {
+        return mBitmap.getHeight();
+    }
+
+    @Override
+    public void getPixels(
+            int[] pixels,
+            int offset,
+            int stride,
+            int x,
+            int y,
+            int width,
+            int height) {
+        mBitmap.getPixels(pixels, offset, stride, x, y, width, height);
+    }
+
+    @Override
+    public void setPixels(
+            int[] pixels,
+            int offset,
+            int stride,
+            int x,
+            int y,
+            int width,
+            int height) {
+        mBitmap.setPixels(pixels, offset, stride, x, y, width, height);
+    }
+}
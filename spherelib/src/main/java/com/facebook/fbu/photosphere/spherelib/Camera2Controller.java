@@ -0,0 +1,696 @@
+// Copyright 2004-present Facebook. All Rights Reserved.
+
+package com.facebook.fbu.photosphere.spherelib;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.graphics.ImageFormat;
+import android.graphics.SurfaceTexture;
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCaptureSession;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraDevice;
+import android.hardware.camera2.CameraManager;
+import android.hardware.camera2.CameraMetadata;
+import android.hardware.camera2.CaptureFailure;
+import android.hardware.camera2.CaptureRequest;
+import android.hardware.camera2.CaptureResult;
+import android.hardware.camera2.TotalCaptureResult;
+import android.hardware.camera2.params.StreamConfigurationMap;
+import android.media.Image;
+import android.media.ImageReader;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+import android.util.Size;
+import android.util.SizeF;
+import android.view.Surface;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The CameraController of the devices that fully support the camera2 API. The pictures are
+ * YUV_420_888 images from an ImageReader, copied to NV21 as they come so the reader never runs
+ * out of images, and then made JPEGs by the pipeline like the preview frames of the older API.
+ * Each picture gets the orientation the device had when the sensor started exposing it, matched
+ * to its image by the sensor timestamp, so pictures can be taken back to back without waiting
+ * for the last one.
+ * The exposure, white balance and focus are locked with the first picture, so the pictures of a
+ * sphere match and the next ones are taken right away, without metering again. The first picture
+ * waits for the preview to report the locks, and so do the ones asked for meanwhile.
+ * The camera is only used from a thread of its own, and the pictures are requested from the
+ * main thread.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+class Camera2Controller extends CameraController {
+
+    private static final String TAG = Camera2Controller.class.getSimpleName();
+    // the images are copied and closed as soon as they come, so a couple are enough
+    private static final int MAX_IMAGES = 2;
+    // sizes that can stream at this many frames per second are the preview sizes
+    private static final long PREVIEW_FRAME_DURATION = 1000000000L / 30;
+    // about a second of preview, after which the pictures are taken even if the camera never
+    // reported its locks, as some don't
+    private static final int MAX_LOCKING_FRAMES = 30;
+
+    private final CameraManager mCameraManager;
+    private final String mCameraId;
+    private final int mSensorOrientation;
+    private final float mHorizontalViewAngle;
+    private final float mVerticalViewAngle;
+    private final List<CameraProperties.Size> mPictureSizes;
+    private final List<CameraProperties.Size> mPreviewSizes;
+    private volatile CameraProperties.Size mPictureSize;
+
+    private final HandlerThread mCameraThread = new HandlerThread("camera");
+    private final Handler mCameraHandler;
+
+    // everything below is only used on the camera thread, but for the session that tells the
+    // main thread whether pictures can be taken
+    private CameraDevice mCameraDevice;
+    private volatile CameraCaptureSession mSession;
+    private ImageReader mImageReader;
+    // the readers of the last sessions, closed once the one of the new session is configured
+    private final List<ImageReader> mRetiredImageReaders = new ArrayList<ImageReader>();
+    // the camera only meters and focuses when its frames have somewhere to go, which nothing shows
+    private SurfaceTexture mPreviewTexture;
+    private Surface mPreviewSurface;
+    private CaptureRequest.Builder mPreviewRequestBuilder;
+    // made once per session, as the pictures are requested one after the other
+    private CaptureRequest.Builder mCaptureRequestBuilder;
+    private boolean mIsExposureLocked;
+    // the pictures asked for while the locks settle, and how many preview frames that has taken
+    private final List<Shot> mLockingShots = new ArrayList<Shot>();
+    private int mLockingFrames;
+    // the pictures whose exposure started, and the frames that came, by sensor timestamp, until
+    // they are matched
+    private final Map<Long, Exposure> mExposures = new HashMap<Long, Exposure>();
+    private final Map<Long, Frame> mFrames = new HashMap<Long, Frame>();
+    // the captures start in order, so a frame no later than this one that has no exposure is
+    // of a picture that failed, and won't ever be matched
+    private long mLastExposureTimestamp;
+    // the NV21 buffers the pipeline is done with, which the next frames are copied to
+    private final Deque<byte[]> mFrameBuffers = new ArrayDeque<byte[]>();
+
+    /**
+     * Opens the back camera with the camera2 API, or returns null if it has none or only supports
+     * it as a layer over the older API, which is then better used directly.
+     */
+    static CameraController open(
+            Context context,
+            OrientationManager orientationManager,
+            CameraView parentCameraView) throws CameraAccessException {
+        CameraManager cameraManager =
+                (CameraManager) context.getSystemService(Context.CAMERA_SERVICE);
+        for (String cameraId : cameraManager.getCameraIdList()) {
+            CameraCharacteristics characteristics =
+                    cameraManager.getCameraCharacteristics(cameraId);
+            Integer facing = characteristics.get(CameraCharacteristics.LENS_FACING);
+            Integer level = characteristics.get(
+                    CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL);
+            if (facing != null
+                    && facing == CameraMetadata.LENS_FACING_BACK
+                    && level != null
+                    && level != CameraMetadata.INFO_SUPPORTED_HARDWARE_LEVEL_LEGACY) {
+                return new Camera2Controller(
+                        context,
+                        orientationManager,
+                        parentCameraView,
+                        cameraManager,
+                        cameraId,
+                        characteristics);
+            }
+        }
+        return null;
+    }
+
+    private Camera2Controller(
+            Context context,
+            OrientationManager orientationManager,
+            CameraView parentCameraView,
+            CameraManager cameraManager,
+            String cameraId,
+            CameraCharacteristics characteristics) throws CameraAccessException {
+        super(context, orientationManager, parentCameraView);
+        mCameraManager = cameraManager;
+        mCameraId = cameraId;
+        mSensorOrientation = characteristics.get(CameraCharacteristics.SENSOR_ORIENTATION);
+
+        // the view angles of the sensor behind the shortest lens, which is the one used by default
+        float focalLength = characteristics.get(
+                CameraCharacteristics.LENS_INFO_AVAILABLE_FOCAL_LENGTHS)[0];
+        SizeF sensorSize = characteristics.get(CameraCharacteristics.SENSOR_INFO_PHYSICAL_SIZE);
+        mHorizontalViewAngle = getViewAngle(sensorSize.getWidth(), focalLength);
+        mVerticalViewAngle = getViewAngle(sensorSize.getHeight(), focalLength);
+
+        StreamConfigurationMap configurationMap = characteristics.get(
+                CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+        mPictureSizes = new ArrayList<CameraProperties.Size>();
+        mPreviewSizes = new ArrayList<CameraProperties.Size>();
+        CameraProperties.Size largestSize = null;
+        for (Size size : configurationMap.getOutputSizes(ImageFormat.YUV_420_888)) {
+            CameraProperties.Size pictureSize =
+                    new CameraProperties.Size(size.getWidth(), size.getHeight());
+            mPictureSizes.add(pictureSize);
+            long frameDuration =
+                    configurationMap.getOutputMinFrameDuration(ImageFormat.YUV_420_888, size);
+            if (frameDuration <= PREVIEW_FRAME_DURATION) {
+                mPreviewSizes.add(pictureSize);
+            }
+            if (largestSize == null || size.getWidth() > largestSize.getWidth()) {
+                largestSize = pictureSize;
+            }
+        }
+        mPictureSize = largestSize;
+
+        // the smallest size the preview can have, since it is never shown
+        Size previewSize = null;
+        for (Size size : configurationMap.getOutputSizes(SurfaceTexture.class)) {
+            if (previewSize == null || size.getWidth() < previewSize.getWidth()) {
+                previewSize = size;
+            }
+        }
+        mPreviewTexture = new SurfaceTexture(0);
+        mPreviewTexture.setDefaultBufferSize(previewSize.getWidth(), previewSize.getHeight());
+        mPreviewSurface = new Surface(mPreviewTexture);
+
+        mCameraThread.start();
+        mCameraHandler = new Handler(mCameraThread.getLooper());
+        mCameraManager.openCamera(mCameraId, mStateCallback, mCameraHandler);
+    }
+
+    // the camera uses the template of the capture mode from the next session on
+    @Override
+    public void setCaptureMode(CaptureMode captureMode) {
+        if (captureMode == mCaptureMode) {
+            return;
+        }
+        mCaptureMode = captureMode;
+        mCameraHandler.post(mCreateSession);
+    }
+
+    @Override
+    public void setPictureSize(int width, int height) {
+        mPictureSize = new CameraProperties.Size(width, height);
+        mCameraHandler.post(mCreateSession);
+    }
+
+    @Override
+    public CameraProperties getCameraProperties() {
+        return new CameraProperties(
+                mHorizontalViewAngle,
+                mVerticalViewAngle,
+                mPictureSizes,
+                mPreviewSizes,
+                mPictureSize,
+                mSensorOrientation);
+    }
+
+    // refuses until the camera is open, and while its session is made again
+    @Override
+    public CameraView.Picture takePicture(
+            String fileName,
+            CameraView.ReferencePoint referencePoint) {
+        if (mSession == null || !mPipeline.reserve()) {
+            return null;
+        }
+        final Shot shot = new Shot(mParentCameraView.getNewPicture(), referencePoint);
+        mCameraHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                capture(shot);
+            }
+        });
+        return shot.mPicture;
+    }
+
+    @Override
+    public void close() {
+        mSession = null;
+        mCameraHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                closeCamera();
+                mPreviewSurface.release();
+                mPreviewTexture.release();
+            }
+        });
+        mCameraThread.quitSafely();
+    }
+
+    @Override
+    protected void onPreviewFrameReleased(byte[] frame) {
+        synchronized (mFrameBuffers) {
+            mFrameBuffers.add(frame);
+        }
+    }
+
+    private void capture(Shot shot) {
+        if (mSession == null) {
+            lose(shot, new IllegalStateException("The camera was closed"));
+            return;
+        }
+        if (!mIsExposureLocked) {
+            mLockingShots.add(shot);
+            if (mLockingShots.size() == 1) {
+                lockExposure();
+            }
+            return;
+        }
+        try {
+            mCaptureRequestBuilder.setTag(shot);
+            mSession.capture(mCaptureRequestBuilder.build(), mCaptureCallback, mCameraHandler);
+        } catch (CameraAccessException cae) {
+            lose(shot, cae);
+        } catch (IllegalStateException ise) {
+            // the session was closed in between
+            lose(shot, ise);
+        }
+    }
+
+    // the preview keeps the exposure it converged to, and the waiting pictures are taken once its
+    // results show the locks
+    private void lockExposure() {
+        mLockingFrames = 0;
+        mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AE_LOCK, true);
+        mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AWB_LOCK, true);
+        try {
+            mPreviewRequestBuilder.set(
+                    CaptureRequest.CONTROL_AF_TRIGGER,
+                    CameraMetadata.CONTROL_AF_TRIGGER_START);
+            mSession.capture(mPreviewRequestBuilder.build(), mLockCallback, mCameraHandler);
+            mPreviewRequestBuilder.set(
+                    CaptureRequest.CONTROL_AF_TRIGGER,
+                    CameraMetadata.CONTROL_AF_TRIGGER_IDLE);
+            mSession.setRepeatingRequest(
+                    mPreviewRequestBuilder.build(),
+                    mLockCallback,
+                    mCameraHandler);
+        } catch (CameraAccessException cae) {
+            loseLockingShots(cae);
+        } catch (IllegalStateException ise) {
+            // the session was closed in between
+            loseLockingShots(ise);
+        }
+    }
+
+    private final CameraCaptureSession.CaptureCallback mLockCallback =
+            new CameraCaptureSession.CaptureCallback() {
+                @Override
+                public void onCaptureCompleted(
+                        CameraCaptureSession session,
+                        CaptureRequest request,
+                        TotalCaptureResult result) {
+                    // the results of a last session, or of the frames already on their way
+                    if (session != mSession || mIsExposureLocked) {
+                        return;
+                    }
+                    if (!isLocked(result) && ++mLockingFrames < MAX_LOCKING_FRAMES) {
+                        return;
+                    }
+                    onExposureLocked();
+                }
+            };
+
+    // cameras that have no auto exposure or focus to speak of don't report their states
+    private static boolean isLocked(CaptureResult result) {
+        Integer aeState = result.get(CaptureResult.CONTROL_AE_STATE);
+        Integer afState = result.get(CaptureResult.CONTROL_AF_STATE);
+        return (aeState == null || aeState == CameraMetadata.CONTROL_AE_STATE_LOCKED)
+                && (afState == null
+                        || afState == CameraMetadata.CONTROL_AF_STATE_FOCUSED_LOCKED
+                        || afState == CameraMetadata.CONTROL_AF_STATE_NOT_FOCUSED_LOCKED);
+    }
+
+    private void onExposureLocked() {
+        mCaptureRequestBuilder.set(CaptureRequest.CONTROL_AE_LOCK, true);
+        mCaptureRequestBuilder.set(CaptureRequest.CONTROL_AWB_LOCK, true);
+        mIsExposureLocked = true;
+        try {
+            // the preview results aren't needed anymore
+            mSession.setRepeatingRequest(mPreviewRequestBuilder.build(), null, mCameraHandler);
+        } catch (CameraAccessException cae) {
+            cae.printStackTrace();
+        } catch (IllegalStateException ise) {
+            // the pictures are then lost as they are asked for
+            ise.printStackTrace();
+        }
+        List<Shot> shots = new ArrayList<Shot>(mLockingShots);
+        mLockingShots.clear();
+        for (Shot shot : shots) {
+            capture(shot);
+        }
+    }
+
+    private void loseLockingShots(Throwable throwable) {
+        for (Shot shot : mLockingShots) {
+            lose(shot, throwable);
+        }
+        mLockingShots.clear();
+    }
+
+    private final CameraDevice.StateCallback mStateCallback = new CameraDevice.StateCallback() {
+        @Override
+        public void onOpened(CameraDevice camera) {
+            mCameraDevice = camera;
+            mCreateSession.run();
+        }
+
+        @Override
+        public void onDisconnected(CameraDevice camera) {
+            Log.e(TAG, "Camera disconnected");
+            mSession = null;
+            closeCamera();
+        }
+
+        @Override
+        public void onError(CameraDevice camera, int error) {
+            Log.e(TAG, "Camera error " + error);
+            mSession = null;
+            closeCamera();
+        }
+    };
+
+    // makes the session again, for the current picture size and capture mode
+    private final Runnable mCreateSession = new Runnable() {
+        @Override
+        public void run() {
+            if (mCameraDevice == null) {
+                return;
+            }
+            // no pictures are requested until the new session is configured
+            mSession = null;
+            if (mImageReader != null) {
+                mRetiredImageReaders.add(mImageReader);
+            }
+            CameraProperties.Size pictureSize = mPictureSize;
+            mImageReader = ImageReader.newInstance(
+                    pictureSize.getWidth(),
+                    pictureSize.getHeight(),
+                    ImageFormat.YUV_420_888,
+                    MAX_IMAGES);
+            mImageReader.setOnImageAvailableListener(mImageListener, mCameraHandler);
+            final ImageReader imageReader = mImageReader;
+            try {
+                // making a session closes the last one
+                mCameraDevice.createCaptureSession(
+                        Arrays.asList(mPreviewSurface, mImageReader.getSurface()),
+                        new CameraCaptureSession.StateCallback() {
+                            @Override
+                            public void onConfigured(CameraCaptureSession session) {
+                                // a newer session is on its way, or the camera was closed
+                                if (imageReader != mImageReader) {
+                                    session.close();
+                                    return;
+                                }
+                                for (ImageReader retiredImageReader : mRetiredImageReaders) {
+                                    retiredImageReader.close();
+                                }
+                                mRetiredImageReaders.clear();
+                                startPreview(session);
+                            }
+
+                            @Override
+                            public void onConfigureFailed(CameraCaptureSession session) {
+                                Log.e(TAG, "Unable to configure the camera");
+                                loseLockingShots(new IllegalStateException(
+                                        "Unable to configure the camera"));
+                            }
+                        },
+                        mCameraHandler);
+            } catch (CameraAccessException cae) {
+                cae.printStackTrace();
+            }
+        }
+    };
+
+    private void startPreview(CameraCaptureSession session) {
+        try {
+            mPreviewRequestBuilder =
+                    mCameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
+            mPreviewRequestBuilder.addTarget(mPreviewSurface);
+            mPreviewRequestBuilder.set(
+                    CaptureRequest.CONTROL_AF_MODE,
+                    CameraMetadata.CONTROL_AF_MODE_CONTINUOUS_PICTURE);
+
+            // preview frames are taken as the preview goes, with no processing of their own
+            mCaptureRequestBuilder = mCameraDevice.createCaptureRequest(
+                    mCaptureMode == CaptureMode.STILL
+                            ? CameraDevice.TEMPLATE_STILL_CAPTURE
+                            : CameraDevice.TEMPLATE_PREVIEW);
+            mCaptureRequestBuilder.addTarget(mImageReader.getSurface());
+            mCaptureRequestBuilder.set(
+                    CaptureRequest.CONTROL_AF_MODE,
+                    CameraMetadata.CONTROL_AF_MODE_CONTINUOUS_PICTURE);
+
+            // a new session keeps the locks the last one had
+            mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AE_LOCK, mIsExposureLocked);
+            mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AWB_LOCK, mIsExposureLocked);
+            mCaptureRequestBuilder.set(CaptureRequest.CONTROL_AE_LOCK, mIsExposureLocked);
+            mCaptureRequestBuilder.set(CaptureRequest.CONTROL_AWB_LOCK, mIsExposureLocked);
+
+            session.setRepeatingRequest(mPreviewRequestBuilder.build(), null, mCameraHandler);
+            mSession = session;
+        } catch (CameraAccessException cae) {
+            cae.printStackTrace();
+            return;
+        }
+        // the locks the last session was settling are asked for again
+        if (!mLockingShots.isEmpty()) {
+            lockExposure();
+        }
+    }
+
+    private final CameraCaptureSession.CaptureCallback mCaptureCallback =
+            new CameraCaptureSession.CaptureCallback() {
+                @Override
+                public void onCaptureStarted(
+                        CameraCaptureSession session,
+                        CaptureRequest request,
+                        long timestamp,
+                        long frameNumber) {
+                    // the device is where it was when the sensor started exposing the picture
+                    Exposure exposure = new Exposure(
+                            (Shot) request.getTag(),
+                            getPictureRotationMatrix(mSensorOrientation),
+                            getCameraProperties());
+                    Frame frame = mFrames.remove(timestamp);
+                    if (frame != null) {
+                        onPictureTaken(timestamp, exposure, frame);
+                    } else {
+                        mExposures.put(timestamp, exposure);
+                    }
+                    mLastExposureTimestamp = Math.max(mLastExposureTimestamp, timestamp);
+                    dropFailedFrames();
+                }
+
+                @Override
+                public void onCaptureFailed(
+                        CameraCaptureSession session,
+                        CaptureRequest request,
+                        CaptureFailure failure) {
+                    Shot shot = (Shot) request.getTag();
+                    Iterator<Exposure> exposures = mExposures.values().iterator();
+                    while (exposures.hasNext()) {
+                        if (exposures.next().mShot == shot) {
+                            exposures.remove();
+                        }
+                    }
+                    // the frame of the picture may already have come
+                    dropFailedFrames();
+                    lose(shot, new RuntimeException(
+                            "Failed to capture the picture, reason " + failure.getReason()));
+                }
+            };
+
+    private final ImageReader.OnImageAvailableListener mImageListener =
+            new ImageReader.OnImageAvailableListener() {
+                @Override
+                public void onImageAvailable(ImageReader reader) {
+                    Image image = reader.acquireNextImage();
+                    if (image == null) {
+                        return;
+                    }
+                    Frame frame;
+                    long timestamp;
+                    try {
+                        timestamp = image.getTimestamp();
+                        frame = new Frame(
+                                copyToNv21(image, getFrameBuffer(image)),
+                                image.getWidth(),
+                                image.getHeight());
+                    } finally {
+                        image.close();
+                    }
+                    Exposure exposure = mExposures.remove(timestamp);
+                    if (exposure != null) {
+                        onPictureTaken(timestamp, exposure, frame);
+                    } else if (timestamp <= mLastExposureTimestamp) {
+                        // the picture it was taken for failed
+                        dropFrame(frame);
+                    } else {
+                        mFrames.put(timestamp, frame);
+                    }
+                }
+            };
+
+    private void onPictureTaken(long timestamp, Exposure exposure, Frame frame) {
+        mPipeline.onPreviewFrameTaken(
+                exposure.mShot.mPicture,
+                exposure.mShot.mReferencePoint,
+                exposure.mRotationMatrix,
+                exposure.mProperties,
+                timestamp,
+                frame.mNv21,
+                frame.mWidth,
+                frame.mHeight);
+    }
+
+    // the frames taken before the last exposure started, or with it, that no exposure waits for
+    private void dropFailedFrames() {
+        Iterator<Map.Entry<Long, Frame>> frames = mFrames.entrySet().iterator();
+        while (frames.hasNext()) {
+            Map.Entry<Long, Frame> frame = frames.next();
+            if (frame.getKey() <= mLastExposureTimestamp
+                    && !mExposures.containsKey(frame.getKey())) {
+                frames.remove();
+                dropFrame(frame.getValue());
+            }
+        }
+    }
+
+    // the buffer of a frame that won't make a picture is used for the next one
+    private void dropFrame(Frame frame) {
+        synchronized (mFrameBuffers) {
+            mFrameBuffers.add(frame.mNv21);
+        }
+    }
+
+    private void lose(Shot shot, Throwable throwable) {
+        mPipeline.onPictureLost(shot.mPicture, shot.mReferencePoint, throwable);
+    }
+
+    // a buffer the pipeline gave back if there is one of the size of the image
+    private byte[] getFrameBuffer(Image image) {
+        int size = image.getWidth() * image.getHeight()
+                * ImageFormat.getBitsPerPixel(ImageFormat.NV21) / 8;
+        synchronized (mFrameBuffers) {
+            while (!mFrameBuffers.isEmpty()) {
+                byte[] buffer = mFrameBuffers.removeFirst();
+                // the buffers of another size are let go
+                if (buffer.length == size) {
+                    return buffer;
+                }
+            }
+        }
+        return new byte[size];
+    }
+
+    // the planes of a YUV_420_888 image may be laid out in many ways, NV21 is the luma rows
+    // followed by the chroma of each block of 2 by 2 pixels, V first
+    private static byte[] copyToNv21(Image image, byte[] nv21) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        Image.Plane[] planes = image.getPlanes();
+
+        ByteBuffer yBuffer = planes[0].getBuffer();
+        int yRowStride = planes[0].getRowStride();
+        for (int row = 0; row < height; row++) {
+            yBuffer.position(row * yRowStride);
+            yBuffer.get(nv21, row * width, width);
+        }
+
+        // both chroma planes have the same strides
+        ByteBuffer uBuffer = planes[1].getBuffer();
+        ByteBuffer vBuffer = planes[2].getBuffer();
+        int chromaRowStride = planes[1].getRowStride();
+        int chromaPixelStride = planes[1].getPixelStride();
+        int offset = width * height;
+        for (int row = 0; row < height / 2; row++) {
+            for (int column = 0; column < width / 2; column++) {
+                int index = row * chromaRowStride + column * chromaPixelStride;
+                nv21[offset++] = vBuffer.get(index);
+                nv21[offset++] = uBuffer.get(index);
+            }
+        }
+        return nv21;
+    }
+
+    // the pictures that will never come are given back to be taken again
+    private void closeCamera() {
+        for (Exposure exposure : mExposures.values()) {
+            lose(exposure.mShot, new IllegalStateException("The camera was closed"));
+        }
+        mExposures.clear();
+        loseLockingShots(new IllegalStateException("The camera was closed"));
+        for (Frame frame : mFrames.values()) {
+            dropFrame(frame);
+        }
+        mFrames.clear();
+        mLastExposureTimestamp = 0;
+        if (mCameraDevice != null) {
+            // this also closes the session
+            mCameraDevice.close();
+            mCameraDevice = null;
+        }
+        if (mImageReader != null) {
+            mImageReader.close();
+            mImageReader = null;
+        }
+        for (ImageReader retiredImageReader : mRetiredImageReaders) {
+            retiredImageReader.close();
+        }
+        mRetiredImageReaders.clear();
+    }
+
+    // in degrees, as the older camera API gives them
+    private static float getViewAngle(float sensorLength, float focalLength) {
+        return (float) Math.toDegrees(2 * Math.atan(sensorLength / (2 * focalLength)));
+    }
+
+    // a picture requested from the main thread
+    private static class Shot {
+        private final CameraView.Picture mPicture;
+        private final CameraView.ReferencePoint mReferencePoint;
+
+        Shot(CameraView.Picture picture, CameraView.ReferencePoint referencePoint) {
+            mPicture = picture;
+            mReferencePoint = referencePoint;
+        }
+    }
+
+    // what is known of a picture once the sensor started exposing it
+    private static class Exposure {
+        private final Shot mShot;
+        private final float[][] mRotationMatrix;
+        private final CameraProperties mProperties;
+
+        Exposure(Shot shot, float[][] rotationMatrix, CameraProperties properties) {
+            mShot = shot;
+            mRotationMatrix = rotationMatrix;
+            mProperties = properties;
+        }
+    }
+
+    // an image of the camera, copied to NV21
+    private static class Frame {
+        private final byte[] mNv21;
+        private final int mWidth;
+        private final int mHeight;
+
+        Frame(byte[] nv21, int width, int height) {
+            mNv21 = nv21;
+            mWidth = width;
+            mHeight = height;
+        }
+    }
+}
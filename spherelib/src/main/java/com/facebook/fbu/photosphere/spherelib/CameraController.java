@@ -3,48 +3,54 @@
 package com.facebook.fbu.photosphere.spherelib;
 
 import android.content.Context;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.graphics.Matrix;
-import android.graphics.Point;
 import android.hardware.Camera;
+import android.os.Build;
 import android.util.Log;
 
-import java.util.List;
+import com.facebook.fbu.photosphere.spherecore.MatrixUtils;
 
 /**
- * A single of this class is created by a CameraView to handle the camera
+ * A single of this class is created by a CameraView to handle the camera. It is backed by the
+ * camera2 API on the devices that fully support it, and by the older camera API otherwise.
  */
-public class CameraController {
+public abstract class CameraController {
+
+    public enum CaptureMode {
+        // every picture is a still capture, with its own exposure
+        STILL,
+        // every picture is the next preview frame, taken within a frame of being asked for, with
+        // the orientation the device had when the frame came
+        PREVIEW_FRAME
+    }
 
     private static final String TAG = CameraController.class.getSimpleName();
 
-    private Camera mCamera;
-    private Context mContext;
-
-    private OrientationManager mOrientationManager;
-
-    private CameraView.Picture mCurrentPicture;
-    private CameraView.ReferencePoint mCurrentReferencePoint;
-    private CameraView mParentCameraView;
-
-    private PhotoSphereConstructor mPhotoSphereConstructor;
-
-    private boolean mBusy = false;
+    protected final Context mContext;
+    protected final OrientationManager mOrientationManager;
+    protected final CameraView mParentCameraView;
+    // takes the pictures from the shutter to the CameraView, off the main thread
+    protected final CapturePipeline mPipeline;
+    protected volatile CaptureMode mCaptureMode = CaptureMode.STILL;
 
     public static CameraController getNewInstance(
             Context context,
             OrientationManager orientationManager,
-            CameraView parentCameraView,
-            PhotoSphereConstructor photoSphereConstructor) {
+            CameraView parentCameraView) {
         CameraController cameraController = null;
         try {
-            Camera camera = Camera.open();
-            cameraController = new CameraController(context,
-                    orientationManager,
-                    parentCameraView,
-                    photoSphereConstructor,
-                    camera);
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+                cameraController = Camera2Controller.open(
+                        context,
+                        orientationManager,
+                        parentCameraView);
+            }
+            if (cameraController == null) {
+                cameraController = new LegacyCameraController(
+                        context,
+                        orientationManager,
+                        parentCameraView,
+                        Camera.open());
+            }
         } catch (Exception e) {
             Log.e(TAG, "Unable to open camera", e);
         }
@@ -52,99 +58,68 @@ public class CameraController {
         return cameraController;
     }
 
-    private CameraController(Context context,
-                             OrientationManager orientationManager,
-                             CameraView parentCameraView,
-                             PhotoSphereConstructor photoSphereConstructor,
-                             Camera camera) {
-
-        mParentCameraView = parentCameraView;
+    protected CameraController(
+            Context context,
+            OrientationManager orientationManager,
+            CameraView parentCameraView) {
         mContext = context;
-        mPhotoSphereConstructor = photoSphereConstructor;
-        mCamera = camera;
-        List<Camera.Size> sizeList = mCamera.getParameters().getSupportedPictureSizes();
-        Point chosenSize = new Point(-1, -1);
-        // we choose the camera size to be the minimum size with width at least 1000
-        // I point out here that width > height, because the camera uses landscape as reference
-        for (Camera.Size size : sizeList) {
-            if (size.width > 1000 && (size.width < chosenSize.x || chosenSize.x == -1)) {
-                chosenSize.set(size.width, size.height);
+        mOrientationManager = orientationManager;
+        mParentCameraView = parentCameraView;
+        mPipeline = new CapturePipeline(new CapturePipeline.PipelineCallback() {
+            @Override
+            public void onPictureSaved(CameraView.Picture picture, byte[] jpeg) {
+                mParentCameraView.onPictureSaved(picture, jpeg);
             }
-        }
-
-        // if no size above 1000 is available we don't change it and go with the default,
-        // which is the maximum one
-        if (chosenSize.x != -1) {
-            Camera.Parameters params = mCamera.getParameters();
-            params.setPictureSize(chosenSize.x, chosenSize.y);
-            mCamera.setParameters(params);
-        }
 
-        mCamera.startPreview();
-        mOrientationManager = orientationManager;
+            @Override
+            public void onPictureFailed(
+                    CameraView.Picture picture,
+                    CameraView.ReferencePoint referencePoint,
+                    Throwable throwable) {
+                mParentCameraView.onPictureFailed(picture, referencePoint, throwable);
+            }
 
+            @Override
+            public void onPreviewFrameReleased(byte[] frame) {
+                CameraController.this.onPreviewFrameReleased(frame);
+            }
+        });
     }
 
-    public void close() {
-        mCamera.stopPreview();
-        mCamera.release();
-        try {
-            mCamera.stopPreview();
-            mCamera.release();
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
+    /**
+     * Chooses where the pictures come from. In PREVIEW_FRAME mode the pictures are taken as the
+     * preview goes, so setPictureSize() picks from the preview sizes of the camera then.
+     */
+    public abstract void setCaptureMode(CaptureMode captureMode);
+
+    public CaptureMode getCaptureMode() {
+        return mCaptureMode;
     }
 
-    public CameraView.Picture takePicture(
+    // the size of the pictures taken from now on, in landscape
+    public abstract void setPictureSize(int width, int height);
+
+    public abstract CameraProperties getCameraProperties();
+
+    /**
+     * Takes the picture for the reference point, which is saved later through the CameraView.
+     * Returns null if the camera can't take it yet, such as when too many pictures are still on
+     * their way, in which case the picture should be asked for again later.
+     */
+    public abstract CameraView.Picture takePicture(
             String fileName,
-            CameraView.ReferencePoint referencePoint) {
-        if (mBusy) {
-            return null;
-        }
-        mBusy = true;
-        mCurrentPicture = mParentCameraView.getNewPicture();
-        mCurrentReferencePoint = referencePoint;
-        mCurrentPicture.setRotationMatrix(mOrientationManager.getPositionRotMatrix());
-        mCamera.takePicture(null, null, new Camera.PictureCallback() {
-            @Override
-            public void onPictureTaken(byte[] data, Camera camera) {
-                mCamera.takePicture(null, null, new Camera.PictureCallback() {
-                    @Override
-                    public void onPictureTaken(byte[] data, Camera camera) {
-                        Bitmap bitmap = BitmapFactory.decodeByteArray(data, 0, data.length);
-
-                        Matrix matrix = new Matrix();
-                        matrix.postRotate(90);
-
-                        mCurrentPicture.setBitmap(Bitmap.createBitmap(
-                                bitmap,
-                                0,
-                                0,
-                                bitmap.getWidth(),
-                                bitmap.getHeight(),
-                                matrix,
-                                false));
-                        mCurrentPicture.setVertices(mCamera.getParameters());
-                        mCurrentPicture.setReferencePoint(mCurrentReferencePoint);
-                        mCurrentPicture.setIsSaved(true);
-                        if (mPhotoSphereConstructor != null) {
-                            mPhotoSphereConstructor.drawPicture();
-                        }
-
-                        System.gc();
-                    }
-                });
-
-                mBusy = false;
-            }
-        });
+            CameraView.ReferencePoint referencePoint);
 
-        return mCurrentPicture;
-    }
+    public abstract void close();
 
-    public Camera.Parameters getCameraParams() {
-        return mCamera.getParameters();
-    }
+    // called on the main thread once the pipeline is done with an NV21 frame it was given
+    protected abstract void onPreviewFrameReleased(byte[] frame);
 
+    // the orientation of the device, for pictures as the camera stores them, turned this many
+    // degrees from portrait
+    protected float[][] getPictureRotationMatrix(int pictureOrientation) {
+        return MatrixUtils.turnPicture(
+                mOrientationManager.getPositionRotMatrix(),
+                pictureOrientation);
+    }
 }
@@ -0,0 +1,104 @@
+// Copyright 2004-present Facebook. All Rights Reserved.
+
+package com.facebook.fbu.photosphere.spherelib;
+
+import android.hardware.Camera;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * What the pictures are planned and placed with, whichever camera backend takes them: the view
+ * angles of the camera, in degrees, and the sizes it can take its pictures and preview frames at.
+ * Everything is in landscape, as the camera stores its pictures, which have to be turned
+ * getPictureOrientation() degrees clockwise to be upright.
+ */
+public class CameraProperties {
+
+    public static class Size {
+        private final int mWidth;
+        private final int mHeight;
+
+        public Size(int width, int height) {
+            mWidth = width;
+            mHeight = height;
+        }
+
+        public int getWidth() {
+            return mWidth;
+        }
+
+        public int getHeight() {
+            return mHeight;
+        }
+    }
+
+    private final float mHorizontalViewAngle;
+    private final float mVerticalViewAngle;
+    private final List<Size> mPictureSizes;
+    private final List<Size> mPreviewSizes;
+    private final Size mPictureSize;
+    private final int mPictureOrientation;
+
+    public CameraProperties(
+            float horizontalViewAngle,
+            float verticalViewAngle,
+            List<Size> pictureSizes,
+            List<Size> previewSizes,
+            Size pictureSize,
+            int pictureOrientation) {
+        mHorizontalViewAngle = horizontalViewAngle;
+        mVerticalViewAngle = verticalViewAngle;
+        mPictureSizes = Collections.unmodifiableList(pictureSizes);
+        mPreviewSizes = Collections.unmodifiableList(previewSizes);
+        mPictureSize = pictureSize;
+        mPictureOrientation = pictureOrientation;
+    }
+
+    public static CameraProperties fromParameters(
+            Camera.Parameters parameters,
+            int pictureOrientation) {
+        Camera.Size pictureSize = parameters.getPictureSize();
+        return new CameraProperties(
+                parameters.getHorizontalViewAngle(),
+                parameters.getVerticalViewAngle(),
+                toSizes(parameters.getSupportedPictureSizes()),
+                toSizes(parameters.getSupportedPreviewSizes()),
+                new Size(pictureSize.width, pictureSize.height),
+                pictureOrientation);
+    }
+
+    public float getHorizontalViewAngle() {
+        return mHorizontalViewAngle;
+    }
+
+    public float getVerticalViewAngle() {
+        return mVerticalViewAngle;
+    }
+
+    public List<Size> getPictureSizes() {
+        return mPictureSizes;
+    }
+
+    public List<Size> getPreviewSizes() {
+        return mPreviewSizes;
+    }
+
+    // the size of the pictures taken now
+    public Size getPictureSize() {
+        return mPictureSize;
+    }
+
+    public int getPictureOrientation() {
+        return mPictureOrientation;
+    }
+
+    private static List<Size> toSizes(List<Camera.Size> cameraSizes) {
+        List<Size> sizes = new ArrayList<Size>();
+        for (Camera.Size cameraSize : cameraSizes) {
+            sizes.add(new Size(cameraSize.width, cameraSize.height));
+        }
+        return sizes;
+    }
+}
@@ -2,6 +2,7 @@
 
 package com.facebook.fbu.photosphere.spherelib;
 
+import android.app.PendingIntent;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
@@ -11,13 +12,15 @@ import android.graphics.Path;
 import android.graphics.PorterDuff;
 import android.graphics.PorterDuffXfermode;
 import android.graphics.drawable.Drawable;
-import android.hardware.Camera;
 import android.os.Vibrator;
 import android.util.Log;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.Gallery;
 
+import com.facebook.fbu.photosphere.spherecore.MatrixUtils;
+
+import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -40,8 +43,9 @@ public class CameraView extends View {
         CLOSE_TO_POLE
     }
 
-    private static final int DEFAULT_SPHERE_HEIGHT = 1000;
     private static final float ZOOM_FACTOR = 0.35f;
+    // a tiled sphere keeps at most this share of the heap in memory
+    private static final int TILED_MEMORY_DIVISOR = 4;
     private static final double MAXIMUM_ALLOWED_DEVICE_ROTATION = Math.PI / 20;
 
     private final List<Picture> mPictures = new ArrayList<Picture>();
@@ -53,6 +57,16 @@ public class CameraView extends View {
     private OrientationManager mOrientationManager;
     private CameraController mCameraController;
     private PhotoSphereConstructor mPhotoSphereConstructor;
+    private boolean mIsConstructingWhileCapturing;
+    private File mPyramidDirectory;
+    private File mScratchFile;
+    // when set, the pictures are handed to the construction service through this capture
+    private SphereCapture mCapture;
+    private PendingIntent mNotificationIntent;
+    private PhotoSphereConstructor.OutputFormat mOutputFormat =
+            PhotoSphereConstructor.OutputFormat.EQUIRECTANGULAR;
+    private SphereQualityPlanner.Quality mQuality = SphereQualityPlanner.Quality.STANDARD;
+    private int mSphereHeight;
 
     private float mViewDiameter;
 
@@ -82,8 +96,8 @@ public class CameraView extends View {
         mCameraController = CameraController.getNewInstance(
                 context,
                 mOrientationManager,
-                this,
-                mPhotoSphereConstructor);
+                this);
+        planQuality();
 
         mPaint.setStrokeWidth(getResources().getDimension(R.dimen.stroke_width));
 
@@ -159,9 +173,9 @@ public class CameraView extends View {
     @Override
     protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
         super.onMeasure(widthMeasureSpec, heightMeasureSpec);
-        float abstractWidth = (float) Math.tan((mCameraController.getCameraParams().getVerticalViewAngle()
+        float abstractWidth = (float) Math.tan((mCameraController.getCameraProperties().getVerticalViewAngle()
                 * Math.PI / 180 / 2));
-        float abstractHeight = (float) Math.tan((mCameraController.getCameraParams().getHorizontalViewAngle()
+        float abstractHeight = (float) Math.tan((mCameraController.getCameraProperties().getHorizontalViewAngle()
                 * Math.PI / 180 / 2));
         mFrameLeft = (int) (getWidth() / 2 - abstractWidth * ZOOM_FACTOR * mViewDiameter);
         mFrameRight = (int) (getWidth() / 2 + abstractWidth * ZOOM_FACTOR * mViewDiameter);
@@ -307,10 +321,15 @@ public class CameraView extends View {
 
                 // after 30 frames aiming the point, we take a picture
                 if (System.currentTimeMillis() > mInitHoverTime + HOVER_TIME_TO_CAPTURE) {
-                    mIsPictureTaken = true;
-                    Log.i("info_", "taking picutre from " + Float.toString(mCoordinates[2]));
-                    mVibrator.vibrate(20);
-                    mPictures.add(mCameraController.takePicture("muito showz man", this));
+                    // the camera refuses while it is busy or the pipeline is full, in which case
+                    // we keep hovering and try again on the next frame
+                    Picture picture = mCameraController.takePicture("muito showz man", this);
+                    if (picture != null) {
+                        mIsPictureTaken = true;
+                        Log.i("info_", "taking picutre from " + Float.toString(mCoordinates[2]));
+                        mVibrator.vibrate(20);
+                        mPictures.add(picture);
+                    }
                 }
 
             } else {
@@ -489,36 +508,46 @@ public class CameraView extends View {
     }
 
     // when a picture is taken, we save it in this Picture object, which contains the picture
-    // bitmap, its location, and tha reference point associated to it
-    public class Picture {
-        private Bitmap mBitmap;
+    // JPEG, its location, and tha reference point associated to it
+    public class Picture implements SpherePicture {
+        private JpegPicture mJpeg;
+        // a small copy of the picture, which is all the overlay needs
+        private Bitmap mOverlayBitmap;
         private float[][] mRotationMatrix;
 
-        private boolean mIsSaved = false;
+        // set last, from the capture pipeline, once everything else is
+        private volatile boolean mIsSaved = false;
 
         private float mAbstractWidth, mAbstractHeight;
+        private int mOrientation;
         private float[][] mVertices;
 
         private Matrix mMatrix = new Matrix();
 
         private ReferencePoint mReferencePoint;
+        // when the sensor started exposing the picture, in nanoseconds, or 0 if the camera
+        // doesn't say
+        private long mTimestamp;
+        // the JPEG of the picture in the capture directory, if there is one
+        private File mFile;
 
         public float[][] getVertices() {
             return mVertices;
         }
 
-        public void setVertices(Camera.Parameters cameraParameters) {
-            if (mBitmap == null || mRotationMatrix == null) {
-                throw new RuntimeException("Bitmap and rotation matrix must be both set before" +
+        public void setVertices(CameraProperties cameraProperties) {
+            if (mJpeg == null || mRotationMatrix == null) {
+                throw new RuntimeException("JPEG and rotation matrix must be both set before" +
                         " setting the vertices");
             }
 
             float[][] vertices = new float[4][3];
-            // Horizontal means vertical for the camera, because portrait mode is its referential
-            mAbstractWidth = 2 * (float) Math.tan((cameraParameters.getVerticalViewAngle()
+            // the picture is as the camera stores it, in landscape, and so are its view angles
+            mAbstractWidth = 2 * (float) Math.tan((cameraProperties.getHorizontalViewAngle()
                     * Math.PI / 180 / 2));
-            mAbstractHeight = 2 * (float) Math.tan((cameraParameters.getHorizontalViewAngle()
+            mAbstractHeight = 2 * (float) Math.tan((cameraProperties.getVerticalViewAngle()
                     * Math.PI / 180 / 2));
+            mOrientation = cameraProperties.getPictureOrientation();
 
             vertices[0] = new float[]{-mAbstractWidth / 2, -mAbstractHeight / 2, 1};
             vertices[1] = new float[]{mAbstractWidth / 2, -mAbstractHeight / 2, 1};
@@ -536,14 +565,17 @@ public class CameraView extends View {
 
         }
 
-        public Bitmap getBitmap() {
-            return mBitmap;
+        @Override
+        public JpegPicture getJpeg() {
+            return mJpeg;
         }
 
+        @Override
         public float[][] getRotationMatrix() {
             return mRotationMatrix;
         }
 
+        @Override
         public boolean isSaved() {
             return mIsSaved;
         }
@@ -552,9 +584,10 @@ public class CameraView extends View {
             mRotationMatrix = rotationMatrix;
         }
 
-        public void setBitmap(Bitmap bitmap) {
-            mBitmap = bitmap;
-            Log.i("info_", "bitmap set");
+        public void setJpeg(JpegPicture jpeg, Bitmap overlayBitmap) {
+            mJpeg = jpeg;
+            mOverlayBitmap = overlayBitmap;
+            Log.i("info_", "JPEG set");
         }
 
         public void setIsSaved(boolean isSaved) {
@@ -569,14 +602,37 @@ public class CameraView extends View {
             mReferencePoint = referencePoint;
         }
 
+        public long getTimestamp() {
+            return mTimestamp;
+        }
+
+        public void setTimestamp(long timestamp) {
+            mTimestamp = timestamp;
+        }
+
+        public File getFile() {
+            return mFile;
+        }
+
+        public void setFile(File file) {
+            mFile = file;
+        }
+
+        @Override
         public float getAbstractWidth() {
             return mAbstractWidth;
         }
 
+        @Override
         public float getAbstractHeight() {
             return mAbstractHeight;
         }
 
+        @Override
+        public int getOrientation() {
+            return mOrientation;
+        }
+
         public void draw(Canvas canvas) {
             float[][] currentRotation = mOrientationManager.getCorrectionRotMatrix();
             float[][] vertices = getVertices();
@@ -623,9 +679,9 @@ public class CameraView extends View {
                 mMatrix.setPolyToPoly(
                         new float[]{
                                 0, 0,
-                                getBitmap().getWidth(), 0,
-                                0, getBitmap().getHeight(),
-                                getBitmap().getWidth(), getBitmap().getHeight()
+                                mOverlayBitmap.getWidth(), 0,
+                                0, mOverlayBitmap.getHeight(),
+                                mOverlayBitmap.getWidth(), mOverlayBitmap.getHeight()
                         },
                         0,
                         quad,
@@ -634,21 +690,25 @@ public class CameraView extends View {
                 mMatrix.postTranslate(getWidth() / 2, getHeight() / 2);
 
                 if (rotatedVertices[0][2] < 0) {
-                    mMatrix.preTranslate(getBitmap().getWidth() / 2, getBitmap().getHeight() / 2);
+                    mMatrix.preTranslate(
+                            mOverlayBitmap.getWidth() / 2,
+                            mOverlayBitmap.getHeight() / 2);
                     mMatrix.preScale(-1, -1);
-                    mMatrix.preTranslate(-getBitmap().getWidth() / 2, -getBitmap().getHeight() / 2);
+                    mMatrix.preTranslate(
+                            -mOverlayBitmap.getWidth() / 2,
+                            -mOverlayBitmap.getHeight() / 2);
                 }
 
                 Paint paint = new Paint();
 
                 // we first draw our picture behind everything that has been drawn
                 paint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.DST_OVER));
-                canvas.drawBitmap(getBitmap(), mMatrix, paint);
+                canvas.drawBitmap(mOverlayBitmap, mMatrix, paint);
 
                 // and then draw in front, with .5 alpha, to get a blend at the intersections
                 paint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.SRC_OVER));
                 paint.setAlpha(255 / 2);
-                canvas.drawBitmap(getBitmap(), mMatrix, paint);
+                canvas.drawBitmap(mOverlayBitmap, mMatrix, paint);
             }
         }
 
@@ -675,11 +735,182 @@ public class CameraView extends View {
         return mPhotoSphereConstructor;
     }
 
+    // the ID of the construction job of this capture session, or NO_JOB_ID if there is none yet
+    public int getConstructionJobId() {
+        return mPhotoSphereConstructor != null
+                ? mPhotoSphereConstructor.getJobId()
+                : ConstructionJobManager.NO_JOB_ID;
+    }
+
+    /**
+     * When set, every picture is added to the sphere in the background as soon as it is taken,
+     * so that little is left to do when the construction is started.
+     */
+    public void setConstructWhileCapturing(boolean isConstructingWhileCapturing) {
+        mIsConstructingWhileCapturing = isConstructingWhileCapturing;
+        // constructing while capturing needs more memory per pixel of the sphere
+        planQuality();
+    }
+
+    /**
+     * Chooses how detailed the sphere is, which also sets how big the pictures taken for it are.
+     * It must be set before the first picture is taken.
+     */
+    public void setQuality(SphereQualityPlanner.Quality quality) {
+        mQuality = quality;
+        planQuality();
+    }
+
+    public SphereQualityPlanner.Quality getQuality() {
+        return mQuality;
+    }
+
+    /**
+     * Chooses whether pictures are still captures or preview frames, which are taken right away
+     * but are only as big as the preview, see CameraController. It must be set before the first
+     * picture is taken.
+     */
+    public void setCaptureMode(CameraController.CaptureMode captureMode) {
+        mCameraController.setCaptureMode(captureMode);
+        planQuality();
+    }
+
+    private void planQuality() {
+        SphereQualityPlanner planner = new SphereQualityPlanner(
+                mQuality,
+                mCameraController.getCameraProperties(),
+                mIsConstructingWhileCapturing && mScratchFile == null,
+                mScratchFile != null,
+                mCameraController.getCaptureMode() == CameraController.CaptureMode.PREVIEW_FRAME);
+        mSphereHeight = planner.getSphereHeight();
+        mCameraController.setPictureSize(planner.getPictureWidth(), planner.getPictureHeight());
+    }
+
+    // the constructor of this process also writes the sphere as a pyramid of tiles in this
+    // directory, the service writes its own in the capture directory
+    public void setPyramidDirectory(File pyramidDirectory) {
+        mPyramidDirectory = pyramidDirectory;
+    }
+
+    /**
+     * Draws the sphere on a tiled canvas that evicts tiles to the given file, so it can be as big
+     * as the camera allows, see PhotoSphereConstructor. Pictures are then only added to the
+     * sphere once the construction is started.
+     */
+    public void setScratchFile(File scratchFile) {
+        mScratchFile = scratchFile;
+        planQuality();
+    }
+
+    /**
+     * Constructs the sphere in the SphereConstructionService, in its own process, instead of in
+     * the process of the view. The JPEG of every picture is written to the capture directory as
+     * soon as it is taken, and the service is given the directory once the construction is
+     * started, or right away when constructing while capturing. The service also writes the
+     * pyramid of tiles of the sphere there, see SphereCapture.readPyramid(). Follow the
+     * construction with a SphereConstructionClient for the same directory.
+     * The notification of the service opens notificationIntent, if it isn't null.
+     */
+    public void setCaptureDirectory(File captureDirectory, PendingIntent notificationIntent) {
+        mCapture = new SphereCapture(captureDirectory);
+        mNotificationIntent = notificationIntent;
+    }
+
+    public void setOutputFormat(PhotoSphereConstructor.OutputFormat outputFormat) {
+        mOutputFormat = outputFormat;
+    }
+
+    // called by the CameraController once the bitmap of a picture is set, with its JPEG
+    void onPictureSaved(Picture picture, byte[] jpeg) {
+        if (mCapture != null) {
+            // the picture may have been popped while it was being saved
+            if (!mPictures.contains(picture)) {
+                return;
+            }
+            if (mIsConstructingWhileCapturing && mScratchFile == null) {
+                mCapture.constructWhileCapturing(getContext(), mSphereHeight);
+            }
+            mCapture.addPicture(picture, jpeg);
+            return;
+        }
+        // the picture may have been popped while it was being saved
+        if (!mIsConstructingWhileCapturing
+                || mScratchFile != null
+                || !mPictures.contains(picture)) {
+            return;
+        }
+        if (mPhotoSphereConstructor == null) {
+            mPhotoSphereConstructor = ConstructionJobManager.getInstance(getContext())
+                    .createJob(mSphereHeight);
+            mPhotoSphereConstructor.setOutputFormat(mOutputFormat);
+            mPhotoSphereConstructor.setLatitudeAdaptive(true);
+            // panoramas that leave out the poles are emitted without them
+            mPhotoSphereConstructor.setCropped(true);
+            mPhotoSphereConstructor.setCompositingMode(
+                    PhotoSphereConstructor.CompositingMode.ACCUMULATED);
+        }
+        mPhotoSphereConstructor.addPicture(picture);
+    }
+
+    // called by the CameraController when a picture couldn't be made, so it is taken again
+    void onPictureFailed(Picture picture, ReferencePoint referencePoint, Throwable throwable) {
+        Log.e("info_", "failed to take a picture", throwable);
+        // the picture may have been popped already, with its reference point
+        if (mPictures.remove(picture)) {
+            referencePoint.setIsPictureTaken(false);
+        }
+    }
+
     public void startConstruction() {
-        mPhotoSphereConstructor = PhotoSphereConstructor.getInstance(CameraView.this, DEFAULT_SPHERE_HEIGHT);
-        for (Picture picture : mPictures) {
-            mPhotoSphereConstructor.drawPicture();
+        if (mCapture != null) {
+            final Context context = getContext().getApplicationContext();
+            final File captureDirectory = mCapture.getDirectory();
+            final int sphereHeight = mSphereHeight;
+            final PendingIntent notificationIntent = mNotificationIntent;
+            // the service is only started once the manifest lists the pictures
+            mCapture.finish(mPictures, new Runnable() {
+                @Override
+                public void run() {
+                    SphereConstructionClient.startConstruction(
+                            context,
+                            captureDirectory,
+                            sphereHeight,
+                            notificationIntent);
+                }
+            });
+            return;
         }
+        if (mPhotoSphereConstructor == null) {
+            mPhotoSphereConstructor = ConstructionJobManager.getInstance(getContext()).createJob(
+                    mSphereHeight,
+                    mScratchFile,
+                    Runtime.getRuntime().maxMemory() / TILED_MEMORY_DIVISOR);
+            mPhotoSphereConstructor.setOutputFormat(mOutputFormat);
+            mPhotoSphereConstructor.setLatitudeAdaptive(true);
+            // panoramas that leave out the poles are emitted without them
+            mPhotoSphereConstructor.setCropped(true);
+        }
+        // a low resolution sphere comes first, so there is something to show right away
+        mPhotoSphereConstructor.setProgressive(true);
+        if (mPyramidDirectory != null) {
+            mPhotoSphereConstructor.setPyramidDirectory(mPyramidDirectory);
+        }
+        mPhotoSphereConstructor.construct(mPictures);
+    }
+
+    // drops the construction of this capture session, when the pictures are discarded
+    public void cancelConstruction() {
+        if (mCapture != null) {
+            mCapture.delete();
+            return;
+        }
+        if (mPhotoSphereConstructor == null) {
+            return;
+        }
+
+        ConstructionJobManager.getInstance(getContext())
+                .release(mPhotoSphereConstructor.getJobId());
+        mPhotoSphereConstructor = null;
     }
 
     public void savePictureToFileWhenDone(String fileName) {
@@ -688,9 +919,19 @@ public class CameraView extends View {
         }
 
         mPhotoSphereConstructor.setDestinationFile(fileName);
-        if (mPhotoSphereConstructor.isConstructionDone()) {
-            mPhotoSphereConstructor.savePictureToFile();
+    }
+
+    // a PNG file is written while the sphere is drawn, other formats once it is done
+    public void savePictureToFileWhenDone(
+            String fileName,
+            PhotoSphereConstructor.FileFormat fileFormat,
+            int quality) {
+        if (mPhotoSphereConstructor == null) {
+            return;
         }
+
+        mPhotoSphereConstructor.setFileFormat(fileFormat, quality);
+        mPhotoSphereConstructor.setDestinationFile(fileName);
     }
 
 
@@ -713,6 +954,12 @@ public class CameraView extends View {
         }
         Picture picture = mPictures.remove(mPictures.size() - 1);
         picture.getReferencePoint().setIsPictureTaken(false);
+        // only the part of the sphere that the picture covered has to be drawn again
+        if (mCapture != null) {
+            mCapture.removePicture(picture);
+        } else if (mPhotoSphereConstructor != null) {
+            mPhotoSphereConstructor.removePicture(picture);
+        }
         return true;
     }
 
@@ -0,0 +1,263 @@
+// Copyright 2004-present Facebook. All Rights Reserved.
+
+package com.facebook.fbu.photosphere.spherelib;
+
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.graphics.YuvImage;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Takes the pictures of the CameraController from the shutter to the construction, in stages:
+ * - shutter: the camera takes the picture, or keeps a preview frame, and the orientation of the
+ *   device and the camera parameters are read right then, on the thread of the camera
+ * - decode: the JPEG of a preview frame is made, and the overlay copy of the picture decoded
+ * - bind: the picture gets its rotation, vertices and reference point, and is marked saved
+ * - handoff: the picture is given to the CameraView, on the main thread, as its pictures are
+ * Decoding and binding each have a thread of their own, so the main thread only ever does the
+ * few steps of the handoff. At most MAX_PENDING_SHOTS shots are between the shutter and the
+ * handoff: reserve() refuses more until one is through, so a burst slows the shutter down
+ * rather than piling up pictures in memory, and every queue is bounded by it. A shot that was
+ * let in always ends in onPictureSaved() or onPictureFailed().
+ */
+public class CapturePipeline {
+
+    public interface PipelineCallback {
+        // the picture is saved and can be drawn and constructed
+        void onPictureSaved(CameraView.Picture picture, byte[] jpeg);
+
+        // the picture couldn't be made, and the reference point can be aimed at again
+        void onPictureFailed(
+                CameraView.Picture picture,
+                CameraView.ReferencePoint referencePoint,
+                Throwable throwable);
+
+        // the buffer of a preview frame is converted and can be given back to the camera
+        void onPreviewFrameReleased(byte[] frame);
+    }
+
+    // the shots being decoded and bound at the same time, at most
+    private static final int MAX_PENDING_SHOTS = 3;
+    private static final int PREVIEW_FRAME_QUALITY = 95;
+    // the pictures are drawn on the overlay from copies at least this many pixels long, or as
+    // long as the picture if it is shorter, and less than twice as long
+    private static final int OVERLAY_PICTURE_SIZE = 512;
+
+    private final PipelineCallback mCallback;
+    private final Semaphore mPendingShots = new Semaphore(MAX_PENDING_SHOTS);
+    private final ThreadPoolExecutor mDecodeService = createStage();
+    private final ThreadPoolExecutor mBindService = createStage();
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    public CapturePipeline(PipelineCallback callback) {
+        mCallback = callback;
+    }
+
+    // lets one more shot in, or returns false if the pipeline is full and it has to wait
+    public boolean reserve() {
+        return mPendingShots.tryAcquire();
+    }
+
+    // gives back a shot that was let in but never taken
+    public void cancel() {
+        mPendingShots.release();
+    }
+
+    // the shutter stage of a still capture, with the JPEG the camera gave
+    public void onPictureTaken(
+            CameraView.Picture picture,
+            CameraView.ReferencePoint referencePoint,
+            float[][] rotationMatrix,
+            CameraProperties properties,
+            long timestamp,
+            byte[] jpeg) {
+        decode(new Shot(
+                picture,
+                referencePoint,
+                rotationMatrix,
+                properties,
+                timestamp,
+                jpeg,
+                null,
+                0,
+                0));
+    }
+
+    // the shutter stage of an NV21 frame, whose buffer is kept until it is converted
+    public void onPreviewFrameTaken(
+            CameraView.Picture picture,
+            CameraView.ReferencePoint referencePoint,
+            float[][] rotationMatrix,
+            CameraProperties properties,
+            long timestamp,
+            byte[] frame,
+            int width,
+            int height) {
+        decode(new Shot(
+                picture,
+                referencePoint,
+                rotationMatrix,
+                properties,
+                timestamp,
+                null,
+                frame,
+                width,
+                height));
+    }
+
+    // the shutter stage of a picture the camera lost, which can be taken again
+    public void onPictureLost(
+            CameraView.Picture picture,
+            CameraView.ReferencePoint referencePoint,
+            Throwable throwable) {
+        fail(new Shot(picture, referencePoint, null, null, 0, null, null, 0, 0), throwable);
+    }
+
+    private void decode(final Shot shot) {
+        mDecodeService.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (shot.mFrame != null) {
+                        YuvImage frame = new YuvImage(
+                                shot.mFrame,
+                                ImageFormat.NV21,
+                                shot.mFrameWidth,
+                                shot.mFrameHeight,
+                                null);
+                        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+                        frame.compressToJpeg(
+                                new Rect(0, 0, shot.mFrameWidth, shot.mFrameHeight),
+                                PREVIEW_FRAME_QUALITY,
+                                outputStream);
+                        shot.mJpeg = outputStream.toByteArray();
+                        releaseFrame(shot.mFrame);
+                    }
+                    JpegPicture jpeg = new JpegPicture(shot.mJpeg);
+                    if (!jpeg.isValid()) {
+                        throw new RuntimeException("Failed to decode the picture");
+                    }
+                    // the decoder only samples by powers of 2, and frames shorter than the
+                    // overlay copy are decoded whole
+                    int overlaySampleSize = Math.max(1, Integer.highestOneBit(
+                            Math.max(jpeg.getWidth(), jpeg.getHeight()) / OVERLAY_PICTURE_SIZE));
+                    shot.mPicture.setJpeg(jpeg, jpeg.decode(overlaySampleSize));
+                } catch (RuntimeException e) {
+                    fail(shot, e);
+                    return;
+                } catch (OutOfMemoryError e) {
+                    fail(shot, e);
+                    return;
+                }
+                bind(shot);
+            }
+        });
+    }
+
+    private void bind(final Shot shot) {
+        mBindService.execute(new Runnable() {
+            @Override
+            public void run() {
+                CameraView.Picture picture = shot.mPicture;
+                try {
+                    picture.setRotationMatrix(shot.mRotationMatrix);
+                    picture.setVertices(shot.mProperties);
+                    picture.setReferencePoint(shot.mReferencePoint);
+                    picture.setTimestamp(shot.mTimestamp);
+                } catch (RuntimeException e) {
+                    fail(shot, e);
+                    return;
+                }
+                // the picture is only drawn once it is saved, which publishes all of the above
+                picture.setIsSaved(true);
+                handOff(shot);
+            }
+        });
+    }
+
+    private void handOff(final Shot shot) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mPendingShots.release();
+                mCallback.onPictureSaved(shot.mPicture, shot.mJpeg);
+            }
+        });
+    }
+
+    private void fail(final Shot shot, final Throwable throwable) {
+        if (shot.mFrame != null && shot.mJpeg == null) {
+            releaseFrame(shot.mFrame);
+        }
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mPendingShots.release();
+                mCallback.onPictureFailed(shot.mPicture, shot.mReferencePoint, throwable);
+            }
+        });
+    }
+
+    private void releaseFrame(final byte[] frame) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mCallback.onPreviewFrameReleased(frame);
+            }
+        });
+    }
+
+    // each stage takes its shots one after the other, and never has more queued than can be
+    // let in
+    private static ThreadPoolExecutor createStage() {
+        ThreadPoolExecutor stage = new ThreadPoolExecutor(
+                1,
+                1,
+                1,
+                TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(MAX_PENDING_SHOTS));
+        stage.allowCoreThreadTimeOut(true);
+        return stage;
+    }
+
+    // a picture on its way through the pipeline
+    private static class Shot {
+        private final CameraView.Picture mPicture;
+        private final CameraView.ReferencePoint mReferencePoint;
+        private final float[][] mRotationMatrix;
+        private final CameraProperties mProperties;
+        private final long mTimestamp;
+        private byte[] mJpeg;
+        private final byte[] mFrame;
+        private final int mFrameWidth;
+        private final int mFrameHeight;
+
+        Shot(
+                CameraView.Picture picture,
+                CameraView.ReferencePoint referencePoint,
+                float[][] rotationMatrix,
+                CameraProperties properties,
+                long timestamp,
+                byte[] jpeg,
+                byte[] frame,
+                int frameWidth,
+                int frameHeight) {
+            mPicture = picture;
+            mReferencePoint = referencePoint;
+            mRotationMatrix = rotationMatrix;
+            mProperties = properties;
+            mTimestamp = timestamp;
+            mJpeg = jpeg;
+            mFrame = frame;
+            mFrameWidth = frameWidth;
+            mFrameHeight = frameHeight;
+        }
+    }
+}
@@ -0,0 +1,159 @@
+// Copyright 2004-present Facebook. All Rights Reserved.
+
+package com.facebook.fbu.photosphere.spherelib;
+
+import android.content.Context;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps the constructions of every capture session, each as a job with its own ID, so a new
+ * session or a recreated activity never touches the construction of another one. Components
+ * that follow a construction look it up with getJob() from the ID they were given.
+ * At most a given number of jobs draw at the same time, and only as long as the memory they
+ * need fits in the budget. Other jobs wait in the order their construction was requested, but
+ * a job always starts when no other one is drawing, however much memory it needs.
+ */
+public class ConstructionJobManager {
+
+    public static final int NO_JOB_ID = -1;
+
+    private static final int DEFAULT_MAX_RUNNING_JOBS = 2;
+    // the jobs that are drawing get at most this share of the heap
+    private static final int MEMORY_DIVISOR = 2;
+
+    private static ConstructionJobManager sInstance;
+
+    private final Context mContext;
+    private final Map<Integer, PhotoSphereConstructor> mJobs =
+            new HashMap<Integer, PhotoSphereConstructor>();
+    private final List<PhotoSphereConstructor> mQueuedJobs =
+            new ArrayList<PhotoSphereConstructor>();
+    private final List<PhotoSphereConstructor> mRunningJobs =
+            new ArrayList<PhotoSphereConstructor>();
+    private int mNextJobId;
+
+    private int mMaxRunningJobs = DEFAULT_MAX_RUNNING_JOBS;
+    private long mMemoryBudget = Runtime.getRuntime().maxMemory() / MEMORY_DIVISOR;
+
+    public static synchronized ConstructionJobManager getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ConstructionJobManager(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private ConstructionJobManager(Context context) {
+        mContext = context;
+    }
+
+    // a job that draws its sphere on a bitmap of the given height
+    public PhotoSphereConstructor createJob(int height) {
+        return createJob(height, null, 0);
+    }
+
+    /**
+     * A job that draws its sphere on a tiled canvas instead of a bitmap if scratchFile isn't null,
+     * see PhotoSphereConstructor.
+     */
+    public synchronized PhotoSphereConstructor createJob(
+            int height,
+            File scratchFile,
+            long memoryBudget) {
+        int jobId = mNextJobId++;
+        PhotoSphereConstructor job = new PhotoSphereConstructor(
+                this,
+                jobId,
+                mContext,
+                height,
+                scratchFile,
+                memoryBudget);
+        mJobs.put(jobId, job);
+        return job;
+    }
+
+    // the job with the given ID, or null if it was released or never existed
+    public synchronized PhotoSphereConstructor getJob(int jobId) {
+        return mJobs.get(jobId);
+    }
+
+    /**
+     * Stops a job that is waiting or drawing, which then fails with a CancellationException.
+     * Returns false if there is no such job or it was already done.
+     */
+    public boolean cancel(int jobId) {
+        PhotoSphereConstructor job = getJob(jobId);
+        return job != null && job.cancel();
+    }
+
+    /**
+     * Forgets a job once nothing follows it anymore, cancelling it if it isn't done, so that
+     * its sphere and its scratch file can be freed.
+     */
+    public void release(int jobId) {
+        PhotoSphereConstructor job;
+        synchronized (this) {
+            job = mJobs.remove(jobId);
+        }
+        if (job != null) {
+            job.cancel();
+            job.close();
+        }
+    }
+
+    public synchronized void setMaxRunningJobs(int maxRunningJobs) {
+        mMaxRunningJobs = Math.max(1, maxRunningJobs);
+    }
+
+    // the memory, in bytes, that the jobs that are drawing may need altogether
+    public synchronized void setMemoryBudget(long memoryBudget) {
+        mMemoryBudget = memoryBudget;
+    }
+
+    // starts the job right away if it fits, or once enough of the jobs before it are done. A job
+    // that was done asks again before it redraws the sphere for edits
+    void requestStart(PhotoSphereConstructor job) {
+        synchronized (this) {
+            mQueuedJobs.add(job);
+        }
+        startQueuedJobs();
+    }
+
+    // called once a job is done drawing, has failed or was cancelled
+    void onJobFinished(PhotoSphereConstructor job) {
+        synchronized (this) {
+            mQueuedJobs.remove(job);
+            mRunningJobs.remove(job);
+        }
+        startQueuedJobs();
+    }
+
+    // jobs are started outside of the lock, as they call back into the manager
+    private void startQueuedJobs() {
+        List<PhotoSphereConstructor> jobsToStart = new ArrayList<PhotoSphereConstructor>();
+        synchronized (this) {
+            long memoryInUse = 0;
+            for (PhotoSphereConstructor job : mRunningJobs) {
+                memoryInUse += job.getMemoryNeeded();
+            }
+            while (!mQueuedJobs.isEmpty() && mRunningJobs.size() < mMaxRunningJobs) {
+                PhotoSphereConstructor job = mQueuedJobs.get(0);
+                long memoryNeeded = job.getMemoryNeeded();
+                if (!mRunningJobs.isEmpty() && memoryInUse + memoryNeeded > mMemoryBudget) {
+                    break;
+                }
+                mQueuedJobs.remove(0);
+                mRunningJobs.add(job);
+                memoryInUse += memoryNeeded;
+                jobsToStart.add(job);
+            }
+        }
+        for (PhotoSphereConstructor job : jobsToStart) {
+            job.start();
+        }
+    }
+}
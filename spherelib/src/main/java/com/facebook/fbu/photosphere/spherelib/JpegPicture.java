@@ -0,0 +1,200 @@
+// Copyright 2004-present Facebook. All Rights Reserved.
+
+package com.facebook.fbu.photosphere.spherelib;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * A picture kept as the JPEG the camera gave, in memory or in a file, instead of as a bitmap.
+ * The picture is as the JPEG stores it, which is sideways for camera JPEGs: its pixels are never
+ * turned, it is the rotation matrix of the picture that says which way it faces, see
+ * MatrixUtils.turnPicture().
+ * Only what is asked for is decoded, a few rows at a time, and the bitmaps decoded at the same
+ * time by all pictures stay under a budget shared by the whole process.
+ */
+public class JpegPicture {
+
+    // the bytes of the bitmaps being decoded at the same time, by all pictures
+    private static final MemoryBudget sDecodeBudget =
+            new MemoryBudget(Runtime.getRuntime().maxMemory() / 16);
+    // about how many pixels are decoded at a time when the whole picture is read
+    private static final int STRIP_PIXELS = 256 * 1024;
+    private static final int BYTES_PER_PIXEL = 4;
+
+    // the JPEG is read from the file once it is set, and the bytes are then let go
+    private byte[] mJpeg;
+    private File mFile;
+    private final int mWidth;
+    private final int mHeight;
+
+    public JpegPicture(byte[] jpeg) {
+        mJpeg = jpeg;
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length, options);
+        mWidth = options.outWidth;
+        mHeight = options.outHeight;
+    }
+
+    public JpegPicture(File file) {
+        mFile = file;
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(file.getPath(), options);
+        mWidth = options.outWidth;
+        mHeight = options.outHeight;
+    }
+
+    // the bytes the decoders take their bitmaps from
+    public static MemoryBudget getDecodeBudget() {
+        return sDecodeBudget;
+    }
+
+    // whether the JPEG could be read at all
+    public boolean isValid() {
+        return mWidth > 0 && mHeight > 0;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    // the file the JPEG is read from, or null while it is only in memory
+    public synchronized File getFile() {
+        return mFile;
+    }
+
+    // the JPEG has been written to file, which it is read from from now on
+    public synchronized void moveToFile(File file) {
+        mFile = file;
+        mJpeg = null;
+    }
+
+    /**
+     * Decodes the whole picture with at least sampleSize times fewer pixels on each side, to be
+     * drawn where the picture doesn't need all of its pixels, such as on an overlay.
+     */
+    public Bitmap decode(int sampleSize) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = getPowerOfTwoBelow(sampleSize);
+        long bytes = (long) (mWidth / options.inSampleSize)
+                * (mHeight / options.inSampleSize) * BYTES_PER_PIXEL;
+        sDecodeBudget.acquire(bytes);
+        try {
+            Bitmap bitmap;
+            synchronized (this) {
+                bitmap = mJpeg != null
+                        ? BitmapFactory.decodeByteArray(mJpeg, 0, mJpeg.length, options)
+                        : BitmapFactory.decodeFile(mFile.getPath(), options);
+            }
+            if (bitmap == null) {
+                throw new RuntimeException("Failed to decode the picture");
+            }
+            return bitmap;
+        } finally {
+            sDecodeBudget.release(bytes);
+        }
+    }
+
+    /**
+     * Reads the pixels of the picture, getWidth() / sampleSize by getHeight() / sampleSize of
+     * them, each standing for sampleSize by sampleSize pixels of the picture. The JPEG is decoded
+     * a strip of rows at a time, at the sample size, so only the array stays. The array itself
+     * isn't counted in the decode budget, its owner keeps track of it.
+     */
+    public int[] readPixels(int sampleSize) {
+        int width = mWidth / sampleSize;
+        int height = mHeight / sampleSize;
+        int[] pixels = new int[width * height];
+
+        // the decoder only samples by powers of 2, and the strips are scaled down from there
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = getPowerOfTwoBelow(sampleSize);
+        boolean isScaled = options.inSampleSize != sampleSize;
+        int decodedWidth = width * sampleSize / options.inSampleSize;
+        int rowsPerStrip = Math.max(
+                1,
+                STRIP_PIXELS / decodedWidth * options.inSampleSize / sampleSize);
+        // strips that need no scaling are all decoded in the same bitmap
+        if (!isScaled) {
+            options.inMutable = true;
+        }
+        Rect region = new Rect();
+        // the bitmap of the first strip is reused by the others, so its bytes are only given
+        // back once it is recycled after the last one
+        long reusedBytes = isScaled
+                ? 0
+                : (long) width * Math.min(rowsPerStrip, height) * BYTES_PER_PIXEL;
+
+        sDecodeBudget.acquire(reusedBytes);
+        BitmapRegionDecoder decoder = null;
+        try {
+            decoder = createRegionDecoder();
+            for (int firstRow = 0; firstRow < height; firstRow += rowsPerStrip) {
+                int numOfRows = Math.min(rowsPerStrip, height - firstRow);
+                int decodedRows = numOfRows * sampleSize / options.inSampleSize;
+                // scaled strips and their scaled copy are recycled before the next strip
+                long bytes = isScaled
+                        ? ((long) decodedWidth * decodedRows + (long) width * numOfRows)
+                                * BYTES_PER_PIXEL
+                        : 0;
+                sDecodeBudget.acquire(bytes);
+                try {
+                    region.set(0, firstRow * sampleSize, width * sampleSize,
+                            (firstRow + numOfRows) * sampleSize);
+                    Bitmap bitmap = decoder.decodeRegion(region, options);
+                    if (bitmap == null) {
+                        throw new RuntimeException("Failed to decode the picture");
+                    }
+                    if (isScaled) {
+                        Bitmap scaled = Bitmap.createScaledBitmap(bitmap, width, numOfRows, true);
+                        bitmap.recycle();
+                        bitmap = scaled;
+                    } else {
+                        // a last, shorter strip only fills the top of the bitmap
+                        options.inBitmap = bitmap;
+                    }
+                    bitmap.getPixels(pixels, firstRow * width, width, 0, 0, width, numOfRows);
+                    if (isScaled) {
+                        bitmap.recycle();
+                    }
+                } finally {
+                    sDecodeBudget.release(bytes);
+                }
+            }
+        } finally {
+            if (decoder != null) {
+                decoder.recycle();
+            }
+            if (options.inBitmap != null) {
+                options.inBitmap.recycle();
+            }
+            sDecodeBudget.release(reusedBytes);
+        }
+        return pixels;
+    }
+
+    private synchronized BitmapRegionDecoder createRegionDecoder() {
+        try {
+            return mJpeg != null
+                    ? BitmapRegionDecoder.newInstance(mJpeg, 0, mJpeg.length, false)
+                    : BitmapRegionDecoder.newInstance(mFile.getPath(), false);
+        } catch (IOException ioe) {
+            throw new RuntimeException("Failed to open the picture", ioe);
+        }
+    }
+
+    private static int getPowerOfTwoBelow(int value) {
+        return Integer.highestOneBit(Math.max(1, value));
+    }
+}
@@ -0,0 +1,232 @@
+// Copyright 2004-present Facebook. All Rights Reserved.
+
+package com.facebook.fbu.photosphere.spherelib;
+
+import android.content.Context;
+import android.graphics.ImageFormat;
+import android.graphics.SurfaceTexture;
+import android.hardware.Camera;
+
+import java.io.IOException;
+
+/**
+ * The CameraController of the devices without full camera2 support, with the older camera API.
+ * Still captures come as JPEGs from the camera, and preview frames as NV21 from a ring of buffers.
+ */
+class LegacyCameraController extends CameraController {
+
+    // the camera stores its pictures in landscape, turned this much from portrait, which the
+    // rotation matrices of the pictures take in so their pixels are never turned
+    private static final int PICTURE_ORIENTATION = 90;
+    // the preview frames are filled in turn in this many buffers, so the camera has one to fill
+    // while a kept frame is converted
+    private static final int NUM_OF_PREVIEW_BUFFERS = 3;
+
+    private Camera mCamera;
+    private boolean mIsClosed;
+
+    // the camera only sends preview frames when they have somewhere to go, which nothing shows
+    private SurfaceTexture mPreviewTexture;
+    private int mPreviewWidth;
+    private int mPreviewHeight;
+    private int mPreviewBufferSize;
+    // whether the next preview frame is the picture being taken
+    private boolean mIsPreviewFrameRequested;
+
+    private CameraView.Picture mCurrentPicture;
+    private CameraView.ReferencePoint mCurrentReferencePoint;
+    // the orientation and the parameters of the camera when the shutter of the still capture
+    // being taken went off
+    private float[][] mShutterRotationMatrix;
+    private Camera.Parameters mShutterParameters;
+
+    private boolean mBusy = false;
+
+    LegacyCameraController(
+            Context context,
+            OrientationManager orientationManager,
+            CameraView parentCameraView,
+            Camera camera) {
+        super(context, orientationManager, parentCameraView);
+        mCamera = camera;
+        mCamera.startPreview();
+    }
+
+    @Override
+    protected void onPreviewFrameReleased(byte[] frame) {
+        // the buffer goes back to the ring, unless the preview size changed
+        if (!mIsClosed
+                && frame.length == mPreviewBufferSize
+                && mCaptureMode == CaptureMode.PREVIEW_FRAME) {
+            mCamera.addCallbackBuffer(frame);
+        }
+    }
+
+    // in PREVIEW_FRAME mode the pictures are as big as the preview, so setPictureSize() sets the
+    // preview size then
+    @Override
+    public void setCaptureMode(CaptureMode captureMode) {
+        if (captureMode == mCaptureMode) {
+            return;
+        }
+        mCaptureMode = captureMode;
+        mCamera.stopPreview();
+        if (captureMode == CaptureMode.PREVIEW_FRAME) {
+            if (mPreviewTexture == null) {
+                mPreviewTexture = new SurfaceTexture(0);
+                try {
+                    mCamera.setPreviewTexture(mPreviewTexture);
+                } catch (IOException ioe) {
+                    throw new RuntimeException("Failed to set the preview texture", ioe);
+                }
+            }
+            allocatePreviewBuffers();
+        } else {
+            // this also drops the buffers
+            mCamera.setPreviewCallbackWithBuffer(null);
+            mIsPreviewFrameRequested = false;
+        }
+        mCamera.startPreview();
+    }
+
+    @Override
+    public void setPictureSize(int width, int height) {
+        Camera.Parameters params = mCamera.getParameters();
+        if (mCaptureMode == CaptureMode.STILL) {
+            params.setPictureSize(width, height);
+            mCamera.setParameters(params);
+            return;
+        }
+        // the buffers are only as big as the preview, so they are made again
+        mCamera.stopPreview();
+        params.setPreviewSize(width, height);
+        mCamera.setParameters(params);
+        allocatePreviewBuffers();
+        mCamera.startPreview();
+    }
+
+    // must be called while the preview is stopped
+    private void allocatePreviewBuffers() {
+        Camera.Parameters params = mCamera.getParameters();
+        params.setPreviewFormat(ImageFormat.NV21);
+        mCamera.setParameters(params);
+        Camera.Size previewSize = params.getPreviewSize();
+        mPreviewWidth = previewSize.width;
+        mPreviewHeight = previewSize.height;
+        mPreviewBufferSize = mPreviewWidth * mPreviewHeight
+                * ImageFormat.getBitsPerPixel(ImageFormat.NV21) / 8;
+
+        // the buffers of another size are dropped, and those still being converted aren't
+        // given back
+        mCamera.setPreviewCallbackWithBuffer(null);
+        mCamera.setPreviewCallbackWithBuffer(mPreviewCallback);
+        for (int k = 0; k < NUM_OF_PREVIEW_BUFFERS; k++) {
+            mCamera.addCallbackBuffer(new byte[mPreviewBufferSize]);
+        }
+    }
+
+    @Override
+    public void close() {
+        mIsClosed = true;
+        if (mCaptureMode == CaptureMode.PREVIEW_FRAME) {
+            mCamera.setPreviewCallbackWithBuffer(null);
+        }
+        mCamera.stopPreview();
+        mCamera.release();
+        try {
+            mCamera.stopPreview();
+            mCamera.release();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        if (mPreviewTexture != null) {
+            mPreviewTexture.release();
+        }
+    }
+
+    // refuses while the camera is still taking the last picture as well
+    @Override
+    public CameraView.Picture takePicture(
+            String fileName,
+            CameraView.ReferencePoint referencePoint) {
+        if (mBusy || !mPipeline.reserve()) {
+            return null;
+        }
+        mBusy = true;
+        mCurrentPicture = mParentCameraView.getNewPicture();
+        mCurrentReferencePoint = referencePoint;
+        if (mCaptureMode == CaptureMode.PREVIEW_FRAME) {
+            // the orientation is only read once the frame comes, to be the one of its pixels
+            mIsPreviewFrameRequested = true;
+            return mCurrentPicture;
+        }
+        // in case the camera doesn't call the shutter callback
+        mShutterRotationMatrix = getPictureRotationMatrix(PICTURE_ORIENTATION);
+        mShutterParameters = mCamera.getParameters();
+        try {
+            mCamera.takePicture(mShutterCallback, null, mJpegCallback);
+        } catch (RuntimeException re) {
+            re.printStackTrace();
+            mBusy = false;
+            mPipeline.cancel();
+            return null;
+        }
+
+        return mCurrentPicture;
+    }
+
+    private final Camera.ShutterCallback mShutterCallback = new Camera.ShutterCallback() {
+        @Override
+        public void onShutter() {
+            mShutterRotationMatrix = getPictureRotationMatrix(PICTURE_ORIENTATION);
+            mShutterParameters = mCamera.getParameters();
+        }
+    };
+
+    private final Camera.PictureCallback mJpegCallback = new Camera.PictureCallback() {
+        @Override
+        public void onPictureTaken(byte[] data, Camera camera) {
+            // the preview stops for a still capture, and the next one can be taken as soon as it
+            // is back
+            camera.startPreview();
+            mBusy = false;
+            mPipeline.onPictureTaken(
+                    mCurrentPicture,
+                    mCurrentReferencePoint,
+                    mShutterRotationMatrix,
+                    CameraProperties.fromParameters(mShutterParameters, PICTURE_ORIENTATION),
+                    0,
+                    data);
+        }
+    };
+
+    // preview frames come on the main thread, which the camera was opened on
+    private final Camera.PreviewCallback mPreviewCallback = new Camera.PreviewCallback() {
+        @Override
+        public void onPreviewFrame(byte[] data, Camera camera) {
+            if (!mIsPreviewFrameRequested) {
+                camera.addCallbackBuffer(data);
+                return;
+            }
+            // the frame is kept out of the ring until it is converted, the other buffers are
+            // enough for the preview to go on
+            mIsPreviewFrameRequested = false;
+            mBusy = false;
+            mPipeline.onPreviewFrameTaken(
+                    mCurrentPicture,
+                    mCurrentReferencePoint,
+                    getPictureRotationMatrix(PICTURE_ORIENTATION),
+                    CameraProperties.fromParameters(camera.getParameters(), PICTURE_ORIENTATION),
+                    0,
+                    data,
+                    mPreviewWidth,
+                    mPreviewHeight);
+        }
+    };
+
+    @Override
+    public CameraProperties getCameraProperties() {
+        return CameraProperties.fromParameters(mCamera.getParameters(), PICTURE_ORIENTATION);
+    }
+
+}
@@ -0,0 +1,45 @@
+// Copyright 2004-present Facebook. All Rights Reserved.
+
+package com.facebook.fbu.photosphere.spherelib;
+
+import java.util.concurrent.CancellationException;
+
+/**
+ * A number of bytes that threads take from before they allocate, and give back once they are
+ * done, so that what they allocate at the same time never goes over it.
+ * A thread that asks for more than the whole budget waits until it has all of it.
+ */
+public class MemoryBudget {
+
+    private final long mSize;
+    private long mUsed;
+
+    public MemoryBudget(long size) {
+        mSize = size;
+    }
+
+    public long getSize() {
+        return mSize;
+    }
+
+    // waits until the bytes fit in what is left of the budget, and takes them
+    public synchronized void acquire(long bytes) {
+        long taken = Math.min(bytes, mSize);
+        while (mUsed + taken > mSize) {
+            try {
+                wait();
+            } catch (InterruptedException ie) {
+                // the threads that decode for the constructor are interrupted when it is
+                // cancelled, and have nothing left to do then
+                Thread.currentThread().interrupt();
+                throw new CancellationException("Interrupted while waiting for memory");
+            }
+        }
+        mUsed += taken;
+    }
+
+    public synchronized void release(long bytes) {
+        mUsed -= Math.min(bytes, mSize);
+        notifyAll();
+    }
+}
@@ -8,6 +8,8 @@ import android.hardware.SensorEvent;
 import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
 
+import com.facebook.fbu.photosphere.spherecore.MatrixUtils;
+
 import java.util.ArrayDeque;
 import java.util.Queue;
 
@@ -2,233 +2,1358 @@
 
 package com.facebook.fbu.photosphere.spherelib;
 
+import android.content.Context;
 import android.graphics.Bitmap;
-import android.graphics.Canvas;
-import android.graphics.Paint;
-import android.graphics.PorterDuff;
-import android.graphics.PorterDuffXfermode;
+import android.graphics.Rect;
 import android.os.Environment;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 
-import java.io.ByteArrayOutputStream;
+import com.facebook.fbu.photosphere.spherecore.CubemapLayout;
+import com.facebook.fbu.photosphere.spherecore.EquirectangularLayout;
+import com.facebook.fbu.photosphere.spherecore.PictureLayer;
+import com.facebook.fbu.photosphere.spherecore.SourcePicture;
+import com.facebook.fbu.photosphere.spherecore.SphereFootprint;
+import com.facebook.fbu.photosphere.spherecore.SphereLayout;
+import com.facebook.fbu.photosphere.spherecore.SphereStitcher;
+import com.facebook.fbu.photosphere.spherecore.StreamingPngWriter;
+
+import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Created by rangelo on 7/29/15.
+ *
+ * A construction job, created and started by the ConstructionJobManager, see getJobId().
+ * The sphere is drawn on a bitmap, or on a tiled canvas if the job has a scratch file, so it can
+ * be far bigger than the heap: tiles are only allocated where some picture lands, and the least
+ * recently used ones are evicted to the scratch file once they take more than the memory budget.
+ * getBitmap() then returns null, and the sphere is read from getCanvas(), the pyramid or the
+ * file, which is always a PNG. Only the LAYERED compositing mode is supported on a tiled canvas.
  */
 public class PhotoSphereConstructor {
 
-    private CameraView mCameraView;
+    // the output is split in bands of this many rows, each drawn by a single thread
+    private static final int BAND_HEIGHT = 16;
+    // height of the low resolution sphere drawn first in progressive mode
+    private static final int PREVIEW_HEIGHT = 250;
+    private static final int DEFAULT_FILE_QUALITY = 90;
+    private static final int BYTES_PER_PIXEL = 4;
+    // the pixels read from the pictures by all constructions at the same time
+    private static final SourcePixelCache sSourcePixelCache =
+            new SourcePixelCache(Runtime.getRuntime().maxMemory() / 8);
+
+    private final ConstructionJobManager mJobManager;
+    private final int mJobId;
+    // only used to know where files go, so the job never holds on to an activity
+    private final Context mContext;
+    private OutputFormat mOutputFormat = OutputFormat.EQUIRECTANGULAR;
+    // whether the rows near the poles are sampled as sparsely as their real width allows
+    private boolean mIsLatitudeAdaptive;
+    private boolean mIsBilinearSampling;
+    private SphereLayout mLayout;
     private int mWidth;
     private int mHeight;
-    private int mNumOfPicturesDrawn = 0;
 
+    // the sphere is drawn on the canvas, which is the bitmap unless it is tiled. It is only
+    // allocated once the job starts, so waiting jobs don't take the memory
+    private SphereCanvas mCanvas;
     private Bitmap mBitmap;
-    private Canvas mCanvas;
+    private Bitmap mPreviewBitmap;
+    // a tiled canvas evicts tiles to this file once they take more than the memory budget
+    private final File mScratchFile;
+    private final long mScratchMemoryBudget;
+
+    private boolean mIsProgressive;
+    // the part of the sphere that is emitted, which is all of it unless cropping is on
+    private boolean mIsCropped;
+    private volatile SphereCrop mCrop;
+    private Bitmap mCroppedBitmap;
+    private SpherePyramid mPyramid;
+    private ConstructionPass mPass;
+
+    private CompositingMode mCompositingMode = CompositingMode.LAYERED;
+    private AccumulationBuffer mAccumulationBuffer;
+    // in ACCUMULATED mode, a thread must hold the lock of a band to touch its sums
+    private Object[] mBandLocks;
+    private final List<SpherePicture> mAddedPictures = new ArrayList<SpherePicture>();
+    private int mNumOfPicturesPending;
+    private boolean mIsConstructionRequested;
+    // the pictures given to construct(), drawn once the job starts
+    private List<SpherePicture> mPictures;
+
+    // pictures to take out of or put in the sphere once the construction is done
+    private final List<Edit> mPendingEdits = new ArrayList<Edit>();
+    // whether edits are being made, or wait for the job manager to let this job run again
+    private boolean mIsEditing;
 
     private String mDestinationFile;
-    private File mFile;
-    private boolean mIsConstructionDone;
+    private volatile File mFile;
+    private FileFormat mFileFormat = FileFormat.JPEG;
+    private int mFileQuality = DEFAULT_FILE_QUALITY;
+    // rows of the full resolution sphere that the construction has drawn so far, the lock of the
+    // array guards it
+    private boolean[] mIsRowDrawn;
+    // in PNG, the file is written while the sphere is drawn
+    private PngFileStream mPngFileStream;
+    // whether the sphere changed after it was first drawn
+    private boolean mIsEdited;
+    private volatile boolean mIsConstructionDone;
+    private boolean mIsPreviewReady;
+    private volatile Throwable mFailure;
+
+    private ConstructionCallback mConstructionCallback;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    // bands are queued in order and each idle thread takes the next one, so threads that get
+    // cheap bands just end up drawing more of them. Idle threads go away, so the pool doesn't
+    // have to be shut down to be able to redraw the sphere after it is done
+    private final ThreadPoolExecutor mExecutorService = new ThreadPoolExecutor(
+            Runtime.getRuntime().availableProcessors(),
+            Runtime.getRuntime().availableProcessors(),
+            1,
+            TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>());
+
+    // files are written on their own thread, so they never hold back the drawing
+    private final ThreadPoolExecutor mFileExecutorService = new ThreadPoolExecutor(
+            1,
+            1,
+            1,
+            TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>());
+
+    private volatile boolean mIsFileSaved;
+
+    public enum FileFormat {
+        JPEG(Bitmap.CompressFormat.JPEG, ".jpg"),
+        WEBP(Bitmap.CompressFormat.WEBP, ".webp"),
+        // lossless, and written band by band while the sphere is drawn
+        PNG(Bitmap.CompressFormat.PNG, ".png");
+
+        private final Bitmap.CompressFormat mCompressFormat;
+        private final String mExtension;
+
+        FileFormat(Bitmap.CompressFormat compressFormat, String extension) {
+            mCompressFormat = compressFormat;
+            mExtension = extension;
+        }
+
+        public Bitmap.CompressFormat getCompressFormat() {
+            return mCompressFormat;
+        }
+
+        public String getExtension() {
+            return mExtension;
+        }
+    }
+
+    public enum OutputFormat {
+        // a 2:1 image where columns go around the sphere and rows from pole to pole
+        EQUIRECTANGULAR,
+        // the six faces of a cube, in 3 columns and 2 rows, see CubemapLayout. It takes a
+        // quarter fewer pixels than the equirectangular image of the same height
+        CUBEMAP
+    }
+
+    public enum CompositingMode {
+        // each picture is drawn behind everything and then in front with an alpha that fades
+        // towards its borders, so the result depends on the order of the pictures
+        LAYERED,
+        // pictures are averaged with weights that fade towards their borders, so they can be
+        // drawn in any order, even concurrently, and as soon as they are taken
+        ACCUMULATED
+    }
+
+    /**
+     * interface used to follow a construction. Every call happens on the main thread.
+     */
+    public interface ConstructionCallback {
+
+        /**
+         * called every time a part of the full resolution sphere is drawn
+         *
+         * @param progress - fraction of the sphere drawn so far, from 0 to 1
+         * @param dirtyRegion - the region of getBitmap() that has just been drawn
+         */
+        void onConstructionProgress(float progress, Rect dirtyRegion);
+
+        // called in progressive mode once the low resolution sphere is drawn
+        void onPreviewReady(Bitmap preview);
+
+        // called once the full resolution sphere is drawn, with null if it is on a tiled canvas
+        void onConstructionDone(Bitmap bitmap);
+
+        // called if the construction stopped because of an error
+        void onConstructionFailed(Throwable throwable);
+
+        // called if the sphere couldn't be saved to the destination file, which is then left out
+        void onFileSaveFailed(Throwable throwable);
+    }
+
+    PhotoSphereConstructor(
+            ConstructionJobManager jobManager,
+            int jobId,
+            Context context,
+            int height,
+            File scratchFile,
+            long memoryBudget) {
+
+        mJobManager = jobManager;
+        mJobId = jobId;
+        mContext = context;
+        mScratchFile = scratchFile;
+        mScratchMemoryBudget = memoryBudget;
+        if (scratchFile != null) {
+            mFileFormat = FileFormat.PNG;
+        }
 
-    // manages the drawing processes in at most two threads
-    private ExecutorService mExecutorService = Executors.newFixedThreadPool(2);
+        mLayout = createLayout(height);
+        mWidth = mLayout.getWidth();
+        mHeight = mLayout.getHeight();
 
-    private boolean mIsFileSaved;
+        allocateRowsDrawn();
+        mCrop = SphereCrop.full(mWidth, mHeight);
 
-    private static PhotoSphereConstructor sInstance;
+        mExecutorService.allowCoreThreadTimeOut(true);
+        mFileExecutorService.allowCoreThreadTimeOut(true);
+    }
+
+    // the ID to look this job up with in the ConstructionJobManager
+    public int getJobId() {
+        return mJobId;
+    }
+
+    // the sphere, or null if the job hasn't started or it is drawn on a tiled canvas
+    public Bitmap getBitmap() {
+        return mBitmap;
+    }
+
+    // the sphere, or null if the job hasn't started
+    public SphereCanvas getCanvas() {
+        return mCanvas;
+    }
+
+    // the low resolution sphere, only available in progressive mode
+    public Bitmap getPreviewBitmap() {
+        return mPreviewBitmap;
+    }
+
+    /**
+     * Must be set before anything else, as the buffers are allocated again to fit the new format.
+     */
+    public synchronized void setOutputFormat(OutputFormat outputFormat) {
+        if (outputFormat == mOutputFormat) {
+            return;
+        }
+        mOutputFormat = outputFormat;
+        mLayout = createLayout(mHeight);
+        mWidth = mLayout.getWidth();
+        mHeight = mLayout.getHeight();
+
+        if (mCanvas != null) {
+            allocateCanvas();
+        }
+        allocateRowsDrawn();
+        mCrop = SphereCrop.full(mWidth, mHeight);
+        if (mAccumulationBuffer != null) {
+            allocateAccumulationBuffer();
+        }
+    }
+
+    public OutputFormat getOutputFormat() {
+        return mOutputFormat;
+    }
 
-    public static PhotoSphereConstructor getInstance() {
-        return sInstance;
+    /**
+     * When set, the rows of an equirectangular sphere are sampled only as many times as fit
+     * along their parallel at the resolution of the equator, and each sample fills the columns
+     * around it. This is much quicker for pictures close to the poles, which would otherwise be
+     * sampled thousands of times per row for a few pixels worth of sphere.
+     * Must be set before any picture is added or construct() is called.
+     */
+    public synchronized void setLatitudeAdaptive(boolean isLatitudeAdaptive) {
+        mIsLatitudeAdaptive = isLatitudeAdaptive;
+        mLayout = createLayout(mHeight);
     }
 
-    public static PhotoSphereConstructor getInstance(CameraView cameraView, int height) {
+    /**
+     * When set, pictures are read bilinearly instead of from their nearest pixel, which is
+     * smoother where the sphere is drawn at a higher resolution than the pictures.
+     * Must be set before any picture is added or construct() is called.
+     */
+    public synchronized void setBilinearSampling(boolean isBilinearSampling) {
+        mIsBilinearSampling = isBilinearSampling;
+    }
+
+    private void allocateCanvas() {
+        if (mBitmap != null) {
+            mBitmap.recycle();
+            mBitmap = null;
+        }
+        if (mCanvas instanceof TiledSphereCanvas) {
+            ((TiledSphereCanvas) mCanvas).close();
+        }
+
+        if (mScratchFile == null) {
+            mBitmap = Bitmap.createBitmap(mWidth, mHeight, Bitmap.Config.ARGB_8888);
+            mCanvas = new BitmapSphereCanvas(mBitmap);
+            return;
+        }
         try {
-            sInstance = new PhotoSphereConstructor(cameraView, height);
-        } catch (Exception e) {
-            e.printStackTrace();
+            mCanvas = new TiledSphereCanvas(mWidth, mHeight, mScratchFile, mScratchMemoryBudget);
+        } catch (IOException ioe) {
+            throw new RuntimeException("Failed to create " + mScratchFile, ioe);
         }
+    }
 
-        return sInstance;
+    // the layout of a sphere of the given height in the output format
+    private SphereLayout createLayout(int height) {
+        if (mOutputFormat == OutputFormat.CUBEMAP) {
+            return new CubemapLayout(height / 2);
+        }
+        return new EquirectangularLayout(height, mIsLatitudeAdaptive);
     }
 
+    // the last row of an equirectangular sphere is left out, as it always was
+    private int getNumOfRowsDrawn(int height) {
+        return mOutputFormat == OutputFormat.EQUIRECTANGULAR ? height - 1 : height;
+    }
 
-    private PhotoSphereConstructor(CameraView cameraView, int height) {
+    private void allocateRowsDrawn() {
+        mIsRowDrawn = new boolean[mHeight];
+        // rows that are never drawn are not waited for
+        for (int j = getNumOfRowsDrawn(mHeight); j < mHeight; j++) {
+            mIsRowDrawn[j] = true;
+        }
+    }
 
-        mCameraView = cameraView;
+    /**
+     * Sets the format and the quality, from 0 to 100, of the file the sphere is saved to.
+     * Must be set before setDestinationFile() is called.
+     */
+    public synchronized void setFileFormat(FileFormat fileFormat, int quality) {
+        if (mScratchFile != null && fileFormat != FileFormat.PNG) {
+            throw new IllegalStateException("A tiled sphere can only be saved as a PNG");
+        }
+        mFileFormat = fileFormat;
+        mFileQuality = quality;
+    }
 
-        mHeight = height;
-        mWidth = 2 * height;
+    public FileFormat getFileFormat() {
+        return mFileFormat;
+    }
 
-        mBitmap = Bitmap.createBitmap(mWidth, mHeight, Bitmap.Config.ARGB_8888);
-        mCanvas = new Canvas(mBitmap);
+    /**
+     * Also writes the sphere as a pyramid of tiles in the given directory, while it is drawn.
+     * Must be set before construct() is called.
+     */
+    public void setPyramidDirectory(File directory) {
+        mPyramid = new SpherePyramid(directory, mWidth, mHeight);
+    }
 
+    // the pyramid of tiles, only available if a pyramid directory was set
+    public SpherePyramid getPyramid() {
+        return mPyramid;
     }
 
-    public Bitmap getBitmap() {
-        return mBitmap;
+    /**
+     * In progressive mode a low resolution sphere is drawn first, so there is something to show
+     * and post right away, and then the full resolution one is drawn.
+     * Must be set before construct() is called.
+     */
+    public void setProgressive(boolean isProgressive) {
+        mIsProgressive = isProgressive;
+    }
+
+    /**
+     * When set, only the part of an equirectangular sphere the pictures reach is emitted, see
+     * SphereCrop, which is much smaller for panoramas that leave out the poles or part of the
+     * horizon. The crop is found from the pictures there are when construct() is called, and it
+     * applies to the bitmap given to onConstructionDone(), to the file and to getCrop(), while
+     * getBitmap(), getCanvas() and the pyramid still have the whole sphere.
+     * Must be set before construct() is called.
+     */
+    public void setCropped(boolean isCropped) {
+        mIsCropped = isCropped;
+    }
+
+    // where the emitted image is in the whole sphere
+    public SphereCrop getCrop() {
+        return mCrop;
+    }
+
+    /**
+     * Must be set before any picture is added or construct() is called.
+     */
+    public synchronized void setCompositingMode(CompositingMode compositingMode) {
+        if (mScratchFile != null && compositingMode == CompositingMode.ACCUMULATED) {
+            throw new IllegalStateException("A tiled sphere can't be accumulated");
+        }
+        mCompositingMode = compositingMode;
+        if (compositingMode == CompositingMode.ACCUMULATED && mAccumulationBuffer == null) {
+            allocateAccumulationBuffer();
+        }
+    }
+
+    private void allocateAccumulationBuffer() {
+        mAccumulationBuffer = new AccumulationBuffer(mWidth, mHeight);
+        mBandLocks = new Object[(mHeight + BAND_HEIGHT - 1) / BAND_HEIGHT];
+        for (int band = 0; band < mBandLocks.length; band++) {
+            mBandLocks[band] = new Object();
+        }
     }
 
-    public void drawPicture() {
-        final Runnable mDrawPictureRunnable = new Runnable() {
+    public CompositingMode getCompositingMode() {
+        return mCompositingMode;
+    }
+
+    /**
+     * Adds a picture to the sphere in the background right away, instead of waiting for
+     * construct(). Only works in ACCUMULATED mode, where the order doesn't matter.
+     */
+    public synchronized void addPicture(SpherePicture picture) {
+        if (mCompositingMode != CompositingMode.ACCUMULATED) {
+            throw new IllegalStateException("Pictures can only be added in ACCUMULATED mode");
+        }
+        if (picture == null || mAddedPictures.contains(picture)) {
+            return;
+        }
+        mAddedPictures.add(picture);
+        accumulateInBackground(new JpegLayer(picture, mLayout, mIsBilinearSampling), 1);
+    }
+
+    /**
+     * Takes a picture out of the sphere, only redrawing the part of it the picture covered.
+     */
+    public void removePicture(SpherePicture picture) {
+        replacePicture(picture, null);
+    }
+
+    /**
+     * Puts newPicture in the place of oldPicture, either of which may be null, only redrawing the
+     * part of the sphere that they cover.
+     * Before construct() this only matters in ACCUMULATED mode, where the sums are updated right
+     * away. After it, the edit is made in the background once the construction is done, and the
+     * callback gets the redrawn regions and then onConstructionDone() again. A job that was done
+     * waits for the job manager to let it run again before it redraws, like any other job.
+     */
+    public synchronized void replacePicture(
+            SpherePicture oldPicture,
+            SpherePicture newPicture) {
+        if (newPicture != null && !newPicture.isSaved()) {
+            newPicture = null;
+        }
+
+        if (!mIsConstructionRequested) {
+            // in LAYERED mode nothing is drawn yet, construct() is given the pictures to draw
+            if (mCompositingMode == CompositingMode.ACCUMULATED) {
+                if (mAddedPictures.remove(oldPicture)) {
+                    accumulateInBackground(
+                            new JpegLayer(oldPicture, mLayout, mIsBilinearSampling), -1);
+                }
+                addPicture(newPicture);
+            }
+            return;
+        }
+
+        mPendingEdits.add(new Edit(oldPicture, newPicture));
+        if (mIsConstructionDone && !mIsEditing) {
+            mIsConstructionDone = false;
+            mIsEditing = true;
+            requestRestart();
+        }
+    }
+
+    // adds (sign = 1) or takes out (sign = -1) a picture from the sums on some thread of the pool
+    private void accumulateInBackground(final JpegLayer layer, final int sign) {
+        mNumOfPicturesPending++;
+        mExecutorService.execute(new Runnable() {
             @Override
             public void run() {
-                mNumOfPicturesDrawn++;
-                drawPictureProcess(mCameraView.getPictures().get(mNumOfPicturesDrawn - 1));
-                if (mNumOfPicturesDrawn == mCameraView.getPictures().size()) {
-                    if (mDestinationFile != null) {
-                        savePictureToFile();
-                    }
-                    mIsConstructionDone = true;
+                if (mFailure != null) {
+                    return;
+                }
+                try {
+                    accumulate(layer, sign);
+                } catch (Exception e) {
+                    onConstructionFailed(e);
+                    return;
+                } catch (OutOfMemoryError e) {
+                    onConstructionFailed(e);
+                    return;
                 }
+                onPictureAccumulated();
             }
-        };
-
-        mExecutorService.execute(mDrawPictureRunnable);
+        });
     }
 
-    public void drawPictureProcess(CameraView.Picture picture) {
+    private synchronized void onPictureAccumulated() {
+        mNumOfPicturesPending--;
+        // the pass is only there once the job started
+        if (mPass != null && mNumOfPicturesPending == 0) {
+            mPass.start();
+        }
+    }
 
-        Rect rect = new Rect(picture.getBitmap().getWidth() / 6, picture.getBitmap().getWidth()
-                * 5 / 6, picture.getBitmap().getHeight() / 6, picture.getBitmap().getHeight()
-                - picture.getBitmap().getWidth() / 6);
+    // adds (sign = 1) or takes out (sign = -1) the weighted colors of a picture
+    private void accumulate(JpegLayer layer, int sign) {
+        int[] colors = new int[mWidth * BAND_HEIGHT];
+        int[] alphas = new int[mWidth * BAND_HEIGHT];
+        float[] direction = new float[3];
+
+        for (int band = layer.getFirstRow() / BAND_HEIGHT;
+                band <= Math.min(layer.getLastRow(), mHeight - 1) / BAND_HEIGHT; band++) {
+            int firstRow = Math.max(band * BAND_HEIGHT, layer.getFirstRow());
+            int lastRow = Math.min((band + 1) * BAND_HEIGHT - 1, layer.getLastRow());
+            int bandFirstRow = band * BAND_HEIGHT;
+
+            // the sampling happens outside of the lock, other pictures can add to this band
+            // in the meantime
+            for (int j = firstRow; j <= lastRow; j++) {
+                layer.sampleRow(
+                        j, colors, alphas, (j - bandFirstRow) * mWidth, null, direction);
+            }
 
+            synchronized (mBandLocks[band]) {
+                for (int j = firstRow; j <= lastRow; j++) {
+                    int rowOffset = (j - bandFirstRow) * mWidth;
+                    for (int[] window : layer.getWindows()) {
+                        if (j < window[2] || j > window[3]) {
+                            continue;
+                        }
+                        for (int i = window[0]; i <= window[1]; i++) {
+                            int alpha = alphas[rowOffset + i];
+                            if (alpha >= 0) {
+                                // pixels at the very border still count a little, so that
+                                // they are not left empty where only one picture reaches
+                                mAccumulationBuffer.add(
+                                        i, j, colors[rowOffset + i], sign * (alpha + 1));
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        layer.releaseSourcePixels();
+    }
 
-        int jumpSize = 15;
-        boolean moveFast = false;
-        int count = 0;
+    /**
+     * Sets the callback that follows this construction, or removes it if null. Events that
+     * already happened are sent again to the new callback.
+     */
+    public synchronized void setConstructionCallback(ConstructionCallback constructionCallback) {
+        mConstructionCallback = constructionCallback;
+        if (constructionCallback == null) {
+            return;
+        }
 
-        boolean gotInside;
+        if (mFailure != null) {
+            notifyFailed(mFailure);
+            return;
+        }
+        if (mIsPreviewReady) {
+            notifyPreviewReady();
+        }
+        if (mIsConstructionDone) {
+            notifyDone();
+        } else if (mPass != null) {
+            notifyProgress(requestProgress(), new Rect(0, 0, mWidth, mHeight));
+        }
+    }
 
-        Paint dstOverPaint = new Paint();
-        dstOverPaint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.DST_OVER));
+    /**
+     * Draws the given pictures in the sphere, in the background, once the job manager lets this
+     * job start. Pictures that aren't saved yet are left out.
+     * In LAYERED mode every band of the output gets the pictures in the order they are given,
+     * and in ACCUMULATED mode the order doesn't matter, so in both cases the result doesn't
+     * depend on how many threads there are or on which thread draws which band.
+     */
+    public void construct(List<? extends SpherePicture> pictures) {
+        List<SpherePicture> savedPictures = new ArrayList<SpherePicture>();
+        for (SpherePicture picture : pictures) {
+            if (picture != null && picture.isSaved()) {
+                savedPictures.add(picture);
+            }
+        }
 
-        Paint srcOverPaint = new Paint();
-        srcOverPaint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.SRC_OVER));
+        synchronized (this) {
+            if (mIsConstructionRequested) {
+                throw new IllegalStateException("The construction was already requested");
+            }
+            if (mIsCropped && mOutputFormat == OutputFormat.EQUIRECTANGULAR) {
+                List<SphereFootprint> footprints = new ArrayList<SphereFootprint>();
+                for (SpherePicture picture : savedPictures) {
+                    footprints.add(SphereFootprint.of(
+                            picture.getRotationMatrix(),
+                            picture.getAbstractWidth(),
+                            picture.getAbstractHeight()));
+                }
+                mCrop = SphereCrop.of(footprints, mWidth, mHeight);
+            }
+            mPictures = savedPictures;
+            // edits from now on wait for the construction to be done
+            mIsConstructionRequested = true;
+        }
+        mJobManager.requestStart(this);
+    }
 
-        Paint helperPaint = new Paint();
-        helperPaint.setARGB(50, 255, 0, 0);
+    // called by the job manager once there is room for this job
+    void start() {
+        synchronized (this) {
+            // the job may have been cancelled while it was waiting
+            if (mFailure != null) {
+                return;
+            }
+            // the sphere is already drawn, the job only waited to make its edits
+            if (mIsEditing) {
+                startEditing();
+                return;
+            }
+            try {
+                allocateCanvas();
+            } catch (RuntimeException e) {
+                onConstructionFailed(e);
+                return;
+            } catch (OutOfMemoryError e) {
+                onConstructionFailed(e);
+                return;
+            }
+            // rows that are never drawn are not waited for
+            if (mPyramid != null && getNumOfRowsDrawn(mHeight) < mHeight) {
+                mPyramid.onRowsDrawn(mCanvas, getNumOfRowsDrawn(mHeight), mHeight - 1);
+            }
+        }
 
-        int color;
-        int alpha;
+        // the preview bands are queued first, so they are all drawn before the full resolution
+        // ones take over the threads
+        if (mIsProgressive && PREVIEW_HEIGHT < mHeight) {
+            SphereLayout previewLayout = createLayout(PREVIEW_HEIGHT);
+            mPreviewBitmap = Bitmap.createBitmap(
+                    previewLayout.getWidth(),
+                    previewLayout.getHeight(),
+                    Bitmap.Config.ARGB_8888);
+            new ConstructionPass(
+                    new BitmapSphereCanvas(mPreviewBitmap),
+                    previewLayout,
+                    mPictures,
+                    true).start();
+        }
 
+        if (mCompositingMode == CompositingMode.ACCUMULATED) {
+            // once every picture is in the sums, the pass only has to normalize them
+            synchronized (this) {
+                mPass = new ConstructionPass(mCanvas, mAccumulationBuffer);
+                for (SpherePicture picture : mPictures) {
+                    addPicture(picture);
+                }
+                if (mNumOfPicturesPending == 0) {
+                    mPass.start();
+                }
+            }
+        } else {
+            ConstructionPass pass = new ConstructionPass(mCanvas, mLayout, mPictures, false);
+            synchronized (this) {
+                mPass = pass;
+            }
+            pass.start();
+        }
+    }
 
-        for (int i = 0; i < mWidth; i++) {
-            for (int j = 0; j < mHeight - 1; j++) {
-                float xAngle = (float) (2 * Math.PI * (float) i / mWidth);
-                float yAngle = (float) (Math.PI * (((float) j / mHeight) - 1.0f / 2));
-                float[] pointInSphere = new float[]{
-                        (float) Math.sin(yAngle),
-                        (float) (Math.cos(xAngle) * Math.cos(yAngle)),
-                        (float) (Math.sin(xAngle) * Math.cos(yAngle))
-                };
+    /**
+     * Stops the construction, which then fails with a CancellationException. Returns false if it
+     * was already done or had failed.
+     */
+    public synchronized boolean cancel() {
+        if (mFailure != null || mIsConstructionDone) {
+            return false;
+        }
+        onConstructionFailed(new CancellationException("The construction was cancelled"));
+        return true;
+    }
 
+    // frees the scratch file of a tiled canvas, after which the sphere can't be read anymore
+    synchronized void close() {
+        if (mCanvas instanceof TiledSphereCanvas) {
+            ((TiledSphereCanvas) mCanvas).close();
+        }
+    }
 
-                float[] rotated = MatrixUtils.multiply(
-                        pointInSphere,
-                        MatrixUtils.transpose(picture.getRotationMatrix()));
+    /**
+     * The memory the construction may need at worst while it draws, in bytes: the sphere, the
+     * preview, the pixels of the pictures, which are decoded into arrays while their bands are
+     * drawn but never take more than the pixel cache, and the strips they are decoded in. An
+     * accumulation buffer is left out, as it is already there while capturing.
+     */
+    synchronized long getMemoryNeeded() {
+        long memoryNeeded = mScratchFile != null
+                ? mScratchMemoryBudget
+                : (long) mWidth * mHeight * BYTES_PER_PIXEL;
+        if (mIsProgressive && PREVIEW_HEIGHT < mHeight) {
+            SphereLayout previewLayout = createLayout(PREVIEW_HEIGHT);
+            memoryNeeded +=
+                    (long) previewLayout.getWidth() * previewLayout.getHeight() * BYTES_PER_PIXEL;
+        }
+        if (mPictures != null) {
+            long pixelsNeeded = 0;
+            for (SpherePicture picture : mPictures) {
+                JpegPicture jpeg = picture.getJpeg();
+                pixelsNeeded += (long) jpeg.getWidth() * jpeg.getHeight() * BYTES_PER_PIXEL;
+            }
+            memoryNeeded += Math.min(pixelsNeeded, sSourcePixelCache.getSize());
+            // and the strips the JPEGs are decoded in on the way
+            memoryNeeded += JpegPicture.getDecodeBudget().getSize();
+        }
+        return memoryNeeded;
+    }
 
-                gotInside = rotated[2] > 0;
+    private synchronized void onPreviewDone() {
+        mIsPreviewReady = true;
+        if (mFailure == null) {
+            notifyPreviewReady();
+        }
+    }
 
-                if (gotInside) {
+    private synchronized void onConstructionDone() {
+        if (mFailure != null) {
+            return;
+        }
+        if (!mPendingEdits.isEmpty()) {
+            startEditing();
+            return;
+        }
+        mIsConstructionDone = true;
+        notifyJobFinished();
+        if (mBitmap != null && !mCrop.isFull()) {
+            if (mCroppedBitmap != null) {
+                mCroppedBitmap.recycle();
+            }
+            mCroppedBitmap = mCrop.crop(mCanvas);
+        }
+        // a PNG file is already on its way, unless the sphere changed since it was drawn
+        if (mDestinationFile != null && (mPngFileStream == null || mIsEdited)) {
+            savePictureToFile();
+        }
+        notifyDone();
+    }
 
-                    float[] projected = project(rotated);
+    private synchronized void onConstructionFailed(Throwable throwable) {
+        if (mFailure != null) {
+            return;
+        }
+        Log.e("info_", "Sphere construction failed", throwable);
+        mFailure = throwable;
+        mExecutorService.shutdownNow();
+        // lets the PNG file stream close its file
+        if (mPngFileStream != null) {
+            mFileExecutorService.execute(mPngFileStream);
+        }
+        notifyFailed(throwable);
+        notifyJobFinished();
+    }
 
+    // makes the pending edits one after the other on a thread of the pool, the caller must hold
+    // the lock. The job stays running for the job manager until they are all made
+    private void startEditing() {
+        mIsConstructionDone = false;
+        mIsEditing = true;
+        mIsEdited = true;
+        mExecutorService.execute(new Runnable() {
+            @Override
+            public void run() {
+                while (true) {
+                    Edit edit;
+                    synchronized (PhotoSphereConstructor.this) {
+                        if (mFailure != null) {
+                            return;
+                        }
+                        if (mPendingEdits.isEmpty()) {
+                            mIsEditing = false;
+                            break;
+                        }
+                        edit = mPendingEdits.remove(0);
+                    }
 
-                    projected[0] *= picture.getBitmap().getWidth()
-                            / picture.getAbstractWidth();
-                    projected[0] += picture.getBitmap().getWidth() / 2;
-                    projected[1] *= picture.getBitmap().getHeight()
-                            / picture.getAbstractHeight();
-                    projected[1] += picture.getBitmap().getHeight() / 2;
+                    try {
+                        applyEdit(edit);
+                    } catch (Exception e) {
+                        onConstructionFailed(e);
+                        return;
+                    } catch (OutOfMemoryError e) {
+                        onConstructionFailed(e);
+                        return;
+                    }
+                }
+                onConstructionDone();
+            }
+        });
+    }
 
-                    gotInside = (projected[0] >= 0
-                            && projected[0] < picture.getBitmap().getWidth() - 1
-                            && projected[1] >= 0
-                            && projected[1] < picture.getBitmap().getHeight() - 1);
+    private void applyEdit(Edit edit) {
+        JpegLayer oldLayer = null;
+        JpegLayer newLayer = null;
 
-                    if (gotInside) {
-                        color = picture.getBitmap().getPixel(
-                                (int) projected[0],
-                                (int) projected[1]);
+        if (mCompositingMode == CompositingMode.ACCUMULATED) {
+            synchronized (this) {
+                if (edit.mOldPicture != null && mAddedPictures.remove(edit.mOldPicture)) {
+                    oldLayer = new JpegLayer(edit.mOldPicture, mLayout, mIsBilinearSampling);
+                }
+                if (edit.mNewPicture != null && !mAddedPictures.contains(edit.mNewPicture)) {
+                    mAddedPictures.add(edit.mNewPicture);
+                    newLayer = new JpegLayer(edit.mNewPicture, mLayout, mIsBilinearSampling);
+                }
+            }
+            if (oldLayer != null) {
+                accumulate(oldLayer, -1);
+            }
+            if (newLayer != null) {
+                accumulate(newLayer, 1);
+            }
+        } else {
+            // the new picture takes the place of the old one in the order of the layers
+            List<JpegLayer> layers = mPass.mLayers;
+            int index = indexOf(layers, edit.mOldPicture);
+            if (index >= 0) {
+                oldLayer = layers.remove(index);
+            }
+            if (edit.mNewPicture != null && indexOf(layers, edit.mNewPicture) < 0) {
+                newLayer = new JpegLayer(edit.mNewPicture, mLayout, mIsBilinearSampling);
+                layers.add(index >= 0 ? index : layers.size(), newLayer);
+            }
+        }
 
-                        dstOverPaint.setColor(color);
-                        mCanvas.drawPoint(i, j, dstOverPaint);
+        redraw(oldLayer, newLayer);
+    }
 
-                        alpha = Math.max(
-                                0,
-                                255
-                                        - (255 * rect.distanceSquaredTo(
-                                        (int) projected[0],
-                                        (int) projected[1])) / (picture.getBitmap().getWidth() / 6)
-                                        / (picture.getBitmap().getWidth() / 6));
+    private static int indexOf(List<JpegLayer> layers, SpherePicture picture) {
+        for (int index = 0; index < layers.size(); index++) {
+            if (layers.get(index).mSpherePicture == picture) {
+                return index;
+            }
+        }
+        return -1;
+    }
 
+    // redraws the rows and columns of the sphere that any of the given layers reach, from the
+    // pictures that are in it now
+    private void redraw(JpegLayer... editedLayers) {
+        boolean[] columnMask = new boolean[mWidth];
+        int firstRow = mHeight;
+        int lastRow = -1;
+        for (JpegLayer layer : editedLayers) {
+            if (layer == null) {
+                continue;
+            }
+            firstRow = Math.min(firstRow, layer.getFirstRow());
+            lastRow = Math.max(lastRow, layer.getLastRow());
+            for (int[] window : layer.getWindows()) {
+                for (int i = window[0]; i <= window[1]; i++) {
+                    columnMask[i] = true;
+                }
+            }
+        }
+        lastRow = Math.min(lastRow, getNumOfRowsDrawn(mHeight) - 1);
+        if (firstRow > lastRow) {
+            return;
+        }
 
-                        srcOverPaint.setColor(color);
-                        srcOverPaint.setAlpha(alpha);
-                        mCanvas.drawPoint(i, j, srcOverPaint);
+        int[] pixels = new int[mWidth * BAND_HEIGHT];
+        int[] rowColors = new int[mWidth];
+        int[] rowAlphas = new int[mWidth];
+        float[] direction = new float[3];
+        for (int band = firstRow / BAND_HEIGHT; band <= lastRow / BAND_HEIGHT; band++) {
+            int bandFirstRow = Math.max(band * BAND_HEIGHT, firstRow);
+            int bandLastRow = Math.min((band + 1) * BAND_HEIGHT - 1, lastRow);
+            int bandHeight = bandLastRow - bandFirstRow + 1;
+            mCanvas.getPixels(pixels, 0, mWidth, 0, bandFirstRow, mWidth, bandHeight);
+
+            if (mCompositingMode == CompositingMode.ACCUMULATED) {
+                synchronized (mBandLocks[band]) {
+                    for (int j = bandFirstRow; j <= bandLastRow; j++) {
+                        int rowOffset = (j - bandFirstRow) * mWidth;
+                        for (int i = 0; i < mWidth; i++) {
+                            if (columnMask[i]) {
+                                pixels[rowOffset + i] = mAccumulationBuffer.resolve(i, j);
+                            }
+                        }
                     }
+                }
+            } else {
+                for (int j = bandFirstRow; j <= bandLastRow; j++) {
+                    int rowOffset = (j - bandFirstRow) * mWidth;
+                    for (int i = 0; i < mWidth; i++) {
+                        if (columnMask[i]) {
+                            pixels[rowOffset + i] = 0;
+                        }
+                    }
+                }
+                for (JpegLayer layer : mPass.mLayers) {
+                    for (int j = Math.max(bandFirstRow, layer.getFirstRow());
+                            j <= Math.min(bandLastRow, layer.getLastRow()); j++) {
+                        layer.sampleRow(j, rowColors, rowAlphas, 0, columnMask, direction);
+                        layer.blendRow(j, pixels, (j - bandFirstRow) * mWidth,
+                                rowColors, rowAlphas, columnMask);
+                    }
+                }
+            }
 
+            mCanvas.setPixels(pixels, 0, mWidth, 0, bandFirstRow, mWidth, bandHeight);
+            if (mPyramid != null) {
+                mPyramid.onRowsDrawn(mCanvas, bandFirstRow, bandLastRow);
+            }
+            notifyProgress(1, new Rect(0, bandFirstRow, mWidth, bandLastRow + 1));
+        }
 
+        if (mCompositingMode == CompositingMode.LAYERED) {
+            for (JpegLayer layer : mPass.mLayers) {
+                layer.releaseSourcePixels();
+            }
+        }
+    }
+
+    private void notifyProgress(final float progress, final Rect dirtyRegion) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                ConstructionCallback callback = mConstructionCallback;
+                if (callback != null) {
+                    callback.onConstructionProgress(progress, dirtyRegion);
                 }
+            }
+        });
+    }
 
+    private void notifyPreviewReady() {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                ConstructionCallback callback = mConstructionCallback;
+                if (callback != null) {
+                    callback.onPreviewReady(mPreviewBitmap);
+                }
+            }
+        });
+    }
+
+    // the bitmap that is emitted, which is cropped if cropping is on
+    private synchronized Bitmap getOutputBitmap() {
+        return mCroppedBitmap != null ? mCroppedBitmap : mBitmap;
+    }
 
-                if ((!moveFast) && (!gotInside)) {
-                    count++;
+    private void notifyDone() {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                ConstructionCallback callback = mConstructionCallback;
+                if (callback != null) {
+                    callback.onConstructionDone(getOutputBitmap());
                 }
+            }
+        });
+    }
 
-                if (count > jumpSize + 1) {
-                    count = 0;
-                    moveFast = true;
+    /**
+     * Asks the manager to run this job again once it was done, to make edits. This goes through
+     * the main thread like notifyJobFinished(), so the manager always learns that the job finished
+     * before it is asked to run it again.
+     */
+    private void requestRestart() {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mJobManager.requestStart(PhotoSphereConstructor.this);
+            }
+        });
+    }
+
+    // lets the manager start the jobs waiting for this one, outside of the lock of this job
+    private void notifyJobFinished() {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mJobManager.onJobFinished(PhotoSphereConstructor.this);
+            }
+        });
+    }
+
+    private void onFileSaveFailed(final Throwable throwable) {
+        Log.e("info_", "Failed to save the sphere", throwable);
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                ConstructionCallback callback = mConstructionCallback;
+                if (callback != null) {
+                    callback.onFileSaveFailed(throwable);
                 }
+            }
+        });
+    }
 
-                if (moveFast && gotInside) {
-                    moveFast = false;
-                    j = Math.max(j - jumpSize, 0);
+    private void notifyFailed(final Throwable throwable) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                ConstructionCallback callback = mConstructionCallback;
+                if (callback != null) {
+                    callback.onConstructionFailed(throwable);
                 }
+            }
+        });
+    }
+
+    // draws pictures on a canvas, split in bands that are drawn independently
+    private class ConstructionPass {
+        private final SphereCanvas mTarget;
+        private final int mTargetWidth;
+        private final int mTargetHeight;
+        private final boolean mIsPreview;
+
+        private final List<JpegLayer> mLayers = new ArrayList<JpegLayer>();
+        private final SphereStitcher mStitcher;
+        private final AccumulationBuffer mAccumulationBuffer;
+        private final int mNumOfBands;
+        private final AtomicInteger mNumOfBandsDrawn = new AtomicInteger();
+        // when the pass started, so how long it takes on a device can be read from the log
+        private long mStartTime;
+
+        // a pass that writes the normalized sums of an accumulation buffer
+        ConstructionPass(SphereCanvas target, AccumulationBuffer accumulationBuffer) {
+            mTarget = target;
+            mTargetWidth = target.getWidth();
+            mTargetHeight = target.getHeight();
+            mIsPreview = false;
+            mStitcher = null;
+            mAccumulationBuffer = accumulationBuffer;
+            mNumOfBands = (getNumOfRowsDrawn(mTargetHeight) + BAND_HEIGHT - 1) / BAND_HEIGHT;
+        }
+
+        ConstructionPass(
+                SphereCanvas target,
+                SphereLayout layout,
+                List<SpherePicture> pictures,
+                boolean isPreview) {
+            mTarget = target;
+            mTargetWidth = target.getWidth();
+            mTargetHeight = target.getHeight();
+            mIsPreview = isPreview;
+            mAccumulationBuffer = null;
+
+            for (SpherePicture picture : pictures) {
+                mLayers.add(new JpegLayer(picture, layout, mIsBilinearSampling));
+            }
+            mStitcher = new SphereStitcher(layout, mLayers);
 
-                if (moveFast) {
-                    j = j + jumpSize;
+            mNumOfBands = (getNumOfRowsDrawn(mTargetHeight) + BAND_HEIGHT - 1) / BAND_HEIGHT;
+            for (JpegLayer layer : mLayers) {
+                for (int band = 0; band < mNumOfBands; band++) {
+                    if (layer.reaches(band * BAND_HEIGHT, bandEnd(band))) {
+                        layer.expectBand();
+                    }
                 }
+            }
+        }
+
+        void start() {
+            mStartTime = System.nanoTime();
+            if (mNumOfBands == 0) {
+                onPassDone();
+                return;
+            }
 
+            for (int band = 0; band < mNumOfBands; band++) {
+                final int bandIndex = band;
+                final int firstRow = band * BAND_HEIGHT;
+                final int lastRow = bandEnd(band);
+                mExecutorService.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (mFailure != null) {
+                            return;
+                        }
+                        try {
+                            drawBand(bandIndex, firstRow, lastRow);
+                            if (!mIsPreview) {
+                                onRowsDrawn(firstRow, lastRow);
+                            }
+                        } catch (Exception e) {
+                            onConstructionFailed(e);
+                            return;
+                        } catch (OutOfMemoryError e) {
+                            onConstructionFailed(e);
+                            return;
+                        }
+
+                        int numOfBandsDrawn = mNumOfBandsDrawn.incrementAndGet();
+                        if (!mIsPreview) {
+                            notifyProgress(
+                                    (float) numOfBandsDrawn / mNumOfBands,
+                                    new Rect(0, firstRow, mTargetWidth, lastRow + 1));
+                        }
+                        if (numOfBandsDrawn == mNumOfBands) {
+                            onPassDone();
+                        }
+                    }
+                });
+            }
+        }
 
+        float getProgress() {
+            if (mNumOfBands == 0) {
+                return 1;
             }
+            return (float) mNumOfBandsDrawn.get() / mNumOfBands;
+        }
+
+        private void onPassDone() {
+            Log.d("info_", "Drew the " + (mIsPreview ? "preview" : "sphere") + " in "
+                    + (System.nanoTime() - mStartTime) / 1000000 + " ms");
+            if (mIsPreview) {
+                onPreviewDone();
+            } else {
+                onConstructionDone();
+            }
+        }
+
+        private int bandEnd(int band) {
+            return Math.min((band + 1) * BAND_HEIGHT, getNumOfRowsDrawn(mTargetHeight)) - 1;
+        }
+
+        // draws the rows from firstRow to lastRow, which no other thread of this pass touches
+        private void drawBand(int band, int firstRow, int lastRow) {
+            int bandHeight = lastRow - firstRow + 1;
+            int[] pixels = new int[mTargetWidth * bandHeight];
+
+            if (mAccumulationBuffer != null) {
+                synchronized (mBandLocks[band]) {
+                    mAccumulationBuffer.resolve(firstRow, lastRow, pixels);
+                }
+                mTarget.setPixels(pixels, 0, mTargetWidth, 0, firstRow, mTargetWidth, bandHeight);
+                return;
+            }
+
+            mTarget.getPixels(pixels, 0, mTargetWidth, 0, firstRow, mTargetWidth, bandHeight);
+            mStitcher.drawBand(pixels, firstRow, lastRow);
+            for (JpegLayer layer : mLayers) {
+                if (layer.reaches(firstRow, lastRow)) {
+                    layer.onBandDrawn();
+                }
+            }
+
+            mTarget.setPixels(pixels, 0, mTargetWidth, 0, firstRow, mTargetWidth, bandHeight);
         }
     }
 
+    // feeds what is written while the full resolution sphere is drawn
+    private void onRowsDrawn(int firstRow, int lastRow) {
+        if (mPyramid != null) {
+            mPyramid.onRowsDrawn(mCanvas, firstRow, lastRow);
+        }
+
+        synchronized (mIsRowDrawn) {
+            for (int j = firstRow; j <= lastRow; j++) {
+                mIsRowDrawn[j] = true;
+            }
+        }
+        PngFileStream pngFileStream;
+        synchronized (this) {
+            pngFileStream = mPngFileStream;
+        }
+        if (pngFileStream != null) {
+            mFileExecutorService.execute(pngFileStream);
+        }
+    }
+
+    /**
+     * Saves the sphere as it is now to the destination file, in the background. The bitmap is
+     * compressed straight into the file, so the compressed image is never held in memory, and a
+     * tiled canvas is written band by band. If the file can't be written, what was written of it
+     * is deleted and the callback is told.
+     */
     public void savePictureToFile() {
-        ByteArrayOutputStream stream = new ByteArrayOutputStream();
-        mBitmap.compress(Bitmap.CompressFormat.PNG, 100, stream);
-        byte[] data = stream.toByteArray();
+        mIsFileSaved = false;
+        final String destinationFile = mDestinationFile;
+        mFileExecutorService.execute(new Runnable() {
+            @Override
+            public void run() {
+                File file = getNewFile(destinationFile);
+                if (file == null) {
+                    onFileSaveFailed(new IOException("Failed to create the directory of "
+                            + destinationFile));
+                    return;
+                }
+                try {
+                    OutputStream outputStream =
+                            new BufferedOutputStream(new FileOutputStream(file));
+                    try {
+                        Bitmap bitmap = getOutputBitmap();
+                        if (bitmap == null) {
+                            writePng(outputStream);
+                        } else if (!bitmap.compress(
+                                mFileFormat.getCompressFormat(),
+                                mFileQuality,
+                                outputStream)) {
+                            throw new IOException("Failed to compress the sphere");
+                        }
+                    } finally {
+                        outputStream.close();
+                    }
+                } catch (IOException ioe) {
+                    ioe.printStackTrace();
+                    file.delete();
+                    mFile = null;
+                    onFileSaveFailed(ioe);
+                    return;
+                }
+                mFile = file;
+                mIsFileSaved = true;
+            }
+        });
+    }
+
+    private void writePng(OutputStream outputStream) throws IOException {
+        SphereCrop crop = mCrop;
+        int width = crop.getCroppedWidth();
+        int height = crop.getCroppedHeight();
+        StreamingPngWriter writer = new StreamingPngWriter(outputStream, width, height);
         try {
-            mFile = getNewFile(mDestinationFile);
-            FileOutputStream fos = new FileOutputStream(mFile);
-            fos.write(data);
-            fos.close();
-        } catch (FileNotFoundException fnfe) {
-            fnfe.printStackTrace();
-        } catch (IOException ioe) {
-            ioe.printStackTrace();
+            int[] pixels = new int[width * BAND_HEIGHT];
+            for (int j = 0; j < height; j += BAND_HEIGHT) {
+                int numOfRows = Math.min(BAND_HEIGHT, height - j);
+                crop.getPixels(mCanvas, pixels, j, numOfRows);
+                writer.writeRows(pixels, 0, numOfRows);
+            }
+            writer.finish();
+        } finally {
+            writer.close();
         }
-        mIsFileSaved = true;
     }
 
-    public float requestProgress() {
-        return (float) mNumOfPicturesDrawn / mCameraView.getPictures().size();
+    // the PNG file stream gave up, so the file is saved the usual way once the sphere is done,
+    // or right away if it already is
+    private synchronized void onPngFileStreamFailed() {
+        mPngFileStream = null;
+        if (mIsConstructionDone && mFailure == null && mDestinationFile != null) {
+            savePictureToFile();
+        }
     }
 
+    /**
+     * Writes the rows of the sphere to a PNG file as soon as all the rows above them are drawn.
+     * Runs on the file thread every time some rows are drawn, and writes whatever it can.
+     */
+    private class PngFileStream implements Runnable {
+        private final String mFileName;
+        private File mStreamFile;
+        private OutputStream mOutputStream;
+        private StreamingPngWriter mWriter;
+        // the crop is known once the construction started, which is before any row is drawn
+        private SphereCrop mStreamCrop;
+        private boolean mIsClosed;
+
+        PngFileStream(String fileName) {
+            mFileName = fileName;
+        }
+
+        @Override
+        public void run() {
+            if (mIsClosed) {
+                return;
+            }
+            if (mFailure != null) {
+                close();
+                return;
+            }
+
+            try {
+                if (mWriter == null) {
+                    mStreamFile = getNewFile(mFileName);
+                    if (mStreamFile == null) {
+                        mIsClosed = true;
+                        onPngFileStreamFailed();
+                        return;
+                    }
+                    mOutputStream = new BufferedOutputStream(new FileOutputStream(mStreamFile));
+                    mStreamCrop = mCrop;
+                    mWriter = new StreamingPngWriter(
+                            mOutputStream,
+                            mStreamCrop.getCroppedWidth(),
+                            mStreamCrop.getCroppedHeight());
+                }
+
+                // rows of the crop, counted from its top
+                int height = mStreamCrop.getCroppedHeight();
+                int top = mStreamCrop.getCroppedTop();
+                int firstRow = mWriter.getNumOfRowsWritten();
+                int lastRow = firstRow - 1;
+                synchronized (mIsRowDrawn) {
+                    while (lastRow + 1 < height && mIsRowDrawn[top + lastRow + 1]) {
+                        lastRow++;
+                    }
+                }
+
+                int[] pixels = new int[mStreamCrop.getCroppedWidth() * BAND_HEIGHT];
+                for (int j = firstRow; j <= lastRow; j += BAND_HEIGHT) {
+                    int numOfRows = Math.min(BAND_HEIGHT, lastRow - j + 1);
+                    mStreamCrop.getPixels(mCanvas, pixels, j, numOfRows);
+                    mWriter.writeRows(pixels, 0, numOfRows);
+                }
+
+                if (mWriter.getNumOfRowsWritten() == height) {
+                    mWriter.finish();
+                    close();
+                    mFile = mStreamFile;
+                    mIsFileSaved = true;
+                }
+            } catch (IOException ioe) {
+                ioe.printStackTrace();
+                close();
+                // the file is written again from the start, the half written one is of no use
+                mStreamFile.delete();
+                onPngFileStreamFailed();
+            }
+        }
+
+        private void close() {
+            mIsClosed = true;
+            if (mWriter != null) {
+                mWriter.close();
+            }
+            if (mOutputStream == null) {
+                return;
+            }
+            try {
+                mOutputStream.close();
+            } catch (IOException ioe) {
+                ioe.printStackTrace();
+            }
+        }
+    }
 
-    private float[] project(float[] point) {
-        return new float[]{point[0] / point[2], point[1] / point[2]};
+    public float requestProgress() {
+        if (mIsConstructionDone) {
+            return 1;
+        }
+        if (mPass == null) {
+            return 0;
+        }
+        return mPass.getProgress();
     }
 
+
     private File getNewFile(String fileName) {
         File mediaStorageDir = new File(Environment.getExternalStoragePublicDirectory(
-                Environment.DIRECTORY_PICTURES), mCameraView.getContext().getPackageName());
+                Environment.DIRECTORY_PICTURES), mContext.getPackageName());
 
         if (!mediaStorageDir.exists()) {
             if (!mediaStorageDir.mkdirs()) {
@@ -238,43 +1363,122 @@ public class PhotoSphereConstructor {
         }
 
         return new File(mediaStorageDir.getPath() + File.separator +
-                "IMG_" + fileName + ".jpg");
+                "IMG_" + fileName + mFileFormat.getExtension());
     }
 
-    private class Rect {
-        private int xmin;
-        private int xmax;
-        private int ymin;
-        private int ymax;
+    // a picture to take out of the sphere and the one to put in its place, either may be null
+    private static class Edit {
+        private final SpherePicture mOldPicture;
+        private final SpherePicture mNewPicture;
 
-        Rect(int l, int r, int b, int t) {
-            xmin = l;
-            xmax = r;
-            ymin = b;
-            ymax = t;
+        Edit(SpherePicture oldPicture, SpherePicture newPicture) {
+            mOldPicture = oldPicture;
+            mNewPicture = newPicture;
         }
+    }
 
-        public int distanceSquaredTo(int x, int y) {
-            int dx = 0, dy = 0;
-            if (x < xmin) {
-                dx = x - xmin;
-            } else if (x > xmax) {
-                dx = x - xmax;
-            }
+    // a picture of the capture as the stitching core reads it
+    private static class JpegSourcePicture implements SourcePicture {
+        private final SpherePicture mPicture;
 
-            if (y < ymin) {
-                dy = y - ymin;
-            } else if (y > ymax) {
-                dy = y - ymax;
-            }
+        JpegSourcePicture(SpherePicture picture) {
+            mPicture = picture;
+        }
+
+        @Override
+        public float[][] getRotationMatrix() {
+            return mPicture.getRotationMatrix();
+        }
+
+        @Override
+        public float getAbstractWidth() {
+            return mPicture.getAbstractWidth();
+        }
+
+        @Override
+        public float getAbstractHeight() {
+            return mPicture.getAbstractHeight();
+        }
+
+        @Override
+        public int getOrientation() {
+            return mPicture.getOrientation();
+        }
 
-            return dx * dx + dy * dy;
+        @Override
+        public int getWidth() {
+            return mPicture.getJpeg().getWidth();
         }
 
+        @Override
+        public int getHeight() {
+            return mPicture.getJpeg().getHeight();
+        }
+
+        // the JPEG is decoded right at the sample size, without ever holding it all as a bitmap
+        @Override
+        public int[] readPixels(int sampleSize) {
+            return mPicture.getJpeg().readPixels(sampleSize);
+        }
     }
 
-    public void setDestinationFile(String destinationFile) {
+    /**
+     * A layer of a picture of the capture. Its pixels are kept in the pixel cache, which may have
+     * it let them go before all its bands are drawn, in which case they are read again.
+     * The picture is decoded at the sample size the layout needs, see getSampleSize().
+     */
+    private static class JpegLayer extends PictureLayer implements SourcePixelCache.Layer {
+        private final SpherePicture mSpherePicture;
+
+        JpegLayer(SpherePicture picture, SphereLayout layout, boolean isBilinear) {
+            super(new JpegSourcePicture(picture), getSampleSize(picture, layout), layout,
+                    isBilinear);
+            mSpherePicture = picture;
+        }
+
+        /**
+         * The largest power of 2 the picture can be sampled by and still have as many pixels per
+         * radian as the layout, as SphereQualityPlanner compares them: height / PI at the
+         * equator of the sphere, and width / abstractWidth at the center of the picture.
+         * Pictures of the size SphereQualityPlanner picked are read whole, and previews only read
+         * a few of their pixels.
+         */
+        static int getSampleSize(SpherePicture picture, SphereLayout layout) {
+            double picturePixelsPerRadian =
+                    picture.getJpeg().getWidth() / picture.getAbstractWidth();
+            double spherePixelsPerRadian = layout.getHeight() / Math.PI;
+            return Integer.highestOneBit(
+                    Math.max(1, (int) (picturePixelsPerRadian / spherePixelsPerRadian)));
+        }
+
+        @Override
+        public synchronized int[] getSourcePixels() {
+            if (hasSourcePixels()) {
+                sSourcePixelCache.touch(this);
+            } else {
+                sSourcePixelCache.acquire(
+                        this,
+                        (long) getSourceWidth() * getSourceHeight() * BYTES_PER_PIXEL);
+            }
+            return super.getSourcePixels();
+        }
+
+        @Override
+        protected void onSourcePixelsReleased() {
+            sSourcePixelCache.release(this);
+        }
+    }
+
+    public synchronized void setDestinationFile(String destinationFile) {
         mDestinationFile = destinationFile;
+        // if the construction is already done, nobody else is going to save it
+        if (mIsConstructionDone) {
+            savePictureToFile();
+        } else if (mFileFormat == FileFormat.PNG && !mIsEdited && mPngFileStream == null) {
+            // rows that are already drawn are written right away, the others as they come
+            mPngFileStream = new PngFileStream(destinationFile);
+            mFileExecutorService.execute(mPngFileStream);
+        }
     }
 
     public boolean isConstructionDone() {
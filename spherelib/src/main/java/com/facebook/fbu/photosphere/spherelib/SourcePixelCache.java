@@ -0,0 +1,78 @@
+// Copyright 2004-present Facebook. All Rights Reserved.
+
+package com.facebook.fbu.photosphere.spherelib;
+
+import java.util.LinkedHashMap;
+
+/**
+ * Keeps the pixels the layers of all constructions have read from their pictures under a budget
+ * shared by the whole process. When the pixels of a layer don't fit, the layers whose pixels were
+ * used the longest ago let theirs go, and read them again the next time they are drawn. The
+ * budget is only gone over when there is nothing else left to let go.
+ * Layers are never asked to let their pixels go while the cache is locked, so a layer may hold its
+ * own lock while it makes room for its pixels.
+ */
+class SourcePixelCache {
+
+    interface Layer {
+        void releaseSourcePixels();
+    }
+
+    private final long mSize;
+    private long mUsed;
+    // the bytes taken by every layer that has its pixels, the least recently used first
+    private final LinkedHashMap<Layer, Long> mLayers =
+            new LinkedHashMap<Layer, Long>(16, 0.75f, true);
+
+    SourcePixelCache(long size) {
+        mSize = size;
+    }
+
+    long getSize() {
+        return mSize;
+    }
+
+    // makes room for the pixels of a layer, which is about to read them
+    void acquire(Layer layer, long bytes) {
+        while (true) {
+            Layer evicted = null;
+            synchronized (this) {
+                if (mUsed + bytes <= mSize) {
+                    take(layer, bytes);
+                    return;
+                }
+                for (Layer other : mLayers.keySet()) {
+                    if (other != layer) {
+                        evicted = other;
+                        break;
+                    }
+                }
+                if (evicted == null) {
+                    take(layer, bytes);
+                    return;
+                }
+                // the layer is only let go once, even if it tells us again when it is done
+                mUsed -= mLayers.remove(evicted);
+            }
+            evicted.releaseSourcePixels();
+        }
+    }
+
+    private void take(Layer layer, long bytes) {
+        Long taken = mLayers.put(layer, bytes);
+        mUsed += bytes - (taken != null ? taken : 0);
+    }
+
+    // the layer drew with its pixels, which makes them the last to go
+    synchronized void touch(Layer layer) {
+        mLayers.get(layer);
+    }
+
+    // the layer let its pixels go
+    synchronized void release(Layer layer) {
+        Long taken = mLayers.remove(layer);
+        if (taken != null) {
+            mUsed -= taken;
+        }
+    }
+}
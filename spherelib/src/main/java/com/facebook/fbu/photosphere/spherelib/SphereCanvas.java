@@ -0,0 +1,18 @@
+// Copyright 2004-present Facebook. All Rights Reserved.
+
+package com.facebook.fbu.photosphere.spherelib;
+
+/**
+ * The pixels a sphere is drawn on. They are read and written in rectangles, the same way as
+ * those of a Bitmap, so the constructor doesn't have to know whether they are all in memory.
+ */
+public interface SphereCanvas {
+
+    int getWidth();
+
+    int getHeight();
+
+    void getPixels(int[] pixels, int offset, int stride, int x, int y, int width, int height);
+
+    void setPixels(int[] pixels, int offset, int stride, int x, int y, int width, int height);
+}
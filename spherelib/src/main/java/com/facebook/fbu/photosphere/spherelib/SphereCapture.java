@@ -0,0 +1,403 @@
+// Copyright 2004-present Facebook. All Rights Reserved.
+
+package com.facebook.fbu.photosphere.spherelib;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A capture directory, through which the pictures of a capture session are handed to the
+ * SphereConstructionService in its own process. Every picture is kept as the JPEG the camera
+ * gave, written in the background as soon as it is taken, and once the session is over a
+ * manifest lists the pictures that are part of the sphere. Its first line is "version" followed
+ * by MANIFEST_VERSION, and then every picture is on its own line as
+ * "fileName abstractWidth abstractHeight orientation" followed by the 9 values of its rotation
+ * matrix, for the picture as the camera stored it, see MatrixUtils.turnPicture().
+ * The service then writes the preview, the sphere, its pyramid of tiles and the result there.
+ * When constructing while capturing, every picture is also handed to a construction the service
+ * runs for the directory as soon as it is written, and popped pictures are taken back out of it,
+ * so that the manifest only leaves the service the pictures it didn't get yet.
+ */
+public class SphereCapture {
+
+    private static final String MANIFEST_FILE = "capture.txt";
+    // manifests without a version held the poses of the pictures turned upright, which the
+    // pictures as stored can't be drawn with, and the ones of version 2 didn't say which way the
+    // pictures were turned, which they fade out by
+    private static final int MANIFEST_VERSION = 3;
+    private static final String VERSION_PREFIX = "version ";
+    private static final String PREVIEW_FILE = "preview.jpg";
+    private static final String SPHERE_FILE = "sphere.jpg";
+    private static final String PYRAMID_DIRECTORY = "pyramid";
+    // written last, so the sphere is complete once it is there
+    private static final String RESULT_FILE = "result.txt";
+    private static final String PICTURE_PREFIX = "picture_";
+    private static final String PICTURE_EXTENSION = ".jpg";
+
+    private final File mDirectory;
+    private int mNumOfPictures;
+    // the construction the pictures are handed to while capturing, if there is one
+    private SphereConstructionClient mConstructionClient;
+
+    // the pictures are written one after the other, and the manifest after all of them
+    private final ThreadPoolExecutor mWriterService = new ThreadPoolExecutor(
+            1,
+            1,
+            1,
+            TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>());
+
+    public SphereCapture(File directory) {
+        mDirectory = directory;
+        mWriterService.allowCoreThreadTimeOut(true);
+    }
+
+    public File getDirectory() {
+        return mDirectory;
+    }
+
+    /**
+     * Starts the construction of a sphere of the given height in the service right away, which
+     * every picture added from now on is added to as soon as it is written.
+     */
+    public void constructWhileCapturing(Context context, int sphereHeight) {
+        if (mConstructionClient != null) {
+            return;
+        }
+        mConstructionClient = new SphereConstructionClient(context, mDirectory);
+        mConstructionClient.startCapture(sphereHeight);
+    }
+
+    public boolean isConstructingWhileCapturing() {
+        return mConstructionClient != null;
+    }
+
+    /**
+     * Writes the JPEG the camera gave for a picture to the capture directory, in the background,
+     * after which the picture reads it from there and its bytes can go.
+     */
+    public void addPicture(CameraView.Picture picture, final byte[] jpeg) {
+        final File file = new File(
+                mDirectory,
+                PICTURE_PREFIX + mNumOfPictures++ + PICTURE_EXTENSION);
+        picture.setFile(file);
+        final JpegPicture jpegPicture = picture.getJpeg();
+        final String manifestLine = toManifestLine(picture);
+        final SphereConstructionClient constructionClient = mConstructionClient;
+        mWriterService.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mDirectory.mkdirs();
+                    OutputStream outputStream = new FileOutputStream(file);
+                    try {
+                        outputStream.write(jpeg);
+                    } finally {
+                        outputStream.close();
+                    }
+                    jpegPicture.moveToFile(file);
+                } catch (IOException ioe) {
+                    ioe.printStackTrace();
+                    return;
+                }
+                if (constructionClient != null) {
+                    constructionClient.replacePicture(null, manifestLine);
+                }
+            }
+        });
+    }
+
+    // takes a popped picture back out of the construction, after it was added to it
+    public void removePicture(CameraView.Picture picture) {
+        final SphereConstructionClient constructionClient = mConstructionClient;
+        if (constructionClient == null || picture.getFile() == null) {
+            return;
+        }
+        final String fileName = picture.getFile().getName();
+        mWriterService.execute(new Runnable() {
+            @Override
+            public void run() {
+                constructionClient.removePicture(fileName);
+            }
+        });
+    }
+
+    /**
+     * Lists the pictures in the manifest once every picture added before is written, and then
+     * runs onFinished on the writer thread. Pictures that aren't saved are left out.
+     */
+    public void finish(List<CameraView.Picture> pictures, final Runnable onFinished) {
+        // the lines are made right away, as the camera view keeps changing its pictures
+        final StringBuilder manifest = new StringBuilder();
+        manifest.append(VERSION_PREFIX).append(MANIFEST_VERSION).append('\n');
+        for (CameraView.Picture picture : pictures) {
+            if (picture == null || !picture.isSaved() || picture.getFile() == null) {
+                continue;
+            }
+            manifest.append(toManifestLine(picture)).append('\n');
+        }
+
+        final SphereConstructionClient constructionClient = mConstructionClient;
+        mWriterService.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    writeText(new File(mDirectory, MANIFEST_FILE), manifest.toString());
+                } catch (IOException ioe) {
+                    ioe.printStackTrace();
+                }
+                onFinished.run();
+                // the construction is started by now, so it goes on without us
+                if (constructionClient != null) {
+                    constructionClient.disconnect();
+                }
+            }
+        });
+    }
+
+    // deletes the capture directory once every picture added before is written
+    public void delete() {
+        final SphereConstructionClient constructionClient = mConstructionClient;
+        mWriterService.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (constructionClient != null) {
+                    constructionClient.cancelCapture();
+                    constructionClient.disconnect();
+                }
+                deleteDirectory(mDirectory);
+            }
+        });
+    }
+
+    private static String toManifestLine(CameraView.Picture picture) {
+        StringBuilder line = new StringBuilder();
+        line.append(picture.getFile().getName())
+                .append(' ').append(picture.getAbstractWidth())
+                .append(' ').append(picture.getAbstractHeight())
+                .append(' ').append(picture.getOrientation());
+        for (float[] row : picture.getRotationMatrix()) {
+            for (float value : row) {
+                line.append(' ').append(value);
+            }
+        }
+        return line.toString();
+    }
+
+    /**
+     * Reads the pictures listed in the manifest of a capture directory. Their JPEGs are left in
+     * the directory, and are only decoded as they are drawn. Manifests of another version, such
+     * as the ones of an older install that are redelivered to the service, are rejected instead
+     * of being drawn wrong.
+     */
+    public static List<SpherePicture> readPictures(File directory) throws IOException {
+        List<SpherePicture> pictures = new ArrayList<SpherePicture>();
+        BufferedReader reader = new BufferedReader(
+                new FileReader(new File(directory, MANIFEST_FILE)));
+        try {
+            String line = reader.readLine();
+            if (line == null || !line.trim().equals(VERSION_PREFIX + MANIFEST_VERSION)) {
+                throw new IOException("Unsupported capture manifest in " + directory);
+            }
+            while ((line = reader.readLine()) != null) {
+                SpherePicture picture = readPicture(directory, line);
+                if (picture != null) {
+                    pictures.add(picture);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return pictures;
+    }
+
+    /**
+     * Reads a picture of a capture directory from its line of the manifest, or returns null if
+     * the line isn't one or the JPEG can't be read.
+     */
+    public static SpherePicture readPicture(File directory, String line) {
+        String[] values = line.trim().split(" ");
+        if (values.length != 13) {
+            return null;
+        }
+        float[][] rotationMatrix = new float[3][3];
+        for (int k = 0; k < 9; k++) {
+            rotationMatrix[k / 3][k % 3] = Float.parseFloat(values[4 + k]);
+        }
+
+        File file = new File(directory, values[0]);
+        JpegPicture jpeg = new JpegPicture(file);
+        if (!jpeg.isValid()) {
+            Log.e("info_", "Failed to decode " + file);
+            return null;
+        }
+
+        return new CapturedPicture(
+                jpeg,
+                rotationMatrix,
+                Float.parseFloat(values[1]),
+                Float.parseFloat(values[2]),
+                Integer.parseInt(values[3]));
+    }
+
+    // frees the pictures, which aren't needed anymore once the sphere is constructed
+    public static void deletePictures(File directory) {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.getName().startsWith(PICTURE_PREFIX)) {
+                file.delete();
+            }
+        }
+    }
+
+    public static File getPreviewFile(File directory) {
+        return new File(directory, PREVIEW_FILE);
+    }
+
+    public static File getSphereFile(File directory) {
+        return new File(directory, SPHERE_FILE);
+    }
+
+    public static File getPyramidDirectory(File directory) {
+        return new File(directory, PYRAMID_DIRECTORY);
+    }
+
+    // the pyramid of tiles of the whole sphere, or null if the sphere or its tiles aren't complete
+    public static SpherePyramid readPyramid(File directory) {
+        SphereCrop crop = readResult(directory);
+        if (crop == null) {
+            return null;
+        }
+        SpherePyramid pyramid = SpherePyramid.open(
+                getPyramidDirectory(directory),
+                crop.getFullWidth(),
+                crop.getFullHeight());
+        return pyramid.isComplete() ? pyramid : null;
+    }
+
+    // marks the sphere file as complete, along with where it is in the whole sphere
+    public static void writeResult(File directory, SphereCrop crop) throws IOException {
+        StringBuilder result = new StringBuilder();
+        for (int value : crop.toArray()) {
+            result.append(value).append(' ');
+        }
+        writeText(new File(directory, RESULT_FILE), result.toString().trim());
+    }
+
+    // where the sphere file is in the whole sphere, or null if it isn't complete
+    public static SphereCrop readResult(File directory) {
+        File file = new File(directory, RESULT_FILE);
+        if (!file.exists()) {
+            return null;
+        }
+        try {
+            BufferedReader reader = new BufferedReader(new FileReader(file));
+            try {
+                String[] values = reader.readLine().trim().split(" ");
+                int[] crop = new int[values.length];
+                for (int k = 0; k < values.length; k++) {
+                    crop[k] = Integer.parseInt(values[k]);
+                }
+                return SphereCrop.fromArray(crop);
+            } finally {
+                reader.close();
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private static void writeText(File file, String text) throws IOException {
+        file.getParentFile().mkdirs();
+        Writer writer = new FileWriter(file);
+        try {
+            writer.write(text);
+        } finally {
+            writer.close();
+        }
+    }
+
+    private static void deleteDirectory(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.isDirectory()) {
+                    deleteDirectory(file);
+                } else {
+                    file.delete();
+                }
+            }
+        }
+        directory.delete();
+    }
+
+    // a picture read back from a capture directory
+    private static class CapturedPicture implements SpherePicture {
+        private final JpegPicture mJpeg;
+        private final float[][] mRotationMatrix;
+        private final float mAbstractWidth;
+        private final float mAbstractHeight;
+        private final int mOrientation;
+
+        CapturedPicture(
+                JpegPicture jpeg,
+                float[][] rotationMatrix,
+                float abstractWidth,
+                float abstractHeight,
+                int orientation) {
+            mJpeg = jpeg;
+            mRotationMatrix = rotationMatrix;
+            mAbstractWidth = abstractWidth;
+            mAbstractHeight = abstractHeight;
+            mOrientation = orientation;
+        }
+
+        @Override
+        public JpegPicture getJpeg() {
+            return mJpeg;
+        }
+
+        @Override
+        public float[][] getRotationMatrix() {
+            return mRotationMatrix;
+        }
+
+        @Override
+        public float getAbstractWidth() {
+            return mAbstractWidth;
+        }
+
+        @Override
+        public float getAbstractHeight() {
+            return mAbstractHeight;
+        }
+
+        @Override
+        public int getOrientation() {
+            return mOrientation;
+        }
+
+        @Override
+        public boolean isSaved() {
+            return true;
+        }
+    }
+}
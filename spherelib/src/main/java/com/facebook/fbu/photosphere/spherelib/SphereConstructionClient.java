@@ -0,0 +1,310 @@
+// Copyright 2004-present Facebook. All Rights Reserved.
+
+package com.facebook.fbu.photosphere.spherelib;
+
+import android.app.PendingIntent;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Messenger;
+import android.os.RemoteException;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Follows the construction of a capture directory in the SphereConstructionService, from
+ * another process. The callback gets the same calls as from a PhotoSphereConstructor, on the
+ * main thread, with the preview and the sphere decoded from the files the service writes. The
+ * dirty region of onConstructionProgress() is always null, as the sphere only comes once done.
+ * While capturing, a client also hands the pictures to the construction as they are written,
+ * see SphereCapture. Messages sent before the service is bound wait until it is.
+ */
+public class SphereConstructionClient {
+
+    private final Context mContext;
+    private final File mCaptureDirectory;
+    private PhotoSphereConstructor.ConstructionCallback mConstructionCallback;
+    private Messenger mService;
+    private boolean mIsBound;
+    private boolean mIsRegistered;
+    private final List<Message> mPendingMessages = new ArrayList<Message>();
+
+    private SphereCrop mCrop;
+    private boolean mIsConstructionDone;
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final Messenger mMessenger = new Messenger(new Handler(
+            Looper.getMainLooper(),
+            new Handler.Callback() {
+                @Override
+                public boolean handleMessage(Message message) {
+                    onMessage(message);
+                    return true;
+                }
+            }));
+
+    // the preview and the sphere are decoded on their own thread
+    private final ThreadPoolExecutor mDecoderService = new ThreadPoolExecutor(
+            1,
+            1,
+            1,
+            TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>());
+
+    private final ServiceConnection mServiceConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder service) {
+            mService = new Messenger(service);
+            for (Message message : mPendingMessages) {
+                send(message);
+            }
+            mPendingMessages.clear();
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            // the service process died, the construction is started again from its directory,
+            // and we register again once the service is bound again
+            mService = null;
+            if (mIsRegistered) {
+                sendToService(SphereConstructionService.MSG_REGISTER_CLIENT, 0, null);
+            }
+        }
+    };
+
+    public SphereConstructionClient(Context context, File captureDirectory) {
+        mContext = context.getApplicationContext();
+        mCaptureDirectory = captureDirectory;
+        mDecoderService.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Starts the construction of the pictures listed in a capture directory, see SphereCapture,
+     * in a sphere of the given height. The notification of the service opens notificationIntent,
+     * if it isn't null.
+     */
+    public static void startConstruction(
+            Context context,
+            File captureDirectory,
+            int sphereHeight,
+            PendingIntent notificationIntent) {
+        Intent intent = new Intent(context, SphereConstructionService.class);
+        intent.putExtra(
+                SphereConstructionService.EXTRA_CAPTURE_DIRECTORY,
+                captureDirectory.getPath());
+        intent.putExtra(SphereConstructionService.EXTRA_SPHERE_HEIGHT, sphereHeight);
+        if (notificationIntent != null) {
+            intent.putExtra(
+                    SphereConstructionService.EXTRA_NOTIFICATION_INTENT,
+                    notificationIntent);
+        }
+        context.startService(intent);
+    }
+
+    // starts following the construction, the callback first gets where it is at
+    public void connect(PhotoSphereConstructor.ConstructionCallback constructionCallback) {
+        mConstructionCallback = constructionCallback;
+        if (!mIsRegistered) {
+            mIsRegistered = true;
+            sendToService(SphereConstructionService.MSG_REGISTER_CLIENT, 0, null);
+        }
+        bind();
+    }
+
+    /**
+     * Stops following the construction, which goes on in the service. The callback isn't called
+     * anymore, and the service is let go once the messages sent before are on their way.
+     * Can be called from any thread.
+     */
+    public void disconnect() {
+        mConstructionCallback = null;
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!mIsBound) {
+                    return;
+                }
+                if (mIsRegistered) {
+                    sendToService(SphereConstructionService.MSG_UNREGISTER_CLIENT, 0, null);
+                    mIsRegistered = false;
+                }
+                mContext.unbindService(mServiceConnection);
+                mIsBound = false;
+                mService = null;
+                mPendingMessages.clear();
+            }
+        });
+    }
+
+    /**
+     * Has the service start a construction of a sphere of the given height for the capture
+     * directory right away, which is ACCUMULATED, so pictures can be added to it while the
+     * capture goes on and only what they cover is drawn again when they are taken out. The
+     * construction is then given the pictures of the manifest by startConstruction().
+     */
+    public void startCapture(int sphereHeight) {
+        sendToService(SphereConstructionService.MSG_START_CAPTURE, sphereHeight, null);
+        bind();
+    }
+
+    /**
+     * Puts the picture of the manifest line newPictureLine in the place of the picture of the
+     * capture directory named oldFileName, either of which may be null, in the construction
+     * started by startCapture(). Can be called from any thread.
+     */
+    public void replacePicture(String oldFileName, String newPictureLine) {
+        Bundle data = new Bundle();
+        data.putString(SphereConstructionService.KEY_OLD_PICTURE, oldFileName);
+        data.putString(SphereConstructionService.KEY_NEW_PICTURE, newPictureLine);
+        postToService(SphereConstructionService.MSG_REPLACE_PICTURE, data);
+    }
+
+    // takes a picture out of the construction started by startCapture(), from any thread
+    public void removePicture(String fileName) {
+        Bundle data = new Bundle();
+        data.putString(SphereConstructionService.KEY_OLD_PICTURE, fileName);
+        postToService(SphereConstructionService.MSG_REMOVE_PICTURE, data);
+    }
+
+    // drops the construction started by startCapture(), from any thread
+    public void cancelCapture() {
+        postToService(SphereConstructionService.MSG_CANCEL_CAPTURE, null);
+    }
+
+    public File getCaptureDirectory() {
+        return mCaptureDirectory;
+    }
+
+    // where the sphere is in the whole sphere, only known once the construction is done
+    public SphereCrop getCrop() {
+        return mCrop;
+    }
+
+    public boolean isConstructionDone() {
+        return mIsConstructionDone;
+    }
+
+    // the tiles of the whole sphere, or null if the construction isn't done or wrote none
+    public SpherePyramid getPyramid() {
+        return mIsConstructionDone ? SphereCapture.readPyramid(mCaptureDirectory) : null;
+    }
+
+    private void bind() {
+        if (!mIsBound) {
+            mIsBound = mContext.bindService(
+                    new Intent(mContext, SphereConstructionService.class),
+                    mServiceConnection,
+                    Context.BIND_AUTO_CREATE);
+        }
+    }
+
+    // messages from other threads are sent in the order they are posted
+    private void postToService(final int what, final Bundle data) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                sendToService(what, 0, data);
+            }
+        });
+    }
+
+    private void sendToService(int what, int arg1, Bundle data) {
+        Message message = Message.obtain(null, what, arg1, 0);
+        if (data == null) {
+            data = new Bundle();
+        }
+        data.putString(
+                SphereConstructionService.KEY_CAPTURE_DIRECTORY,
+                mCaptureDirectory.getPath());
+        message.setData(data);
+        message.replyTo = mMessenger;
+        if (mService == null) {
+            mPendingMessages.add(message);
+            return;
+        }
+        send(message);
+    }
+
+    private void send(Message message) {
+        try {
+            mService.send(message);
+        } catch (RemoteException re) {
+            re.printStackTrace();
+        }
+    }
+
+    private void onMessage(Message message) {
+        switch (message.what) {
+            case SphereConstructionService.MSG_PROGRESS:
+                if (mConstructionCallback != null) {
+                    mConstructionCallback.onConstructionProgress(
+                            (float) message.arg1 / SphereConstructionService.PROGRESS_MAX,
+                            null);
+                }
+                break;
+            case SphereConstructionService.MSG_PREVIEW_READY:
+                decodeInBackground(SphereCapture.getPreviewFile(mCaptureDirectory), false);
+                break;
+            case SphereConstructionService.MSG_DONE:
+                mCrop = SphereCrop.fromArray(
+                        message.getData().getIntArray(SphereConstructionService.KEY_CROP));
+                decodeInBackground(SphereCapture.getSphereFile(mCaptureDirectory), true);
+                break;
+            case SphereConstructionService.MSG_FAILED:
+                if (mConstructionCallback != null) {
+                    mConstructionCallback.onConstructionFailed(new IOException(
+                            message.getData().getString(SphereConstructionService.KEY_FAILURE)));
+                }
+                break;
+        }
+    }
+
+    private void decodeInBackground(final File file, final boolean isSphere) {
+        mDecoderService.execute(new Runnable() {
+            @Override
+            public void run() {
+                final Bitmap bitmap = BitmapFactory.decodeFile(file.getPath());
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onDecoded(bitmap, isSphere);
+                    }
+                });
+            }
+        });
+    }
+
+    private void onDecoded(Bitmap bitmap, boolean isSphere) {
+        if (isSphere) {
+            mIsConstructionDone = bitmap != null;
+        }
+        PhotoSphereConstructor.ConstructionCallback callback = mConstructionCallback;
+        if (callback == null) {
+            return;
+        }
+        if (!isSphere) {
+            // the sphere still comes without a preview
+            if (bitmap != null) {
+                callback.onPreviewReady(bitmap);
+            }
+        } else if (bitmap != null) {
+            callback.onConstructionDone(bitmap);
+        } else {
+            callback.onConstructionFailed(new IOException("Failed to decode the sphere"));
+        }
+    }
+}
@@ -0,0 +1,640 @@
+// Copyright 2004-present Facebook. All Rights Reserved.
+
+package com.facebook.fbu.photosphere.spherelib;
+
+import android.app.Notification;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Messenger;
+import android.os.RemoteException;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Constructs spheres in the :stitcher process, so the pictures, the sphere and the encoder
+ * buffers never take the heap of the UI, and the construction goes on after the user leaves it.
+ * A construction is started for a capture directory, see SphereCapture, and is followed with a
+ * SphereConstructionClient for the same directory, through a Messenger. While it runs, a
+ * notification shows its progress. The preview and the sphere are written to the capture
+ * directory as JPEGs, along with the pyramid of tiles of the sphere, and the pictures are deleted
+ * once the sphere is there.
+ * A capture can also have its construction started while it goes on, with MSG_START_CAPTURE, in
+ * which case the pictures are added to the sphere as they come in MSG_REPLACE_PICTURE and taken
+ * out with MSG_REMOVE_PICTURE, and the manifest only decides which of them are kept once the
+ * construction is started for the directory.
+ */
+public class SphereConstructionService extends Service {
+
+    static final String EXTRA_CAPTURE_DIRECTORY = "capture_directory";
+    static final String EXTRA_SPHERE_HEIGHT = "sphere_height";
+    static final String EXTRA_NOTIFICATION_INTENT = "notification_intent";
+
+    // from a client, with the capture directory in KEY_CAPTURE_DIRECTORY and its Messenger in
+    // replyTo. The state of the construction is sent back right away
+    static final int MSG_REGISTER_CLIENT = 1;
+    static final int MSG_UNREGISTER_CLIENT = 2;
+    // to the clients, with the progress in arg1, out of PROGRESS_MAX
+    static final int MSG_PROGRESS = 3;
+    static final int MSG_PREVIEW_READY = 4;
+    // with the crop of the sphere in KEY_CROP, see SphereCrop.toArray()
+    static final int MSG_DONE = 5;
+    // with what went wrong in KEY_FAILURE
+    static final int MSG_FAILED = 6;
+    // from a client, with the height of the sphere in arg1
+    static final int MSG_START_CAPTURE = 7;
+    // from a client, with the file name of the picture that is taken out in KEY_OLD_PICTURE and
+    // the manifest line of the one that takes its place in KEY_NEW_PICTURE, either may be absent
+    static final int MSG_REPLACE_PICTURE = 8;
+    // from a client, with the file name of the picture that is taken out in KEY_OLD_PICTURE
+    static final int MSG_REMOVE_PICTURE = 9;
+    static final int MSG_CANCEL_CAPTURE = 10;
+
+    static final String KEY_CAPTURE_DIRECTORY = "capture_directory";
+    static final String KEY_CROP = "crop";
+    static final String KEY_FAILURE = "failure";
+    static final String KEY_OLD_PICTURE = "old_picture";
+    static final String KEY_NEW_PICTURE = "new_picture";
+
+    static final int PROGRESS_MAX = 1000;
+
+    private static final int FILE_QUALITY = 90;
+    // the notification is only updated when the progress gets this much further
+    private static final int NOTIFICATION_PROGRESS_STEP = PROGRESS_MAX / 100;
+
+    private final Map<String, Construction> mConstructions = new HashMap<String, Construction>();
+    // clients that registered before the construction of their capture directory was started
+    private final Map<String, List<Messenger>> mPendingClients =
+            new HashMap<String, List<Messenger>>();
+    private int mNumOfConstructionsRunning;
+    private int mLastStartId;
+    private int mNextNotificationId = 1;
+    // the construction whose notification keeps the service in the foreground
+    private Construction mForegroundConstruction;
+
+    private final Messenger mMessenger = new Messenger(new IncomingHandler());
+    private NotificationManager mNotificationManager;
+
+    // pictures are read and files written on their own thread, never on the main one
+    private final ThreadPoolExecutor mFileExecutorService = new ThreadPoolExecutor(
+            1,
+            1,
+            1,
+            TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>());
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        mNotificationManager = (NotificationManager) getSystemService(
+                Context.NOTIFICATION_SERVICE);
+        mFileExecutorService.allowCoreThreadTimeOut(true);
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        mLastStartId = startId;
+        String directoryPath = intent != null
+                ? intent.getStringExtra(EXTRA_CAPTURE_DIRECTORY)
+                : null;
+        Construction construction = mConstructions.get(directoryPath);
+        if (directoryPath == null || (construction != null
+                && construction.mState != Construction.STATE_CAPTURING)) {
+            stopIfIdle();
+            return START_NOT_STICKY;
+        }
+
+        // a construction started while capturing goes on with the pictures it already has
+        if (construction == null) {
+            construction = new Construction(
+                    new File(directoryPath),
+                    intent.getIntExtra(EXTRA_SPHERE_HEIGHT, 0));
+            mConstructions.put(directoryPath, construction);
+        }
+        construction.mState = Construction.STATE_RUNNING;
+        construction.mNotificationIntent =
+                (PendingIntent) intent.getParcelableExtra(EXTRA_NOTIFICATION_INTENT);
+        construction.mNotificationId = mNextNotificationId++;
+        mNumOfConstructionsRunning++;
+        if (mForegroundConstruction == null) {
+            mForegroundConstruction = construction;
+            startForeground(construction.mNotificationId, construction.buildNotification());
+        } else {
+            construction.updateNotification();
+        }
+        List<Messenger> pendingClients = mPendingClients.remove(directoryPath);
+        if (pendingClients != null) {
+            for (Messenger client : pendingClients) {
+                construction.addClient(client);
+            }
+        }
+        construction.start();
+        // the construction is started again from its capture directory if the process is killed
+        return START_REDELIVER_INTENT;
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return mMessenger.getBinder();
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        for (Construction construction : mConstructions.values()) {
+            if (construction.mJob != null) {
+                ConstructionJobManager.getInstance(this).release(construction.mJob.getJobId());
+            }
+        }
+    }
+
+    private void onConstructionFinished(Construction construction) {
+        mNumOfConstructionsRunning--;
+        if (construction == mForegroundConstruction) {
+            mForegroundConstruction = null;
+            // another running construction keeps the service in the foreground
+            for (Construction other : mConstructions.values()) {
+                if (other.mState == Construction.STATE_RUNNING) {
+                    mForegroundConstruction = other;
+                    startForeground(other.mNotificationId, other.buildNotification());
+                    break;
+                }
+            }
+            if (mForegroundConstruction == null) {
+                stopForeground(true);
+            }
+        }
+        // the notification of a finished construction stays after the service is gone
+        construction.updateNotification();
+        stopIfIdle();
+    }
+
+    // bound clients keep the service alive until they unbind
+    private void stopIfIdle() {
+        if (mNumOfConstructionsRunning == 0) {
+            stopSelfResult(mLastStartId);
+        }
+    }
+
+    private static void send(Messenger client, int what, int progress, Bundle data) {
+        Message message = Message.obtain(null, what, progress, 0);
+        message.setData(data);
+        try {
+            client.send(message);
+        } catch (RemoteException re) {
+            // the client is gone, it is unregistered when it unbinds
+            re.printStackTrace();
+        }
+    }
+
+    private class IncomingHandler extends Handler {
+
+        IncomingHandler() {
+            super(Looper.getMainLooper());
+        }
+
+        @Override
+        public void handleMessage(Message message) {
+            String directoryPath = message.getData().getString(KEY_CAPTURE_DIRECTORY);
+            Construction construction = mConstructions.get(directoryPath);
+            switch (message.what) {
+                case MSG_REGISTER_CLIENT:
+                    if (construction != null) {
+                        construction.addClient(message.replyTo);
+                        return;
+                    }
+                    // the construction may have been done by an earlier run of the service
+                    SphereCrop crop = SphereCapture.readResult(new File(directoryPath));
+                    if (crop != null) {
+                        Bundle data = new Bundle();
+                        data.putIntArray(KEY_CROP, crop.toArray());
+                        send(message.replyTo, MSG_DONE, PROGRESS_MAX, data);
+                        return;
+                    }
+                    // the capture may still be on its way to the service
+                    List<Messenger> pendingClients = mPendingClients.get(directoryPath);
+                    if (pendingClients == null) {
+                        pendingClients = new ArrayList<Messenger>();
+                        mPendingClients.put(directoryPath, pendingClients);
+                    }
+                    pendingClients.add(message.replyTo);
+                    break;
+                case MSG_UNREGISTER_CLIENT:
+                    if (construction != null) {
+                        construction.mClients.remove(message.replyTo);
+                    } else if (mPendingClients.containsKey(directoryPath)) {
+                        mPendingClients.get(directoryPath).remove(message.replyTo);
+                    }
+                    break;
+                case MSG_START_CAPTURE:
+                    if (construction != null) {
+                        return;
+                    }
+                    construction = new Construction(new File(directoryPath), message.arg1);
+                    if (construction.startCapture()) {
+                        mConstructions.put(directoryPath, construction);
+                    }
+                    break;
+                case MSG_REPLACE_PICTURE:
+                case MSG_REMOVE_PICTURE:
+                    // edits that come once the manifest is in are already in it
+                    if (construction != null
+                            && construction.mState == Construction.STATE_CAPTURING) {
+                        construction.edit(
+                                message.getData().getString(KEY_OLD_PICTURE),
+                                message.getData().getString(KEY_NEW_PICTURE));
+                    }
+                    break;
+                case MSG_CANCEL_CAPTURE:
+                    if (construction != null
+                            && construction.mState == Construction.STATE_CAPTURING) {
+                        construction.releaseJob();
+                        mConstructions.remove(directoryPath);
+                    }
+                    break;
+                default:
+                    super.handleMessage(message);
+            }
+        }
+    }
+
+    // the construction of a capture directory, every method of which runs on the main thread
+    private class Construction implements PhotoSphereConstructor.ConstructionCallback {
+        // the pictures are added as they are taken, the manifest isn't there yet
+        static final int STATE_CAPTURING = 0;
+        static final int STATE_RUNNING = 1;
+        static final int STATE_DONE = 2;
+        static final int STATE_FAILED = 3;
+
+        private final File mDirectory;
+        private final int mSphereHeight;
+        private final List<Messenger> mClients = new ArrayList<Messenger>();
+        private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+        // the pictures added while capturing, by the name of their file
+        private final Map<String, SpherePicture> mCapturedPictures =
+                new HashMap<String, SpherePicture>();
+
+        private PendingIntent mNotificationIntent;
+        private int mNotificationId;
+        private PhotoSphereConstructor mJob;
+        // whether the job was given the pictures of the manifest
+        private boolean mHasManifest;
+        private int mState = STATE_RUNNING;
+        private int mProgress;
+        private int mNotifiedProgress;
+        private boolean mIsPreviewReady;
+        private SphereCrop mCrop;
+        private String mFailure;
+
+        Construction(File directory, int sphereHeight) {
+            mDirectory = directory;
+            mSphereHeight = sphereHeight;
+        }
+
+        // creates the job the pictures are added to while capturing, returns false if it can't
+        boolean startCapture() {
+            try {
+                mJob = createJob();
+                mJob.setCompositingMode(PhotoSphereConstructor.CompositingMode.ACCUMULATED);
+            } catch (RuntimeException e) {
+                Log.e("info_", "Failed to construct while capturing", e);
+                releaseJob();
+                return false;
+            } catch (OutOfMemoryError e) {
+                // the sphere is then constructed once the manifest is in
+                Log.e("info_", "Failed to construct while capturing", e);
+                releaseJob();
+                return false;
+            }
+            mState = STATE_CAPTURING;
+            return true;
+        }
+
+        // the picture read from the manifest line newPictureLine takes the place of oldFileName
+        void edit(final String oldFileName, final String newPictureLine) {
+            mFileExecutorService.execute(new Runnable() {
+                @Override
+                public void run() {
+                    final SpherePicture newPicture = newPictureLine != null
+                            ? SphereCapture.readPicture(mDirectory, newPictureLine)
+                            : null;
+                    mMainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            applyEdit(oldFileName, newPicture);
+                        }
+                    });
+                }
+            });
+        }
+
+        private void applyEdit(String oldFileName, SpherePicture newPicture) {
+            // edits read before the manifest still go in, they come first on the file thread
+            if (mJob == null || mHasManifest) {
+                return;
+            }
+            SpherePicture oldPicture = oldFileName != null
+                    ? mCapturedPictures.remove(oldFileName)
+                    : null;
+            if (newPicture != null) {
+                mCapturedPictures.put(newPicture.getJpeg().getFile().getName(), newPicture);
+            }
+            // only the part of the sphere the pictures cover is drawn again
+            if (newPicture == null) {
+                mJob.removePicture(oldPicture);
+            } else {
+                mJob.replacePicture(oldPicture, newPicture);
+            }
+        }
+
+        void start() {
+            mFileExecutorService.execute(new Runnable() {
+                @Override
+                public void run() {
+                    final SphereCrop crop = SphereCapture.readResult(mDirectory);
+                    List<SpherePicture> pictures = null;
+                    Throwable failure = null;
+                    if (crop == null) {
+                        try {
+                            pictures = SphereCapture.readPictures(mDirectory);
+                        } catch (IOException ioe) {
+                            failure = ioe;
+                        } catch (OutOfMemoryError oome) {
+                            failure = oome;
+                        }
+                    }
+
+                    final List<SpherePicture> picturesRead = pictures;
+                    final Throwable readFailure = failure;
+                    mMainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (crop != null) {
+                                // the sphere was already done before the process was killed
+                                onSphereWritten(crop);
+                            } else if (readFailure != null) {
+                                onConstructionFailed(readFailure);
+                            } else {
+                                construct(picturesRead);
+                            }
+                        }
+                    });
+                }
+            });
+        }
+
+        private void construct(List<SpherePicture> pictures) {
+            if (mJob == null) {
+                try {
+                    mJob = createJob();
+                } catch (RuntimeException e) {
+                    onConstructionFailed(e);
+                    return;
+                }
+            }
+            // the pictures added while capturing are already in the sphere, the manifest only
+            // decides which of them stay
+            List<SpherePicture> listedPictures = new ArrayList<SpherePicture>();
+            for (SpherePicture picture : pictures) {
+                SpherePicture capturedPicture =
+                        mCapturedPictures.remove(picture.getJpeg().getFile().getName());
+                listedPictures.add(capturedPicture != null ? capturedPicture : picture);
+            }
+            for (SpherePicture capturedPicture : mCapturedPictures.values()) {
+                mJob.removePicture(capturedPicture);
+            }
+            mCapturedPictures.clear();
+            mHasManifest = true;
+
+            // a low resolution sphere comes first, so there is something to show right away
+            mJob.setProgressive(true);
+            mJob.setConstructionCallback(this);
+            mJob.construct(listedPictures);
+        }
+
+        private PhotoSphereConstructor createJob() {
+            PhotoSphereConstructor job =
+                    ConstructionJobManager.getInstance(SphereConstructionService.this)
+                            .createJob(mSphereHeight);
+            job.setLatitudeAdaptive(true);
+            // nobody waits on the service, so it can afford the smoother sampling
+            job.setBilinearSampling(true);
+            // panoramas that leave out the poles are emitted without them
+            job.setCropped(true);
+            // the upload thumbnail and the viewer only decode the level of the tiles they need
+            job.setPyramidDirectory(SphereCapture.getPyramidDirectory(mDirectory));
+            return job;
+        }
+
+        void addClient(Messenger client) {
+            mClients.add(client);
+            if (mState == STATE_FAILED) {
+                send(client, MSG_FAILED, mProgress, getFailureData());
+                return;
+            }
+            if (mIsPreviewReady) {
+                send(client, MSG_PREVIEW_READY, mProgress, null);
+            }
+            if (mState == STATE_DONE) {
+                send(client, MSG_DONE, PROGRESS_MAX, getDoneData());
+            } else {
+                send(client, MSG_PROGRESS, mProgress, null);
+            }
+        }
+
+        @Override
+        public void onConstructionProgress(float progress, Rect dirtyRegion) {
+            mProgress = (int) (progress * PROGRESS_MAX);
+            if (mProgress - mNotifiedProgress < NOTIFICATION_PROGRESS_STEP) {
+                return;
+            }
+            mNotifiedProgress = mProgress;
+            updateNotification();
+            for (Messenger client : mClients) {
+                send(client, MSG_PROGRESS, mProgress, null);
+            }
+        }
+
+        @Override
+        public void onPreviewReady(final Bitmap preview) {
+            mFileExecutorService.execute(new Runnable() {
+                @Override
+                public void run() {
+                    final boolean isWritten =
+                            writeJpeg(preview, SphereCapture.getPreviewFile(mDirectory));
+                    mMainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (!isWritten || mState != STATE_RUNNING) {
+                                return;
+                            }
+                            mIsPreviewReady = true;
+                            for (Messenger client : mClients) {
+                                send(client, MSG_PREVIEW_READY, mProgress, null);
+                            }
+                        }
+                    });
+                }
+            });
+        }
+
+        @Override
+        public void onConstructionDone(final Bitmap bitmap) {
+            if (mState != STATE_RUNNING) {
+                return;
+            }
+            final SphereCrop crop = mJob.getCrop();
+            mFileExecutorService.execute(new Runnable() {
+                @Override
+                public void run() {
+                    boolean isWritten =
+                            writeJpeg(bitmap, SphereCapture.getSphereFile(mDirectory));
+                    try {
+                        if (isWritten) {
+                            SphereCapture.writeResult(mDirectory, crop);
+                            SphereCapture.deletePictures(mDirectory);
+                        }
+                    } catch (IOException ioe) {
+                        ioe.printStackTrace();
+                        isWritten = false;
+                    }
+
+                    final boolean isDone = isWritten;
+                    mMainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (isDone) {
+                                onSphereWritten(crop);
+                            } else {
+                                onConstructionFailed(
+                                        new IOException("Failed to write the sphere"));
+                            }
+                        }
+                    });
+                }
+            });
+        }
+
+        @Override
+        public void onConstructionFailed(Throwable throwable) {
+            if (mState != STATE_RUNNING) {
+                return;
+            }
+            Log.e("info_", "Sphere construction failed", throwable);
+            mState = STATE_FAILED;
+            mFailure = throwable.toString();
+            for (Messenger client : mClients) {
+                send(client, MSG_FAILED, mProgress, getFailureData());
+            }
+            finish();
+        }
+
+        // the service writes the sphere itself, it never asks the job for a file
+        @Override
+        public void onFileSaveFailed(Throwable throwable) {
+        }
+
+        private void onSphereWritten(SphereCrop crop) {
+            if (mState != STATE_RUNNING) {
+                return;
+            }
+            mState = STATE_DONE;
+            mProgress = PROGRESS_MAX;
+            mCrop = crop;
+            for (Messenger client : mClients) {
+                send(client, MSG_DONE, PROGRESS_MAX, getDoneData());
+            }
+            finish();
+        }
+
+        // the job is released, as the sphere is in its file by now
+        private void finish() {
+            releaseJob();
+            onConstructionFinished(this);
+        }
+
+        void releaseJob() {
+            if (mJob != null) {
+                mJob.setConstructionCallback(null);
+                ConstructionJobManager.getInstance(SphereConstructionService.this)
+                        .release(mJob.getJobId());
+                mJob = null;
+            }
+        }
+
+        private Bundle getDoneData() {
+            Bundle data = new Bundle();
+            data.putIntArray(KEY_CROP, mCrop.toArray());
+            return data;
+        }
+
+        private Bundle getFailureData() {
+            Bundle data = new Bundle();
+            data.putString(KEY_FAILURE, mFailure);
+            return data;
+        }
+
+        Notification buildNotification() {
+            Notification.Builder builder = new Notification.Builder(SphereConstructionService.this)
+                    .setSmallIcon(android.R.drawable.ic_menu_camera)
+                    .setOnlyAlertOnce(true);
+            if (mNotificationIntent != null) {
+                builder.setContentIntent(mNotificationIntent);
+            }
+            switch (mState) {
+                case STATE_DONE:
+                    builder.setContentTitle(getString(R.string.construction_done))
+                            .setAutoCancel(true);
+                    break;
+                case STATE_FAILED:
+                    builder.setContentTitle(getString(R.string.construction_failed))
+                            .setAutoCancel(true);
+                    break;
+                default:
+                    builder.setContentTitle(getString(R.string.construction_in_progress))
+                            .setProgress(PROGRESS_MAX, mProgress, mProgress == 0)
+                            .setOngoing(true);
+            }
+            return builder.build();
+        }
+
+        void updateNotification() {
+            mNotificationManager.notify(mNotificationId, buildNotification());
+        }
+    }
+
+    private static boolean writeJpeg(Bitmap bitmap, File file) {
+        try {
+            OutputStream outputStream = new BufferedOutputStream(new FileOutputStream(file));
+            try {
+                return bitmap.compress(Bitmap.CompressFormat.JPEG, FILE_QUALITY, outputStream);
+            } finally {
+                outputStream.close();
+            }
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+            return false;
+        }
+    }
+}
@@ -0,0 +1,176 @@
+// Copyright 2004-present Facebook. All Rights Reserved.
+
+package com.facebook.fbu.photosphere.spherelib;
+
+import android.graphics.Bitmap;
+
+import com.facebook.fbu.photosphere.spherecore.SphereFootprint;
+
+import java.util.List;
+
+/**
+ * The part of a full equirectangular sphere that an image holds, for panoramas that don't cover
+ * the whole sphere. It is described as the cropped area of the GPano metadata of photo spheres:
+ * the image is croppedWidth x croppedHeight pixels of a fullWidth x fullHeight sphere, starting
+ * at column croppedLeft and row croppedTop. The cropped area may wrap around the right side of
+ * the sphere, in which case its columns go on from column 0.
+ */
+public class SphereCrop {
+
+    // the crop reaches this many pixels beyond the pictures, so nothing is cut at their border
+    private static final int MARGIN = 1;
+    private static final int ROWS_PER_COPY = 16;
+
+    private final int mCroppedLeft;
+    private final int mCroppedTop;
+    private final int mCroppedWidth;
+    private final int mCroppedHeight;
+    private final int mFullWidth;
+    private final int mFullHeight;
+
+    public SphereCrop(
+            int croppedLeft,
+            int croppedTop,
+            int croppedWidth,
+            int croppedHeight,
+            int fullWidth,
+            int fullHeight) {
+        mCroppedLeft = croppedLeft;
+        mCroppedTop = croppedTop;
+        mCroppedWidth = croppedWidth;
+        mCroppedHeight = croppedHeight;
+        mFullWidth = fullWidth;
+        mFullHeight = fullHeight;
+    }
+
+    // the crop of an image that is the whole sphere
+    public static SphereCrop full(int width, int height) {
+        return new SphereCrop(0, 0, width, height, width, height);
+    }
+
+    // the crop written by toArray()
+    public static SphereCrop fromArray(int[] values) {
+        return new SphereCrop(values[0], values[1], values[2], values[3], values[4], values[5]);
+    }
+
+    /**
+     * The smallest crop of a width x height sphere that has every one of the footprints. The rows
+     * go from the highest to the lowest footprint, and the columns leave out the widest range of
+     * longitudes that no footprint reaches.
+     */
+    public static SphereCrop of(List<SphereFootprint> footprints, int width, int height) {
+        if (footprints.isEmpty()) {
+            return full(width, height);
+        }
+
+        int firstRow = height;
+        int lastRow = -1;
+        boolean[] isColumnReached = new boolean[width];
+        for (SphereFootprint footprint : footprints) {
+            firstRow = Math.min(firstRow, footprint.getFirstRow(height));
+            lastRow = Math.max(lastRow, footprint.getLastRow(height));
+            for (int[] segment : footprint.getColumnSegments(width)) {
+                for (int i = segment[0]; i <= segment[1]; i++) {
+                    isColumnReached[i] = true;
+                }
+            }
+        }
+        firstRow = Math.max(0, firstRow - MARGIN);
+        lastRow = Math.min(height - 1, lastRow + MARGIN);
+
+        // the widest run of columns no footprint reaches, going around the sphere
+        int gapFirst = 0;
+        int gapLength = 0;
+        int runFirst = -1;
+        for (int k = 0; k < 2 * width; k++) {
+            if (isColumnReached[k % width]) {
+                runFirst = -1;
+                continue;
+            }
+            if (runFirst < 0) {
+                runFirst = k;
+            }
+            int runLength = Math.min(width, k - runFirst + 1);
+            if (runLength > gapLength) {
+                gapFirst = runFirst % width;
+                gapLength = runLength;
+            }
+        }
+        gapLength = Math.max(0, gapLength - 2 * MARGIN);
+        if (gapLength == 0) {
+            gapFirst = -MARGIN;
+        }
+
+        return new SphereCrop(
+                (gapFirst + MARGIN + gapLength) % width,
+                firstRow,
+                width - gapLength,
+                lastRow - firstRow + 1,
+                width,
+                height);
+    }
+
+    public int getCroppedLeft() {
+        return mCroppedLeft;
+    }
+
+    public int getCroppedTop() {
+        return mCroppedTop;
+    }
+
+    public int getCroppedWidth() {
+        return mCroppedWidth;
+    }
+
+    public int getCroppedHeight() {
+        return mCroppedHeight;
+    }
+
+    public int getFullWidth() {
+        return mFullWidth;
+    }
+
+    public int getFullHeight() {
+        return mFullHeight;
+    }
+
+    // the crop as {croppedLeft, croppedTop, croppedWidth, croppedHeight, fullWidth, fullHeight}
+    public int[] toArray() {
+        return new int[]{
+                mCroppedLeft, mCroppedTop, mCroppedWidth, mCroppedHeight, mFullWidth, mFullHeight
+        };
+    }
+
+    public boolean isFull() {
+        return mCroppedWidth == mFullWidth && mCroppedHeight == mFullHeight;
+    }
+
+    /**
+     * Reads numOfRows rows of the cropped area from firstRow on, counted from its top, out of the
+     * whole sphere, into pixels with a stride equal to the cropped width.
+     */
+    public void getPixels(SphereCanvas sphere, int[] pixels, int firstRow, int numOfRows) {
+        int rightWidth = Math.min(mCroppedWidth, mFullWidth - mCroppedLeft);
+        sphere.getPixels(pixels, 0, mCroppedWidth,
+                mCroppedLeft, mCroppedTop + firstRow, rightWidth, numOfRows);
+        if (rightWidth < mCroppedWidth) {
+            sphere.getPixels(pixels, rightWidth, mCroppedWidth,
+                    0, mCroppedTop + firstRow, mCroppedWidth - rightWidth, numOfRows);
+        }
+    }
+
+    // a new bitmap with the cropped area of the whole sphere, copied a few rows at a time
+    public Bitmap crop(SphereCanvas sphere) {
+        Bitmap bitmap = Bitmap.createBitmap(
+                mCroppedWidth,
+                mCroppedHeight,
+                Bitmap.Config.ARGB_8888);
+        int[] pixels = new int[mCroppedWidth * ROWS_PER_COPY];
+        for (int j = 0; j < mCroppedHeight; j += ROWS_PER_COPY) {
+            int numOfRows = Math.min(ROWS_PER_COPY, mCroppedHeight - j);
+            getPixels(sphere, pixels, j, numOfRows);
+            bitmap.setPixels(pixels, 0, mCroppedWidth, 0, j, mCroppedWidth, numOfRows);
+        }
+        return bitmap;
+    }
+}
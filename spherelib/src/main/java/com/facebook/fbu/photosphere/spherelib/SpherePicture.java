@@ -0,0 +1,27 @@
+// Copyright 2004-present Facebook. All Rights Reserved.
+
+package com.facebook.fbu.photosphere.spherelib;
+
+/**
+ * What the constructor needs to know about a picture to draw it in the sphere, whether it was
+ * just taken by the camera view or read back from a capture directory, see SphereCapture.
+ */
+public interface SpherePicture {
+
+    // the picture as the camera gave it, which is only decoded where and as much as it is drawn
+    JpegPicture getJpeg();
+
+    // the rotation from the referential of the picture to the one of the sphere
+    float[][] getRotationMatrix();
+
+    // the size of the picture on the plane at distance 1 from the camera
+    float getAbstractWidth();
+
+    float getAbstractHeight();
+
+    // how many degrees clockwise the JPEG must be turned to be upright
+    int getOrientation();
+
+    // whether the JPEG is set, pictures that aren't saved yet are left out of the sphere
+    boolean isSaved();
+}
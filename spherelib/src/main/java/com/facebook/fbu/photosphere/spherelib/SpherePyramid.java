@@ -0,0 +1,276 @@
+// Copyright 2004-present Facebook. All Rights Reserved.
+
+package com.facebook.fbu.photosphere.spherelib;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * The equirectangular sphere at power of two resolutions, cut in TILE_SIZE x TILE_SIZE JPEG tiles
+ * that are written while the sphere is being drawn.
+ * Level 0 is the full resolution and each level is half as wide and as tall as the one before,
+ * down to the first one that fits in a single tile. Tile (x, y) of a level covers the pixels from
+ * (x * TILE_SIZE, y * TILE_SIZE), and is stored as level/x_y.jpg in the pyramid directory.
+ * Rows are handed over as they are drawn, in any order. As soon as all the rows of a strip of
+ * tiles are there, its tiles are written and it is scaled down in the next level.
+ */
+public class SpherePyramid {
+
+    public static final int TILE_SIZE = 256;
+
+    private static final int TILE_QUALITY = 90;
+
+    private final File mDirectory;
+    private final int mNumOfLevels;
+    private final int[] mLevelWidths;
+    private final int[] mLevelHeights;
+
+    // the pixels of every level but the first one, which is read from the sphere canvas
+    private final int[][] mLevelPixels;
+
+    // for every level and strip of tiles, how many of its rows have been drawn so far
+    private final int[][] mNumOfRowsDrawn;
+    private volatile boolean mIsComplete;
+
+    public SpherePyramid(File directory, int width, int height) {
+        this(directory, width, height, true);
+    }
+
+    private SpherePyramid(File directory, int width, int height, boolean isWritten) {
+        mDirectory = directory;
+
+        int numOfLevels = 1;
+        int levelWidth = width;
+        int levelHeight = height;
+        while (levelWidth > TILE_SIZE || levelHeight > TILE_SIZE) {
+            levelWidth = (levelWidth + 1) / 2;
+            levelHeight = (levelHeight + 1) / 2;
+            numOfLevels++;
+        }
+        mNumOfLevels = numOfLevels;
+
+        mLevelWidths = new int[numOfLevels];
+        mLevelHeights = new int[numOfLevels];
+        mLevelPixels = new int[numOfLevels][];
+        mNumOfRowsDrawn = new int[numOfLevels][];
+        for (int level = 0; level < numOfLevels; level++) {
+            mLevelWidths[level] = level == 0 ? width : (mLevelWidths[level - 1] + 1) / 2;
+            mLevelHeights[level] = level == 0 ? height : (mLevelHeights[level - 1] + 1) / 2;
+            if (!isWritten) {
+                continue;
+            }
+            if (level > 0) {
+                mLevelPixels[level] = new int[mLevelWidths[level] * mLevelHeights[level]];
+            }
+            mNumOfRowsDrawn[level] = new int[getNumOfTilesY(level)];
+
+            File levelDirectory = new File(directory, Integer.toString(level));
+            if (!levelDirectory.exists() && !levelDirectory.mkdirs()) {
+                throw new RuntimeException("Failed to create " + levelDirectory);
+            }
+            // tiles of an older sphere must not be mistaken for ours
+            File[] oldTiles = levelDirectory.listFiles();
+            if (oldTiles != null) {
+                for (File oldTile : oldTiles) {
+                    oldTile.delete();
+                }
+            }
+        }
+        // the single tile of the last level is written after every other one
+        if (!isWritten) {
+            mIsComplete = getTileFile(numOfLevels - 1, 0, 0).exists();
+        }
+    }
+
+    /**
+     * Reads the pyramid of a width x height sphere that was written in the directory before, such
+     * as by another process, without clearing its tiles.
+     */
+    public static SpherePyramid open(File directory, int width, int height) {
+        return new SpherePyramid(directory, width, height, false);
+    }
+
+    public int getNumOfLevels() {
+        return mNumOfLevels;
+    }
+
+    public int getLevelWidth(int level) {
+        return mLevelWidths[level];
+    }
+
+    public int getLevelHeight(int level) {
+        return mLevelHeights[level];
+    }
+
+    public int getNumOfTilesX(int level) {
+        return (mLevelWidths[level] + TILE_SIZE - 1) / TILE_SIZE;
+    }
+
+    public int getNumOfTilesY(int level) {
+        return (mLevelHeights[level] + TILE_SIZE - 1) / TILE_SIZE;
+    }
+
+    // the smallest level that is at least width wide, or level 0 if none is
+    public int getLevelForWidth(int width) {
+        for (int level = mNumOfLevels - 1; level > 0; level--) {
+            if (mLevelWidths[level] >= width) {
+                return level;
+            }
+        }
+        return 0;
+    }
+
+    public File getTileFile(int level, int x, int y) {
+        return new File(new File(mDirectory, Integer.toString(level)), x + "_" + y + ".jpg");
+    }
+
+    // whether every tile of every level has been written
+    public boolean isComplete() {
+        return mIsComplete;
+    }
+
+    public Bitmap decodeTile(int level, int x, int y) {
+        return BitmapFactory.decodeFile(getTileFile(level, x, y).getPath());
+    }
+
+    // puts the tiles of a level back together, or returns null if some tile can't be read
+    public Bitmap decodeLevel(int level) {
+        Bitmap bitmap = Bitmap.createBitmap(
+                mLevelWidths[level],
+                mLevelHeights[level],
+                Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(bitmap);
+        for (int y = 0; y < getNumOfTilesY(level); y++) {
+            for (int x = 0; x < getNumOfTilesX(level); x++) {
+                Bitmap tile = decodeTile(level, x, y);
+                if (tile == null) {
+                    bitmap.recycle();
+                    return null;
+                }
+                canvas.drawBitmap(tile, x * TILE_SIZE, y * TILE_SIZE, null);
+                tile.recycle();
+            }
+        }
+        return bitmap;
+    }
+
+    /**
+     * Tells that the rows from firstRow to lastRow of the full resolution sphere are drawn. Rows
+     * may be drawn again later, in which case the tiles they are in are written again.
+     * Different threads may call this at the same time for different rows.
+     */
+    public void onRowsDrawn(SphereCanvas sphere, int firstRow, int lastRow) {
+        for (int strip = firstRow / TILE_SIZE; strip <= lastRow / TILE_SIZE; strip++) {
+            int numOfRows = Math.min(lastRow, (strip + 1) * TILE_SIZE - 1)
+                    - Math.max(firstRow, strip * TILE_SIZE) + 1;
+            if (addRowsDrawn(0, strip, numOfRows)) {
+                writeStrip(sphere, 0, strip);
+            }
+        }
+    }
+
+    // counts rows drawn in a strip and tells whether the strip now has all its rows
+    private synchronized boolean addRowsDrawn(int level, int strip, int numOfRows) {
+        int numOfRowsInStrip = Math.min(TILE_SIZE, mLevelHeights[level] - strip * TILE_SIZE);
+        mNumOfRowsDrawn[level][strip] += numOfRows;
+        return mNumOfRowsDrawn[level][strip] >= numOfRowsInStrip;
+    }
+
+    // writes the tiles of a strip that has all its rows, and scales it down in the next level
+    private void writeStrip(SphereCanvas sphere, int level, int strip) {
+        int width = mLevelWidths[level];
+        int firstRow = strip * TILE_SIZE;
+        int numOfRows = Math.min(TILE_SIZE, mLevelHeights[level] - firstRow);
+
+        int[] pixels;
+        int offset;
+        if (level == 0) {
+            pixels = new int[width * numOfRows];
+            sphere.getPixels(pixels, 0, width, 0, firstRow, width, numOfRows);
+            offset = 0;
+        } else {
+            pixels = mLevelPixels[level];
+            offset = firstRow * width;
+        }
+
+        for (int x = 0; x < getNumOfTilesX(level); x++) {
+            int tileWidth = Math.min(TILE_SIZE, width - x * TILE_SIZE);
+            Bitmap tile = Bitmap.createBitmap(
+                    pixels,
+                    offset + x * TILE_SIZE,
+                    width,
+                    tileWidth,
+                    numOfRows,
+                    Bitmap.Config.ARGB_8888);
+            try {
+                FileOutputStream fos = new FileOutputStream(getTileFile(level, x, strip));
+                tile.compress(Bitmap.CompressFormat.JPEG, TILE_QUALITY, fos);
+                fos.close();
+            } catch (IOException ioe) {
+                ioe.printStackTrace();
+            }
+            tile.recycle();
+        }
+
+        // the last level is a single tile, which can only be written once every other one was
+        if (level + 1 == mNumOfLevels) {
+            mIsComplete = true;
+            return;
+        }
+
+        // each pixel of the next level is the average of 2 x 2 pixels of this one, and strips
+        // have an even number of rows, so the pixels we need are all in this strip
+        int nextWidth = mLevelWidths[level + 1];
+        int[] nextPixels = mLevelPixels[level + 1];
+        int nextFirstRow = firstRow / 2;
+        int nextLastRow = (firstRow + numOfRows - 1) / 2;
+        for (int j = nextFirstRow; j <= nextLastRow; j++) {
+            int top = offset + (2 * j - firstRow) * width;
+            int bottom = 2 * j + 1 < firstRow + numOfRows ? top + width : top;
+            for (int i = 0; i < nextWidth; i++) {
+                int left = 2 * i;
+                int right = Math.min(2 * i + 1, width - 1);
+                nextPixels[j * nextWidth + i] = average(
+                        pixels[top + left],
+                        pixels[top + right],
+                        pixels[bottom + left],
+                        pixels[bottom + right]);
+            }
+        }
+
+        int nextStrip = nextFirstRow / TILE_SIZE;
+        if (addRowsDrawn(level + 1, nextStrip, nextLastRow - nextFirstRow + 1)) {
+            writeStrip(sphere, level + 1, nextStrip);
+        }
+    }
+
+    // averages colors weighted by their alpha, so that transparent pixels don't darken the rest
+    private static int average(int a, int b, int c, int d) {
+        int alphaA = a >>> 24;
+        int alphaB = b >>> 24;
+        int alphaC = c >>> 24;
+        int alphaD = d >>> 24;
+        int alphaSum = alphaA + alphaB + alphaC + alphaD;
+        if (alphaSum == 0) {
+            return 0;
+        }
+
+        int red = (((a >> 16) & 0xff) * alphaA + ((b >> 16) & 0xff) * alphaB
+                + ((c >> 16) & 0xff) * alphaC + ((d >> 16) & 0xff) * alphaD
+                + alphaSum / 2) / alphaSum;
+        int green = (((a >> 8) & 0xff) * alphaA + ((b >> 8) & 0xff) * alphaB
+                + ((c >> 8) & 0xff) * alphaC + ((d >> 8) & 0xff) * alphaD
+                + alphaSum / 2) / alphaSum;
+        int blue = ((a & 0xff) * alphaA + (b & 0xff) * alphaB
+                + (c & 0xff) * alphaC + (d & 0xff) * alphaD
+                + alphaSum / 2) / alphaSum;
+        int alpha = (alphaSum + 2) / 4;
+
+        return (alpha << 24) | (red << 16) | (green << 8) | blue;
+    }
+}
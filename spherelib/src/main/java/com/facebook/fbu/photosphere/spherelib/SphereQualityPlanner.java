@@ -0,0 +1,125 @@
+// Copyright 2004-present Facebook. All Rights Reserved.
+
+package com.facebook.fbu.photosphere.spherelib;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Picks the height of the sphere and the size of the pictures taken for it, so that both have
+ * about as many pixels per radian: a bigger picture would be decoded and held in memory only to
+ * have most of its pixels skipped, and a bigger sphere would only be filled with stretched pixels.
+ * At the equator, a sphere height pixels tall has height / PI pixels per radian, and at the
+ * center of a picture width pixels wide there are width / 2 / tan(horizontalViewAngle / 2).
+ */
+public class SphereQualityPlanner {
+
+    public enum Quality {
+        // quick to take, construct and upload
+        DRAFT(500),
+        STANDARD(1000),
+        // as sharp as the camera and the memory allow
+        MAX(Integer.MAX_VALUE);
+
+        private final int mSphereHeight;
+
+        Quality(int sphereHeight) {
+            mSphereHeight = sphereHeight;
+        }
+    }
+
+    // the sphere bitmap and its accumulation buffer get at most this share of the heap, the
+    // rest is left to the pictures and the views
+    private static final int SPHERE_MEMORY_DIVISOR = 3;
+    private static final int BITMAP_BYTES_PER_PIXEL = 4;
+    private static final int ACCUMULATION_BYTES_PER_PIXEL = 16;
+    // picture sizes with another aspect ratio are cropped, so the view angles aren't theirs
+    private static final float ASPECT_RATIO_TOLERANCE = 0.01f;
+
+    private final int mSphereHeight;
+    private final int mPictureWidth;
+    private final int mPictureHeight;
+
+    /**
+     * Plans for the given camera. isAccumulated tells whether the sphere is to be constructed in
+     * the ACCUMULATED compositing mode, which needs much more memory per pixel, isTiled
+     * whether it is drawn on a tiled canvas, whose size is only limited by the storage, and
+     * isFromPreviewFrames whether the pictures are preview frames, which are picked from the
+     * preview sizes then.
+     */
+    public SphereQualityPlanner(
+            Quality quality,
+            CameraProperties cameraProperties,
+            boolean isAccumulated,
+            boolean isTiled,
+            boolean isFromPreviewFrames) {
+        // preview frames with the aspect ratio of the pictures see as wide as they do
+        List<CameraProperties.Size> sizes = getSizesWithAspectRatio(
+                isFromPreviewFrames
+                        ? cameraProperties.getPreviewSizes()
+                        : cameraProperties.getPictureSizes(),
+                cameraProperties.getPictureSize());
+        // the sizes are in landscape, as the view angles are
+        double halfViewAngle = cameraProperties.getHorizontalViewAngle() * Math.PI / 180 / 2;
+        double pixelsPerWidth = 1 / (2 * Math.tan(halfViewAngle));
+
+        CameraProperties.Size largestSize = sizes.get(0);
+        for (CameraProperties.Size size : sizes) {
+            if (size.getWidth() > largestSize.getWidth()) {
+                largestSize = size;
+            }
+        }
+
+        // past this height the sphere has more pixels than the largest picture
+        int usefulHeight = (int) (Math.PI * largestSize.getWidth() * pixelsPerWidth);
+
+        long bytesPerPixel = BITMAP_BYTES_PER_PIXEL
+                + (isAccumulated ? ACCUMULATION_BYTES_PER_PIXEL : 0);
+        long sphereMemory = Runtime.getRuntime().maxMemory() / SPHERE_MEMORY_DIVISOR;
+        // the sphere is twice as wide as it is tall
+        int affordableHeight = (int) Math.sqrt(sphereMemory / (2 * bytesPerPixel));
+
+        int sphereHeight = isTiled ? usefulHeight : Math.min(usefulHeight, affordableHeight);
+        // both layouts need an even height
+        mSphereHeight = Math.max(2, Math.min(quality.mSphereHeight, sphereHeight) & ~1);
+
+        // the smallest picture that has as many pixels per radian as the sphere, or the largest
+        // picture if none does
+        double neededWidth = mSphereHeight / Math.PI / pixelsPerWidth;
+        CameraProperties.Size chosenSize = largestSize;
+        for (CameraProperties.Size size : sizes) {
+            if (size.getWidth() >= neededWidth && size.getWidth() < chosenSize.getWidth()) {
+                chosenSize = size;
+            }
+        }
+        mPictureWidth = chosenSize.getWidth();
+        mPictureHeight = chosenSize.getHeight();
+    }
+
+    public int getSphereHeight() {
+        return mSphereHeight;
+    }
+
+    public int getPictureWidth() {
+        return mPictureWidth;
+    }
+
+    public int getPictureHeight() {
+        return mPictureHeight;
+    }
+
+    // the sizes with the aspect ratio of the current picture size, or all of them if there is none
+    private static List<CameraProperties.Size> getSizesWithAspectRatio(
+            List<CameraProperties.Size> sizes,
+            CameraProperties.Size currentSize) {
+        List<CameraProperties.Size> sameRatioSizes = new ArrayList<CameraProperties.Size>();
+        float ratio = (float) currentSize.getWidth() / currentSize.getHeight();
+        for (CameraProperties.Size size : sizes) {
+            float sizeRatio = (float) size.getWidth() / size.getHeight();
+            if (Math.abs(sizeRatio - ratio) < ratio * ASPECT_RATIO_TOLERANCE) {
+                sameRatioSizes.add(size);
+            }
+        }
+        return sameRatioSizes.isEmpty() ? sizes : sameRatioSizes;
+    }
+}
@@ -9,6 +9,7 @@ import android.graphics.Canvas;
 import android.graphics.Matrix;
 import android.graphics.drawable.Drawable;
 import android.util.AttributeSet;
+import android.util.DisplayMetrics;
 import android.util.Log;
 import android.view.GestureDetector;
 import android.view.MotionEvent;
@@ -17,6 +18,9 @@ import android.view.View;
 import android.view.ViewGroup;
 import android.widget.Gallery;
 
+import com.facebook.fbu.photosphere.spherecore.CubemapLayout;
+import com.facebook.fbu.photosphere.spherecore.MatrixUtils;
+import com.facebook.fbu.photosphere.spherecore.SphereDirections;
 import com.squareup.picasso.Picasso;
 import com.squareup.picasso.Target;
 
@@ -24,6 +28,7 @@ import com.squareup.picasso.Target;
 public class SphereView extends View {
     private static final int GRID_WIDTH = 30;
     private static final int GRID_HEIGHT = 30;
+    private static final int CUBE_FACE_DIVISIONS = 6;
 
     private static final float MIN_ZOOM = 0.18f;
     private static final float INITIAL_ZOOM = 0.4f;
@@ -281,8 +286,25 @@ public class SphereView extends View {
     }
 
     public void setBitmap(Bitmap bitmap) {
+        setBitmap(bitmap, SphereCrop.full(bitmap.getWidth(), bitmap.getHeight()));
+    }
+
+    /**
+     * shows a bitmap that is only the cropped area of an equirectangular sphere, as the
+     * constructor emits for panoramas, and nothing on the rest of the sphere
+     */
+    public void setBitmap(Bitmap bitmap, SphereCrop crop) {
+        setSphere(new Sphere(GRID_WIDTH, GRID_HEIGHT, bitmap, crop));
+    }
+
+    // shows a cubemap, laid out as CubemapLayout says, instead of an equirectangular bitmap
+    public void setCubemap(Bitmap cubemap) {
+        setSphere(new Sphere(cubemap, CUBE_FACE_DIVISIONS));
+    }
+
+    private void setSphere(Sphere sphere) {
         mIsBitmapSet = true;
-        mSphere = new Sphere(GRID_WIDTH, GRID_HEIGHT, bitmap);
+        mSphere = sphere;
         mSphere.setZoomFactor(INITIAL_ZOOM);
         mOldTime = System.currentTimeMillis();
 
@@ -296,10 +318,24 @@ public class SphereView extends View {
      * @param url - the url to get the bitmap from
      */
     public void setImageUrl(final String url) {
+        setImageUrl(url, null);
+    }
+
+    /**
+     * loads the cropped area of a sphere into a sphereview using picasso
+     *
+     * @param url - the url to get the bitmap from
+     * @param crop - where the bitmap is in the sphere, or null if it is the whole sphere
+     */
+    public void setImageUrl(final String url, final SphereCrop crop) {
         Target loadTarget = new Target() {
             @Override
             public void onBitmapLoaded(Bitmap bitmap, Picasso.LoadedFrom from) {
-                setBitmap(bitmap);
+                if (crop == null) {
+                    setBitmap(bitmap);
+                } else {
+                    setBitmap(bitmap, crop);
+                }
             }
 
             @Override
@@ -316,6 +352,47 @@ public class SphereView extends View {
         Picasso.with(mContext).load(url).into(loadTarget);
     }
 
+    /**
+     * loads the level of a pyramid of tiles that is enough for the sphere as it first shows,
+     * zoomed out, instead of the full resolution one
+     *
+     * @param pyramid - the pyramid to get the bitmap from
+     */
+    public void setPyramid(final SpherePyramid pyramid) {
+        float diameter = (float) Math.sqrt(getWidth() * getWidth() + getHeight() * getHeight());
+        if (diameter == 0) {
+            // we are not laid out yet, so we assume we are going to fill the screen
+            DisplayMetrics metrics = mContext.getResources().getDisplayMetrics();
+            diameter = (float) Math.sqrt(metrics.widthPixels * metrics.widthPixels
+                    + metrics.heightPixels * metrics.heightPixels);
+        }
+        // around the center of the view, a radian of longitude takes zoom * diameter pixels
+        final int level = pyramid.getLevelForWidth(
+                (int) (2 * Math.PI * INITIAL_ZOOM * diameter));
+
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                final Bitmap bitmap = pyramid.decodeLevel(level);
+                if (bitmap == null) {
+                    Log.e("info_", "Failed to decode level " + level + " of the pyramid");
+                    return;
+                }
+                post(new Runnable() {
+                    @Override
+                    public void run() {
+                        // a cubemap is 3:2 and an equirectangular sphere 2:1
+                        if (bitmap.getWidth() < 2 * bitmap.getHeight()) {
+                            setCubemap(bitmap);
+                        } else {
+                            setBitmap(bitmap);
+                        }
+                    }
+                });
+            }
+        }).start();
+    }
+
     // returns screenshot with desired width resize (height is resized proportionally)
     // useful for thumbnails
     public Bitmap getScreenShot(int resultWidth) {
@@ -341,48 +418,122 @@ public class SphereView extends View {
     }
 
     private class Sphere {
-        float[][][] mVertices;
-        float[][][] mRotatedVertices;
-
-        int mGridWidth, mGridHeight;
-        float[] mHorizontalBreakingPoints;
-        float[] mVerticalBreakingPoints;
-
-        private int mPhotoSphereWidth;
-        private int mPhotoSphereHeight;
-        private Bitmap[][] mMosaic;
+        // the points of the sphere where the corners of the pieces of the mosaic go
+        float[][] mVertices;
+        float[][] mRotatedVertices;
+        // for every piece of the mosaic, the vertices of its top left, top right, bottom left
+        // and bottom right corners
+        int[][] mCorners;
+        private Bitmap[] mMosaic;
 
         private float mZoomFactor = 0.4f;
 
         private final Matrix mMatrix = new Matrix();
 
-        public Sphere(int gridWidth, int gridHeight, Bitmap bitmap) {
-            mGridWidth = gridWidth;
-            mGridHeight = gridHeight;
-            mVertices = new float[gridWidth][gridHeight][3];
-            mRotatedVertices = new float[gridWidth][gridHeight][3];
-
-            mPhotoSphereWidth = bitmap.getWidth();
-            mPhotoSphereHeight = bitmap.getHeight();
-            setMosaic(bitmap);
-
-            // Creates the mVertices[][] array, that contains the points that tell us where
+        // the cropped area of an equirectangular sphere, broken down along a grid of meridians
+        // and parallels
+        public Sphere(int gridWidth, int gridHeight, Bitmap bitmap, SphereCrop crop) {
+            // tells in which proportion to break down the bitmap and where each piece goes on the
+            // sphere, shared by every viewer with the same grid
+            float left = (float) crop.getCroppedLeft() / crop.getFullWidth();
+            float width = (float) crop.getCroppedWidth() / crop.getFullWidth();
+            float top = (float) crop.getCroppedTop() / crop.getFullHeight();
+            float height = (float) crop.getCroppedHeight() / crop.getFullHeight();
+            SphereDirections directions =
+                    SphereDirections.forGrid(gridWidth, gridHeight, left, width, top, height);
+
+            // Creates the mVertices[] array, that contains the points that tell us where
             // each rectangle of the mosaic will be mapped on the sphere
             // Notice that this choice of points doesn't look like a regular polyhedron,
             // but instead it looks like meridians and parallels of a globe, so they work out
             // perfectly to undistort the bitmap representation of a sphere
+            // Each row has a last vertex for the right side of the grid, which is the same as
+            // the first one when the bitmap goes all around the sphere
+            int rowLength = gridWidth + 1;
+            mVertices = new float[rowLength * gridHeight][];
             for (int j = 0; j < gridHeight; j++) {
+                for (int i = 0; i < rowLength; i++) {
+                    mVertices[j * rowLength + i] = directions.getDirection(i, j);
+                }
+            }
+
+            // Slices the picture in a mosaic, along the grid of the cropped area
+            mCorners = new int[gridWidth * (gridHeight - 1)][];
+            mMosaic = new Bitmap[mCorners.length];
+            for (int j = 0; j < gridHeight - 1; j++) {
+                float y = (directions.getLatitudeFraction(j) - top) / height;
+                float nextY = (directions.getLatitudeFraction(j + 1) - top) / height;
                 for (int i = 0; i < gridWidth; i++) {
-                    float xAngle = (float) (2 * Math.PI * mHorizontalBreakingPoints[i]);
-                    float yAngle = (float) (Math.PI * (mVerticalBreakingPoints[j] - 1.0f / 2));
-                    float vertex[] = {
-                            (float) Math.sin(yAngle),
-                            (float) (Math.cos(xAngle) * Math.cos(yAngle)),
-                            (float) (Math.sin(xAngle) * Math.cos(yAngle))
+                    int piece = j * gridWidth + i;
+                    float x = (directions.getLongitudeFraction(i) - left) / width;
+                    float nextX = (directions.getLongitudeFraction(i + 1) - left) / width;
+                    mCorners[piece] = new int[]{
+                            j * rowLength + i,
+                            j * rowLength + i + 1,
+                            (j + 1) * rowLength + i,
+                            (j + 1) * rowLength + i + 1
                     };
-                    mVertices[i][j] = vertex;
+                    mMosaic[piece] = Bitmap.createBitmap(
+                            bitmap,
+                            (int) (bitmap.getWidth() * x),
+                            (int) (bitmap.getHeight() * y),
+                            (int) (bitmap.getWidth() * (nextX - x)),
+                            (int) (bitmap.getHeight() * (nextY - y)));
+                }
+            }
+
+            mRotatedVertices = new float[mVertices.length][];
+            rotate(0, 0);
+        }
+
+        // a cubemap, see CubemapLayout, with each face broken down in divisions x divisions
+        // squares. Faces are flat, so each square lands exactly where it goes on the screen,
+        // and there are much fewer pieces to draw than with a grid of meridians and parallels
+        public Sphere(Bitmap bitmap, int divisions) {
+            CubemapLayout layout = new CubemapLayout(bitmap.getHeight() / 2);
+            int faceSize = layout.getFaceSize();
+            int verticesPerFace = (divisions + 1) * (divisions + 1);
+
+            mVertices = new float[CubemapLayout.NUM_OF_FACES * verticesPerFace][];
+            mCorners = new int[CubemapLayout.NUM_OF_FACES * divisions * divisions][];
+            mMosaic = new Bitmap[mCorners.length];
+            for (int face = 0; face < CubemapLayout.NUM_OF_FACES; face++) {
+                int firstVertex = face * verticesPerFace;
+                for (int y = 0; y <= divisions; y++) {
+                    for (int x = 0; x <= divisions; x++) {
+                        float[] vertex = new float[3];
+                        CubemapLayout.getDirection(
+                                face,
+                                2.0f * x / divisions - 1,
+                                2.0f * y / divisions - 1,
+                                vertex);
+                        mVertices[firstVertex + y * (divisions + 1) + x] =
+                                MatrixUtils.multiply(vertex, 1 / MatrixUtils.norm(vertex));
+                    }
+                }
+
+                for (int y = 0; y < divisions; y++) {
+                    for (int x = 0; x < divisions; x++) {
+                        int piece = (face * divisions + y) * divisions + x;
+                        int topLeft = firstVertex + y * (divisions + 1) + x;
+                        mCorners[piece] = new int[]{
+                                topLeft,
+                                topLeft + 1,
+                                topLeft + divisions + 1,
+                                topLeft + divisions + 2
+                        };
+
+                        int left = layout.getFaceLeft(face) + x * faceSize / divisions;
+                        int right = layout.getFaceLeft(face) + (x + 1) * faceSize / divisions;
+                        int top = layout.getFaceTop(face) + y * faceSize / divisions;
+                        int bottom = layout.getFaceTop(face) + (y + 1) * faceSize / divisions;
+                        mMosaic[piece] =
+                                Bitmap.createBitmap(bitmap, left, top, right - left, bottom - top);
+                    }
                 }
             }
+
+            mRotatedVertices = new float[mVertices.length][];
             rotate(0, 0);
         }
 
@@ -415,60 +566,26 @@ public class SphereView extends View {
             };
         }
 
-        // Slices the picture in a Bitmap[][] mosaic
-        public void setMosaic(Bitmap bitmap) {
-            setBreakingPoints();
-            mMosaic = new Bitmap[mGridWidth][mGridHeight];
-            for (int i = 0; i < mGridWidth; i++) {
-                for (int j = 0; j < mGridHeight - 1; j++) {
-                    mMosaic[i][j] = Bitmap.createBitmap(
-                            bitmap,
-                            (int) (mPhotoSphereWidth * mHorizontalBreakingPoints[i]),
-                            (int) (mPhotoSphereHeight * mVerticalBreakingPoints[j]),
-                            (int) (mPhotoSphereWidth * (mHorizontalBreakingPoints[i + 1]
-                                    - mHorizontalBreakingPoints[i])),
-                            (int) (mPhotoSphereHeight * (mVerticalBreakingPoints[j + 1]
-                                    - mVerticalBreakingPoints[j])));
-                }
-            }
-        }
-
         // Draws the 2D view of the sphere onto the canvas
         public void drawMosaic(Canvas canvas) {
             if (mMosaic == null) {
                 throw new RuntimeException("No mosaic is set");
             }
 
-            for (int j = 0; j < mGridHeight - 1; j++) {
-                for (int i = 0; i < mGridWidth; i++) {
-                    if (isEntirelyFrontal(i, j)) {
-                        float[] p1 = project(mRotatedVertices[i][j]);
-                        float[] p2 = project(mRotatedVertices[(i + 1) % mGridWidth][j]);
-                        float[] p3 = project(mRotatedVertices[(i + 1) % mGridWidth][j + 1]);
-                        float[] p4 = project(mRotatedVertices[i][j + 1]);
-                        float[] quad = new float[]{p1[0], p1[1], p2[0], p2[1], p4[0], p4[1], p3[0],
-                                p3[1]};
-                        drawBitmapInQuadrangle(mMosaic[i][j], canvas, quad);
-                    }
+            for (int piece = 0; piece < mCorners.length; piece++) {
+                int[] corners = mCorners[piece];
+                if (isEntirelyFrontal(corners)) {
+                    float[] p1 = project(mRotatedVertices[corners[0]]);
+                    float[] p2 = project(mRotatedVertices[corners[1]]);
+                    float[] p3 = project(mRotatedVertices[corners[3]]);
+                    float[] p4 = project(mRotatedVertices[corners[2]]);
+                    float[] quad = new float[]{p1[0], p1[1], p2[0], p2[1], p4[0], p4[1], p3[0],
+                            p3[1]};
+                    drawBitmapInQuadrangle(mMosaic[piece], canvas, quad);
                 }
             }
         }
 
-        // creates arrays saying in which proportion to break down the initial bitmap and where to
-        // create the matching points on the sphere
-        // for now the breaking is uniform, but later this can have smarter breaking points
-        private void setBreakingPoints() {
-            mHorizontalBreakingPoints = new float[mGridWidth + 1];
-            mVerticalBreakingPoints = new float[mGridHeight];
-            for (int i = 0; i < mGridWidth + 1; i++) {
-                mHorizontalBreakingPoints[i] = i * 1.0f / mGridWidth;
-            }
-
-            for (int j = 0; j < mGridHeight; j++) {
-                mVerticalBreakingPoints[j] = 0.0005f + j * 0.999f / (mGridHeight - 1);
-            }
-        }
-
         // creates a call to rotate() based on horizontal and vertical rotation angle parameters
         public void rotate(float xRotation, float yRotation) {
             float[][] rotMatrix = new float[][]{
@@ -495,22 +612,20 @@ public class SphereView extends View {
         // Sets the rotated vertices to be in a rotation of rotMatrix
         // This rotation is not cumulative
         public void rotate(float[][] rotMatrix) {
-            for (int j = 0; j < mGridHeight; j++) {
-                for (int i = 0; i < mGridWidth; i++) {
-                    mRotatedVertices[i][j] = MatrixUtils.multiply(mVertices[i][j], rotMatrix);
-                }
+            for (int k = 0; k < mVertices.length; k++) {
+                mRotatedVertices[k] = MatrixUtils.multiply(mVertices[k], rotMatrix);
             }
         }
 
         // Checks if rotated rectangle is entiraly in the region z > 0
-        private boolean isEntirelyFrontal(int i, int j) {
+        private boolean isEntirelyFrontal(int[] corners) {
             // To avoid buggy projections at infinity we consider to be in front of us only
             // points that have a z coordinate greater than some epsilon > 0
             float epsilon = 0.10f;
-            return (mRotatedVertices[i][j][2] > epsilon &&
-                    mRotatedVertices[(i + 1) % mGridWidth][j][2] > epsilon &&
-                    mRotatedVertices[(i + 1) % mGridWidth][j + 1][2] > epsilon &&
-                    mRotatedVertices[i][j + 1][2] > epsilon);
+            return (mRotatedVertices[corners[0]][2] > epsilon &&
+                    mRotatedVertices[corners[1]][2] > epsilon &&
+                    mRotatedVertices[corners[2]][2] > epsilon &&
+                    mRotatedVertices[corners[3]][2] > epsilon);
         }
 
         public float getZoomFactor() {
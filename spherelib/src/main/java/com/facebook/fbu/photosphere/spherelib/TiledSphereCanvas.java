@@ -0,0 +1,229 @@
+// Copyright 2004-present Facebook. All Rights Reserved.
+
+package com.facebook.fbu.photosphere.spherelib;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A canvas cut in TILE_SIZE x TILE_SIZE tiles, so a sphere can be much bigger than the heap.
+ * A tile is only allocated once something other than transparent pixels is written to it, which
+ * leaves the parts of the sphere no picture reaches free. At most a given number of tiles are in
+ * memory, and the least recently used ones are evicted to a memory mapped scratch file, from
+ * which they are read back when needed. The scratch file only grows where tiles were evicted.
+ * Every method is synchronized, so bands can be drawn on different threads.
+ */
+public class TiledSphereCanvas implements SphereCanvas {
+
+    public static final int TILE_SIZE = 256;
+
+    private static final int TILE_INTS = TILE_SIZE * TILE_SIZE;
+    private static final int BYTES_PER_INT = 4;
+
+    private final int mWidth;
+    private final int mHeight;
+    private final int mNumOfTilesX;
+    private final int mNumOfTilesY;
+    private final int mMaxNumOfTilesInMemory;
+
+    private final File mScratchFile;
+    private final RandomAccessFile mScratch;
+    // the scratch file holds a row of tiles after the other, and each row is mapped the first
+    // time one of its tiles is evicted
+    private final IntBuffer[] mStripBuffers;
+
+    // an allocated tile that isn't in memory has its pixels in the scratch file
+    private final boolean[] mIsAllocated;
+    private int mNumOfTilesAllocated;
+
+    // tiles in memory, from the least to the most recently used
+    private final LinkedHashMap<Integer, int[]> mTilesInMemory =
+            new LinkedHashMap<Integer, int[]>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Integer, int[]> eldest) {
+                    if (size() <= mMaxNumOfTilesInMemory) {
+                        return false;
+                    }
+                    evict(eldest.getKey(), eldest.getValue());
+                    return true;
+                }
+            };
+
+    /**
+     * Tiles are kept in memory up to memoryBudget bytes, but there is always room for two rows
+     * of tiles, so that the bands drawn at the same time don't keep evicting each other.
+     * An older scratch file is overwritten.
+     */
+    public TiledSphereCanvas(int width, int height, File scratchFile, long memoryBudget)
+            throws IOException {
+        mWidth = width;
+        mHeight = height;
+        mNumOfTilesX = (width + TILE_SIZE - 1) / TILE_SIZE;
+        mNumOfTilesY = (height + TILE_SIZE - 1) / TILE_SIZE;
+        mMaxNumOfTilesInMemory = (int) Math.max(
+                2 * mNumOfTilesX,
+                memoryBudget / (TILE_INTS * BYTES_PER_INT));
+
+        mScratchFile = scratchFile;
+        mScratch = new RandomAccessFile(scratchFile, "rw");
+        mScratch.setLength(0);
+        mStripBuffers = new IntBuffer[mNumOfTilesY];
+
+        mIsAllocated = new boolean[mNumOfTilesX * mNumOfTilesY];
+    }
+
+    @Override
+    public int getWidth() {
+        return mWidth;
+    }
+
+    @Override
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public synchronized int getNumOfTilesAllocated() {
+        return mNumOfTilesAllocated;
+    }
+
+    @Override
+    public synchronized void getPixels(
+            int[] pixels,
+            int offset,
+            int stride,
+            int x,
+            int y,
+            int width,
+            int height) {
+        for (int tileY = y / TILE_SIZE; tileY <= (y + height - 1) / TILE_SIZE; tileY++) {
+            int firstRow = Math.max(y, tileY * TILE_SIZE);
+            int lastRow = Math.min(y + height, (tileY + 1) * TILE_SIZE) - 1;
+            for (int tileX = x / TILE_SIZE; tileX <= (x + width - 1) / TILE_SIZE; tileX++) {
+                int firstColumn = Math.max(x, tileX * TILE_SIZE);
+                int numOfColumns = Math.min(x + width, (tileX + 1) * TILE_SIZE) - firstColumn;
+                int[] tile = getTile(tileY * mNumOfTilesX + tileX);
+                int tileOffset = firstColumn - tileX * TILE_SIZE - tileY * TILE_SIZE * TILE_SIZE;
+
+                for (int j = firstRow; j <= lastRow; j++) {
+                    int index = offset + (j - y) * stride + firstColumn - x;
+                    if (tile == null) {
+                        Arrays.fill(pixels, index, index + numOfColumns, 0);
+                    } else {
+                        System.arraycopy(
+                                tile,
+                                tileOffset + j * TILE_SIZE,
+                                pixels,
+                                index,
+                                numOfColumns);
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public synchronized void setPixels(
+            int[] pixels,
+            int offset,
+            int stride,
+            int x,
+            int y,
+            int width,
+            int height) {
+        for (int tileY = y / TILE_SIZE; tileY <= (y + height - 1) / TILE_SIZE; tileY++) {
+            int firstRow = Math.max(y, tileY * TILE_SIZE);
+            int lastRow = Math.min(y + height, (tileY + 1) * TILE_SIZE) - 1;
+            for (int tileX = x / TILE_SIZE; tileX <= (x + width - 1) / TILE_SIZE; tileX++) {
+                int firstColumn = Math.max(x, tileX * TILE_SIZE);
+                int numOfColumns = Math.min(x + width, (tileX + 1) * TILE_SIZE) - firstColumn;
+                int tileIndex = tileY * mNumOfTilesX + tileX;
+
+                if (!mIsAllocated[tileIndex]) {
+                    // transparent pixels are what a tile that isn't there already has
+                    boolean isTransparent = true;
+                    for (int j = firstRow; j <= lastRow && isTransparent; j++) {
+                        int index = offset + (j - y) * stride + firstColumn - x;
+                        for (int i = index; i < index + numOfColumns; i++) {
+                            if (pixels[i] != 0) {
+                                isTransparent = false;
+                                break;
+                            }
+                        }
+                    }
+                    if (isTransparent) {
+                        continue;
+                    }
+                    mIsAllocated[tileIndex] = true;
+                    mNumOfTilesAllocated++;
+                    mTilesInMemory.put(tileIndex, new int[TILE_INTS]);
+                }
+
+                int[] tile = getTile(tileIndex);
+                int tileOffset = firstColumn - tileX * TILE_SIZE - tileY * TILE_SIZE * TILE_SIZE;
+                for (int j = firstRow; j <= lastRow; j++) {
+                    System.arraycopy(
+                            pixels,
+                            offset + (j - y) * stride + firstColumn - x,
+                            tile,
+                            tileOffset + j * TILE_SIZE,
+                            numOfColumns);
+                }
+            }
+        }
+    }
+
+    // frees the scratch file, after which the canvas can't be used anymore
+    public synchronized void close() {
+        mTilesInMemory.clear();
+        try {
+            mScratch.close();
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+        }
+        mScratchFile.delete();
+    }
+
+    // the pixels of a tile, read back from the scratch file if it was evicted, or null if it
+    // was never allocated
+    private int[] getTile(int tileIndex) {
+        int[] tile = mTilesInMemory.get(tileIndex);
+        if (tile != null || !mIsAllocated[tileIndex]) {
+            return tile;
+        }
+
+        tile = new int[TILE_INTS];
+        IntBuffer strip = getStripBuffer(tileIndex / mNumOfTilesX);
+        strip.position((tileIndex % mNumOfTilesX) * TILE_INTS);
+        strip.get(tile);
+        mTilesInMemory.put(tileIndex, tile);
+        return tile;
+    }
+
+    private void evict(int tileIndex, int[] tile) {
+        IntBuffer strip = getStripBuffer(tileIndex / mNumOfTilesX);
+        strip.position((tileIndex % mNumOfTilesX) * TILE_INTS);
+        strip.put(tile);
+    }
+
+    private IntBuffer getStripBuffer(int tileY) {
+        if (mStripBuffers[tileY] == null) {
+            long stripSize = (long) mNumOfTilesX * TILE_INTS * BYTES_PER_INT;
+            try {
+                mStripBuffers[tileY] = mScratch.getChannel()
+                        .map(FileChannel.MapMode.READ_WRITE, tileY * stripSize, stripSize)
+                        .order(ByteOrder.nativeOrder())
+                        .asIntBuffer();
+            } catch (IOException ioe) {
+                throw new RuntimeException("Failed to map " + mScratchFile, ioe);
+            }
+        }
+        return mStripBuffers[tileY];
+    }
+}